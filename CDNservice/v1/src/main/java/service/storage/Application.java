@@ -2,6 +2,7 @@ package service.storage;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.cache.annotation.EnableCaching;
 import org.springframework.context.annotation.ComponentScan;
 
 
@@ -10,6 +11,7 @@ import org.springframework.context.annotation.ComponentScan;
 */
 @SpringBootApplication
 @ComponentScan("service.storage")
+@EnableCaching
 public class Application {
 	
 	public static void main(String[] args) {
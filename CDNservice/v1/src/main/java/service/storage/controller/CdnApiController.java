@@ -1,5 +1,10 @@
 package service.storage.controller;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -12,9 +17,12 @@ import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.multipart.MultipartFile;
 
+import service.storage.model.BatchResult;
 import service.storage.model.Image;
 import service.storage.model.Result;
+import service.storage.service.BatchExecutor;
 import service.storage.service.StorageService;
+import service.storage.util.StorageFileNotFoundException;
 
 @RestController
 @RequestMapping("/api/v1")
@@ -23,14 +31,17 @@ public class CdnApiController {
 	public static final Logger logger = LoggerFactory.getLogger(CdnApiController.class);
 	
 	private final StorageService storageService;
+	private final BatchExecutor batchExecutor;
 	
 	/**
 	* Creates a Controller for the API that uses the specified StorageService.
 	* @param storageService Storage service to process the storage of images.
+	* @param batchExecutor Executor of the items of batch requests.
 	*/
 	@Autowired
-	public CdnApiController(StorageService storageService) {
+	public CdnApiController(StorageService storageService, BatchExecutor batchExecutor) {
 		this.storageService = storageService;
+		this.batchExecutor = batchExecutor;
 	}
 	
 	
@@ -38,14 +49,14 @@ public class CdnApiController {
 	/**
 	 * Add a User Image to the CDN.
 	 * @param img Image to be stored.
-	 * @return A String indicating the Public Id of the stored Image with the Http Status CREATED.
+	 * @return A String indicating the Public Id of the stored Image with the Http Status CREATED, or ACCEPTED if the Image is uploaded in background.
 	 */
 	@RequestMapping(value="/user/", method=RequestMethod.POST)
 	public ResponseEntity<Result> addUserImg(@RequestParam("file") MultipartFile img){
         logger.info("Adding a User Image.");
         
         Result result = new Result("Id: "+storageService.store(img, "user").replaceAll("user/", ""));
-        return new ResponseEntity<Result>(result, HttpStatus.CREATED);
+        return new ResponseEntity<Result>(result, storeStatus());
     }
 	
 	
@@ -58,12 +69,13 @@ public class CdnApiController {
 	public ResponseEntity<?> getUserImg(@PathVariable String id){
         logger.info("Retrieving Image with id {}.", id);
         
-        if (!storageService.imgExists(id)) {
+        Optional<Image> image = storageService.find(id);
+        if (!image.isPresent()) {
             logger.error("Image with id {} not found",id);
             return new ResponseEntity<Result>(new Result("Error: Image with id "+id+" not found"),HttpStatus.NOT_FOUND);
         }
         
-        return new ResponseEntity<Image>(storageService.load(id, "user"),HttpStatus.OK);
+        return new ResponseEntity<Image>(image.get(),HttpStatus.OK);
     }
 	
 	
@@ -77,13 +89,13 @@ public class CdnApiController {
 	public ResponseEntity<Result> updateUserImg(@RequestParam("file") MultipartFile img, @PathVariable("id") String id){
         logger.info("Adding Image with id {}.", id);
         
-        if (!storageService.imgExists(id)) {
+        try {
+            Result result = new Result("Id: "+storageService.update(img, id, "user").replaceAll("user/", ""));
+            return new ResponseEntity<Result>(result, HttpStatus.CREATED);
+        } catch (StorageFileNotFoundException e) {
             logger.error("Image with id "+id+" not found.");
             return new ResponseEntity<Result>(new Result("Error: Image with id "+id+" not found."), HttpStatus.NOT_FOUND);
         }
-        
-        Result result = new Result("Id: "+storageService.update(img, id, "user").replaceAll("user/", ""));
-        return new ResponseEntity<Result>(result, HttpStatus.CREATED);
     }
 	
 	
@@ -96,13 +108,39 @@ public class CdnApiController {
 	public ResponseEntity<Result> deleteUserImg(@PathVariable("id") String id){
         logger.info("Deleting Image with id {}.",id);
         
-        if (!storageService.imgExists(id)) {
+        try {
+            String result = storageService.delete(id,"user");
+            return new ResponseEntity<Result>(new Result("Info: "+result), HttpStatus.OK);
+        } catch (StorageFileNotFoundException e) {
             logger.error("Image with id {} not found.", id);
             return new ResponseEntity<Result>(new Result("Error: Image with id "+id+" not found."),HttpStatus.NOT_FOUND);
         }
+    }
+	
+	
+	/**
+	 * Add several User Images to the CDN at once.
+	 * @param imgs Images to be stored, sent as several file parts.
+	 * @return The result of each Image, in the order they were sent, with the Http Status OK.
+	 */
+	@RequestMapping(value="/user/batch", method=RequestMethod.POST)
+	public ResponseEntity<?> addUserImgs(@RequestParam("file") List<MultipartFile> imgs){
+        logger.info("Adding {} User Images.", imgs.size());
+        
+        return storeAll(imgs, "user");
+    }
+	
+	
+	/**
+	 * Retrieve several User Images from the CDN at once.
+	 * @param ids Public Ids of the Images, separated by commas.
+	 * @return The Image's urls, or the error if it was not found, for each Public Id with the Http Status OK.
+	 */
+	@RequestMapping(value="/user/", method=RequestMethod.GET, params="ids")
+	public ResponseEntity<?> getUserImgs(@RequestParam("ids") List<String> ids){
+        logger.info("Retrieving {} Images.", ids.size());
         
-        String result = storageService.delete(id,"user");
-        return new ResponseEntity<Result>(new Result("Info: "+result), HttpStatus.OK);
+        return findAll(ids);
     }
 	
 	
@@ -110,14 +148,14 @@ public class CdnApiController {
 	/**
 	 * Add a Location Image to the CDN.
 	 * @param img Image to be stored.
-	 * @return A String indicating the Public Id of the stored Image with the Http Status CREATED.
+	 * @return A String indicating the Public Id of the stored Image with the Http Status CREATED, or ACCEPTED if the Image is uploaded in background.
 	 */
 	@RequestMapping(value="/local/", method=RequestMethod.POST)
 	public ResponseEntity<Result> addLocationImg(@RequestParam("file") MultipartFile img){
         logger.info("Adding a Location Image.");
         
         Result result = new Result("Id: "+storageService.store(img, "location").replaceAll("location/", ""));
-        return new ResponseEntity<Result>(result,HttpStatus.CREATED);
+        return new ResponseEntity<Result>(result, storeStatus());
     }
 	
 	
@@ -130,12 +168,13 @@ public class CdnApiController {
 	public ResponseEntity<?> getLocationImg(@PathVariable("id") String id){
         logger.info("Retrieving Image with id {}.", id);
         
-        if (!storageService.imgExists(id)) {
+        Optional<Image> image = storageService.find(id);
+        if (!image.isPresent()) {
             logger.error("Image with id {} not found.",id);
             return new ResponseEntity<Result>(new Result("Error: Image with id "+id+" not found."),HttpStatus.NOT_FOUND);
         }
         
-        return new ResponseEntity<Image>(storageService.load(id,"location"), HttpStatus.OK);
+        return new ResponseEntity<Image>(image.get(), HttpStatus.OK);
     }
 	
 	
@@ -149,13 +188,13 @@ public class CdnApiController {
 	public ResponseEntity<Result> updateLocationImg(@RequestParam("file") MultipartFile img, @PathVariable("id") String id){
         logger.info("Updating Image with id {}.", id);
         
-        if (!storageService.imgExists(id)) {
+        try {
+            Result result = new Result("Id: "+storageService.update(img, id, "location").replaceAll("location/", ""));
+            return new ResponseEntity<Result>(result, HttpStatus.CREATED);
+        } catch (StorageFileNotFoundException e) {
             logger.error("Image with id {} not found", id);
             return new ResponseEntity<Result>(new Result("Error: Image with id "+id+" not found"), HttpStatus.NOT_FOUND);
         }
-        
-        Result result = new Result("Id: "+storageService.update(img, id, "location").replaceAll("location/", ""));
-        return new ResponseEntity<Result>(result, HttpStatus.CREATED);
     }
 	
 	
@@ -168,12 +207,92 @@ public class CdnApiController {
 	public ResponseEntity<Result> deleteLocationImg(@PathVariable String id){
         logger.info("Deleting Image with id {}.",id);
         
-        if (!storageService.imgExists(id)) {
+        try {
+            String result = storageService.delete(id,"location");
+            return new ResponseEntity<Result>(new Result("Info: "+result), HttpStatus.OK);
+        } catch (StorageFileNotFoundException e) {
             logger.error("Image with id {} not found.", id);
             return new ResponseEntity<Result>(new Result("Error: Image with id "+id+" not found."),HttpStatus.NOT_FOUND);
         }
+    }
+	
+	
+	/**
+	 * Add several Location Images to the CDN at once.
+	 * @param imgs Images to be stored, sent as several file parts.
+	 * @return The result of each Image, in the order they were sent, with the Http Status OK.
+	 */
+	@RequestMapping(value="/local/batch", method=RequestMethod.POST)
+	public ResponseEntity<?> addLocationImgs(@RequestParam("file") List<MultipartFile> imgs){
+        logger.info("Adding {} Location Images.", imgs.size());
+        
+        return storeAll(imgs, "location");
+    }
+	
+	
+	/**
+	 * Retrieve several Location Images from the CDN at once.
+	 * @param ids Public Ids of the Images, separated by commas.
+	 * @return The Image's urls, or the error if it was not found, for each Public Id with the Http Status OK.
+	 */
+	@RequestMapping(value="/local/", method=RequestMethod.GET, params="ids")
+	public ResponseEntity<?> getLocationImgs(@RequestParam("ids") List<String> ids){
+        logger.info("Retrieving {} Images.", ids.size());
         
-        String result = storageService.delete(id,"location");
-        return new ResponseEntity<Result>(new Result("Info: "+result), HttpStatus.OK);
+        return findAll(ids);
     }
+	
+	
+	/**
+	 * Stores several Images and returns the result of each one.
+	 * @param imgs Images to be stored.
+	 * @param mode Indicates where the Images should be stored.
+	 * @return The result of each Image with the Http Status OK, or BAD REQUEST if there are too many Images.
+	 */
+	private ResponseEntity<?> storeAll(List<MultipartFile> imgs, String mode) {
+		if (imgs.size() > batchExecutor.getMaxItems())
+			return new ResponseEntity<Result>(new Result("Error: A batch holds at most "+batchExecutor.getMaxItems()+" Images."), HttpStatus.BAD_REQUEST);
+		List<String> publicIds = storageService.storeAll(imgs, mode);
+		HttpStatus stored = storeStatus();
+		List<BatchResult> results = new ArrayList<>(publicIds.size());
+		for (int i = 0; i < publicIds.size(); i++) {
+			if (publicIds.get(i) == null) {
+				results.add(new BatchResult(null, HttpStatus.INTERNAL_SERVER_ERROR.value(), "Error: Failed to store image "+imgs.get(i).getOriginalFilename()+"."));
+			} else {
+				String id = publicIds.get(i).replaceAll(mode+"/", "");
+				results.add(new BatchResult(id, stored.value(), "Id: "+id));
+			}
+		}
+		return new ResponseEntity<List<BatchResult>>(results, HttpStatus.OK);
+	}
+	
+	
+	/**
+	 * Looks several Images up with a single query and returns the result of each one.
+	 * @param ids Public Ids of the Images.
+	 * @return The result of each Image with the Http Status OK, or BAD REQUEST if there are too many Images.
+	 */
+	private ResponseEntity<?> findAll(List<String> ids) {
+		if (ids.size() > batchExecutor.getMaxItems())
+			return new ResponseEntity<Result>(new Result("Error: A batch holds at most "+batchExecutor.getMaxItems()+" Images."), HttpStatus.BAD_REQUEST);
+		Map<String, Image> images = storageService.findAll(ids);
+		List<BatchResult> results = new ArrayList<>(ids.size());
+		for (String id : ids) {
+			Image image = images.get(id);
+			if (image == null)
+				results.add(new BatchResult(id, HttpStatus.NOT_FOUND.value(), "Error: Image with id "+id+" not found."));
+			else
+				results.add(new BatchResult(image));
+		}
+		return new ResponseEntity<List<BatchResult>>(results, HttpStatus.OK);
+	}
+	
+	
+	/**
+	 * Returns the status of a successful store: the Image is only accepted when it is uploaded in background.
+	 * @return ACCEPTED if the upload is still running, CREATED otherwise.
+	 */
+	private HttpStatus storeStatus() {
+		return storageService.isAsync() ? HttpStatus.ACCEPTED : HttpStatus.CREATED;
+	}
 }
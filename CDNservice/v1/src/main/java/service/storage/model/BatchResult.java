@@ -0,0 +1,68 @@
+package service.storage.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * Result of one item of a batch request, with its own Http status.
+ * Metadata lookups also hold the Image that was found.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class BatchResult extends Result {
+
+	private String id;
+	private int status;
+	private Image image;
+	
+	public BatchResult() {
+	}
+	
+	/**
+	* Creates an instance of BatchResult.
+	* @param id Public Id of the Image, null if it could not be stored.
+	* @param status Http status of the item.
+	* @param result Message describing the result of the item.
+	*/
+	public BatchResult(String id, int status, String result) {
+		super(result);
+		this.id = id;
+		this.status = status;
+	}
+	
+	/**
+	* Creates an instance of BatchResult holding an Image that was found.
+	* @param image Image that was found.
+	*/
+	public BatchResult(Image image) {
+		this(image.getPublicId(), 200, "Image with id "+image.getPublicId()+" found.");
+		this.image = image;
+	}
+	
+	/**
+	* Returns the Image's Public Id.
+	* @returns Image's Public Id.
+	*/
+	public String getId() {
+		return id;
+	}
+	
+	/**
+	* Returns the Http status of the item.
+	* @returns Http status of the item.
+	*/
+	public int getStatus() {
+		return status;
+	}
+	
+	/**
+	* Returns the Image that was found.
+	* @returns The Image, or null if the item is not a lookup or the Image was not found.
+	*/
+	public Image getImage() {
+		return image;
+	}
+	
+	@Override
+	public String toString() {
+		return "BatchResult{id="+id+",status="+status+",result="+getResult()+"}";
+	}
+}
@@ -1,21 +1,40 @@
 package service.storage.model;
 
+import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.Table;
 
 @Entity
-@Table(name = "images")
+@Table(name = "images", indexes = @Index(name = "images_public_id_idx", columnList = "public_id", unique = true))
 public class Image {
 
+	/**
+	 * State of the upload of an Image to the CDN.
+	 */
+	public enum Status {
+		/** Accepted and staged locally, not uploaded to the CDN yet */
+		PENDING,
+		/** Uploaded to the CDN, its URLs can be used */
+		READY,
+		/** The upload to the CDN failed */
+		FAILED
+	}
+	
 	@Id
 	@GeneratedValue(strategy = GenerationType.AUTO)
 	private Long id;
+	@Column(name = "public_id", nullable = false)
 	private String publicId;
 	private String url;
 	private String secure_url;
+	@Enumerated(EnumType.STRING)
+	private Status status = Status.READY;
 	
 	public Image() {
 	}
@@ -96,8 +115,24 @@ public class Image {
 		this.secure_url = secure_url;
 	}
 	
+	/**
+	* Returns the state of the Image's upload to the CDN.
+	* @returns State of the upload.
+	*/
+	public Status getStatus() {
+		return status;
+	}
+	
+	/**
+	* Sets the state of the Image's upload to the CDN.
+	* @param status State of the upload.
+	*/
+	public void setStatus(Status status) {
+		this.status = status;
+	}
+	
 	@Override
 	public String toString() {
-		return "Image{pubicId="+publicId+",url="+url+",secure_url="+secure_url+"}";
+		return "Image{pubicId="+publicId+",url="+url+",secure_url="+secure_url+",status="+status+"}";
 	}
 }
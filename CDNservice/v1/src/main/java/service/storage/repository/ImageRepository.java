@@ -1,20 +1,56 @@
 package service.storage.repository;
 
+import java.util.Collection;
+import java.util.List;
+
+import org.springframework.cache.annotation.CacheEvict;
+import org.springframework.cache.annotation.Cacheable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
 import service.storage.model.Image;
 
 /**
 * Repository to store the Images database.
+* Lookups by Public Id are cached, and evicted whenever an Image is saved or deleted.
 */
 @Repository
 public interface ImageRepository extends JpaRepository<Image, Long>{
 
 	public static final String FIND_PUBLIC_ID = "SELECT * FROM images where public_id = :id";
+	public static final String UPDATE_UPLOAD = "UPDATE Image i SET i.status = :status, i.url = :url, i.secure_url = :secureUrl "
+			+ "WHERE i.publicId = :id AND i.status = :expected";
+	public static final String CACHE = "images";
 	
+	@Cacheable(cacheNames=CACHE, key="#p0", unless="#result == null")
 	@Query(value=FIND_PUBLIC_ID, nativeQuery=true)
 	Image findByPublicId(@Param("id") String publicId);
+	
+	List<Image> findByPublicIdIn(Collection<String> publicIds);
+	
+	List<Image> findByStatus(Image.Status status);
+	
+	/**
+	 * Records the outcome of an upload in a single statement, only if the Image is still in the expected state,
+	 * so an Image deleted or changed meanwhile is never written back.
+	 * @return The number of updated rows, 0 if the Image is gone or no longer in the expected state.
+	 */
+	@Transactional
+	@Modifying
+	@CacheEvict(cacheNames=CACHE, key="#p0")
+	@Query(UPDATE_UPLOAD)
+	int updateUpload(@Param("id") String publicId, @Param("expected") Image.Status expected, @Param("status") Image.Status status,
+			@Param("url") String url, @Param("secureUrl") String secureUrl);
+	
+	@Override
+	@CacheEvict(cacheNames=CACHE, key="#p0.publicId")
+	<S extends Image> S save(S image);
+	
+	@Override
+	@CacheEvict(cacheNames=CACHE, key="#p0.publicId")
+	void delete(Image image);
 }
@@ -0,0 +1,72 @@
+package service.storage.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Runs the items of batch requests in parallel on a pool of threads shared by all of them,
+ * so the number of items processed at once stays bounded no matter how many batches are received.
+ */
+@Component
+public class BatchExecutor {
+
+	private final ExecutorService pool;
+	private final int maxItems;
+
+	/**
+	 * Creates the batch executor.
+	 * @param workers Maximum number of items processed at once.
+	 * @param maxItems Maximum number of items in a batch request.
+	 */
+	@Autowired
+	public BatchExecutor(@Value("${storage.batch.workers:8}") int workers, @Value("${storage.batch.max-items:100}") int maxItems) {
+		AtomicInteger threads = new AtomicInteger();
+		this.pool = Executors.newFixedThreadPool(workers, job -> {
+			Thread worker = new Thread(job, "batch-worker-"+threads.incrementAndGet());
+			worker.setDaemon(true);
+			return worker;
+		});
+		this.maxItems = maxItems;
+	}
+
+	/**
+	 * Returns the maximum number of items in a batch request.
+	 * @return Maximum size of a batch.
+	 */
+	public int getMaxItems() {
+		return maxItems;
+	}
+
+	/**
+	 * Applies a task to each item in parallel and waits for all of them.
+	 * The task is expected to turn its failures into results, so one item cannot fail the whole batch.
+	 * @param items Items of the batch.
+	 * @param task Task applied to each item.
+	 * @return The result of each item, in the order of the items.
+	 */
+	public <T, R> List<R> map(List<T> items, Function<T, R> task) {
+		List<CompletableFuture<R>> running = new ArrayList<>(items.size());
+		for (T item : items)
+			running.add(CompletableFuture.supplyAsync(() -> task.apply(item), pool));
+		List<R> results = new ArrayList<>(items.size());
+		for (CompletableFuture<R> result : running)
+			results.add(result.join());
+		return results;
+	}
+
+	@PreDestroy
+	public void close() {
+		pool.shutdownNow();
+	}
+}
@@ -1,5 +1,10 @@
 package service.storage.service;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
 import org.springframework.web.multipart.MultipartFile;
 
 import service.storage.model.Image;
@@ -8,11 +13,28 @@ public interface StorageService {
 
 	String store(MultipartFile img, String mode);
 	
+	List<String> storeAll(List<MultipartFile> imgs, String mode);
+	
 	Image load(String id, String mode);
 	
+	/**
+	 * Looks an Image up with a single query, instead of checking that it exists and then loading it.
+	 * @param id Image's Public Id.
+	 * @return The Image, or an empty Optional if it does not exist.
+	 */
+	Optional<Image> find(String id);
+	
+	Map<String, Image> findAll(Collection<String> ids);
+	
 	String update(MultipartFile img, String id, String mode);
 	
 	String delete(String id, String mode);
 
 	boolean imgExists(String id);
+	
+	/**
+	 * Checks if stored Images are uploaded to the CDN in background.
+	 * @return True if store returns before the upload completes, False otherwise.
+	 */
+	boolean isAsync();
 }
@@ -0,0 +1,46 @@
+package service.storage.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+
+/**
+ * Copies uploaded Images to disk in bounded chunks, so memory use does not depend on the size of the Image.
+ */
+public final class ChunkedCopy {
+
+	public static final int CHUNK_SIZE = 64*1024;
+
+	private ChunkedCopy() {
+	}
+
+	/**
+	 * Copies a stream to a file, hashing and checking its size on the fly.
+	 * @param in Stream to be copied.
+	 * @param target File to write to, created or truncated.
+	 * @param maxBytes Maximum number of bytes accepted.
+	 * @param digest Digest updated with every byte copied, may be null.
+	 * @return Number of bytes copied.
+	 * @throws StorageException If the stream is longer than maxBytes.
+	 * @throws IOException If the stream could not be read or the file could not be written.
+	 */
+	public static long copy(InputStream in, Path target, long maxBytes, MessageDigest digest) throws IOException {
+		byte[] chunk = new byte[CHUNK_SIZE];
+		long total = 0;
+		try (OutputStream out = Files.newOutputStream(target)) {
+			int read;
+			while ((read = in.read(chunk)) != -1) {
+				total += read;
+				if (total > maxBytes)
+					throw new StorageException("Image exceeds the maximum size of "+maxBytes+" bytes.");
+				if (digest != null)
+					digest.update(chunk, 0, read);
+				out.write(chunk, 0, read);
+			}
+		}
+		return total;
+	}
+}
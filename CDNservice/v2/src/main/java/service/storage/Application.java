@@ -1,11 +1,14 @@
 package service.storage;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
+import service.storage.service.StorageMigrator;
 import service.storage.service.StorageService;
 
 
@@ -14,6 +17,7 @@ import service.storage.service.StorageService;
 */
 @SpringBootApplication
 @ComponentScan("service.storage")
+@EnableScheduling
 public class Application {
 	
 	public static void main(String[] args) {
@@ -21,9 +25,16 @@ public class Application {
 	}
 	
 	@Bean
-	CommandLineRunner init(StorageService storageService) {
+	CommandLineRunner init(StorageService storageService, StorageMigrator migrator,
+			@Value("${storage.migrate-on-startup:true}") boolean migrate) {
 		return (args) -> {
 			storageService.init();
+			// Move Images of a flat store into the sharded layout without blocking the startup
+			if (migrate) {
+				Thread migration = new Thread(migrator::migrate, "storage-migrator");
+				migration.setDaemon(true);
+				migration.start();
+			}
 		};
 	}
 }
@@ -1,11 +1,21 @@
 package service.storage.controller;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.ui.Model;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.InputStreamResource;
-import org.springframework.core.io.Resource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
@@ -15,10 +25,20 @@ import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.ServletWebRequest;
 import org.springframework.web.multipart.MultipartFile;
 
+import service.storage.model.BatchResult;
+import service.storage.model.CachedImg;
 import service.storage.model.Result;
+import service.storage.model.StoredImg;
+import service.storage.model.VariantSpec;
+import service.storage.service.BatchExecutor;
+import service.storage.service.ImgCache;
 import service.storage.service.StorageService;
+import service.storage.service.VariantService;
+import service.storage.util.ImgStreamer;
+import service.storage.util.StorageFileNotFoundException;
 
 @RestController
 @RequestMapping("/api/v2")
@@ -27,14 +47,27 @@ public class CdnApiController {
 	public static final Logger logger = LoggerFactory.getLogger(CdnApiController.class);
 	
 	private final StorageService storageService;
+	private final ImgCache imgCache;
+	private final VariantService variantService;
+	private final BatchExecutor batchExecutor;
+	private final String cacheControl;
 	
 	/**
 	* Creates a Controller for the API that uses the specified StorageService.
 	* @param storageService Storage service to process the storage of images.
+	* @param imgCache Cache of the most requested Images.
+	* @param variantService Service producing resized variants of Images.
+	* @param batchExecutor Executor of the items of batch requests.
+	* @param maxAge Number of seconds clients and caches may reuse an Image before revalidating it.
 	*/
 	@Autowired
-	public CdnApiController(StorageService storageService) {
+	public CdnApiController(StorageService storageService, ImgCache imgCache, VariantService variantService, BatchExecutor batchExecutor,
+			@Value("${storage.cache-max-age:3600}") long maxAge) {
 		this.storageService = storageService;
+		this.imgCache = imgCache;
+		this.variantService = variantService;
+		this.batchExecutor = batchExecutor;
+		this.cacheControl = CacheControl.maxAge(maxAge, TimeUnit.SECONDS).cachePublic().getHeaderValue();
 	}
 	
 	/**
@@ -55,29 +88,156 @@ public class CdnApiController {
 	}
 	
 	/**
-	 * 
-	 * @param id
-	 * @return
+	 * Stores several Images at once, in parallel.
+	 * @param imgs Images to be stored, sent as several file parts.
+	 * @return A JSON with the result of each Image, in the order they were sent, and an Http status.
+	 */
+	@RequestMapping(value="/batch", method=RequestMethod.POST)
+	public ResponseEntity<?> addImgs(@RequestParam("file") List<MultipartFile> imgs){
+		logger.info("Adding {} Images to the Database.", imgs.size());
+		if (imgs.size() > batchExecutor.getMaxItems())
+			return new ResponseEntity<Result>(new Result("Error: A batch holds at most "+batchExecutor.getMaxItems()+" Images."), HttpStatus.BAD_REQUEST);
+		List<BatchResult> results = batchExecutor.map(imgs, img -> {
+			try {
+				String id = storageService.store(img);
+				return new BatchResult(id, HttpStatus.CREATED.value(), "Image id: "+id);
+			} catch (Exception e) {
+				logger.error("Could not store Image {}.", img.getOriginalFilename(), e);
+				return new BatchResult(null, HttpStatus.CONFLICT.value(), "Error: Could not store Image "+img.getOriginalFilename()+".");
+			}
+		});
+		return new ResponseEntity<List<BatchResult>>(results, HttpStatus.OK);
+	}
+	
+	/**
+	 * Returns the metadata of several Images at once.
+	 * @param ids Ids of the Images, separated by commas.
+	 * @return A JSON with the metadata of each Image, or the error if it was not found, and an Http status.
+	 */
+	@RequestMapping(value={"", "/"}, method=RequestMethod.GET, params="ids")
+	public ResponseEntity<?> getImgsInfo(@RequestParam("ids") List<String> ids){
+		logger.info("Retrieving the metadata of {} Images.", ids.size());
+		if (ids.size() > batchExecutor.getMaxItems())
+			return new ResponseEntity<Result>(new Result("Error: A batch holds at most "+batchExecutor.getMaxItems()+" Images."), HttpStatus.BAD_REQUEST);
+		List<BatchResult> results = batchExecutor.map(ids, id -> {
+			try {
+				Optional<StoredImg> found = storageService.find(id);
+				if (!found.isPresent())
+					return new BatchResult(id, HttpStatus.NOT_FOUND.value(), "Error: Image with id "+id+" not found.");
+				return new BatchResult(id, found.get().getETag(), found.get().contentLength(), found.get().lastModified());
+			} catch (Exception e) {
+				logger.error("Could not load Image {}.", id, e);
+				return new BatchResult(id, HttpStatus.CONFLICT.value(), "Error: Could not return the requested Image.");
+			}
+		});
+		return new ResponseEntity<List<BatchResult>>(results, HttpStatus.OK);
+	}
+	
+	/**
+	 * Streams an Image straight from the disk, without copying it through the heap, or from memory if it is cached.
+	 * Conditional requests are answered with 304 Not Modified when the client's copy is still valid.
+	 * Range requests are answered with the requested parts of the Image, unless an If-Range validator no longer matches.
+	 * If size or any of w, h, fit or q is set, a resized JPEG variant of the Image is returned instead,
+	 * its width and height rounded up to the served sizes and its quality to the nearest served one.
+	 * @param id Id of the Image to be retrieved.
+	 * @param size Name of a preset variant: thumb, medium or large.
+	 * @param w Width of the variant.
+	 * @param h Height of the variant.
+	 * @param fit How the Image fits in the width and height: contain (default), cover or fill.
+	 * @param q JPEG quality of the variant, from 1 to 100.
+	 * @return Nothing if the Image was written to the response, otherwise a JSON with the error and an Http status.
 	 */
 	@RequestMapping(value="/{id}", method=RequestMethod.GET)
-	public @ResponseBody ResponseEntity<?> getImg(@PathVariable("id") String id, Model model){
+	public @ResponseBody ResponseEntity<?> getImg(@PathVariable("id") String id, @RequestParam(value="size", required=false) String size,
+			@RequestParam(value="w", required=false) Integer w, @RequestParam(value="h", required=false) Integer h,
+			@RequestParam(value="fit", required=false) String fit, @RequestParam(value="q", required=false) Integer q,
+			Model model, HttpServletRequest request, HttpServletResponse response){
 		logger.info("Retrieving Image with id {} from Database.", id);
-		if (!storageService.imgExists(id)) {
-			logger.error("Image with id {} not found.",id);
-			return new ResponseEntity<Result>(new Result("Error: Image with id "+id+" not found."),HttpStatus.NOT_FOUND);
+		VariantSpec spec;
+		try {
+			spec = VariantSpec.of(w, h, fit, q);
+			if (size != null) {
+				if (spec != null)
+					throw new IllegalArgumentException("Size cannot be combined with w, h, fit or q.");
+				spec = VariantSpec.preset(size);
+			}
+			if (spec != null)
+				spec = variantService.round(spec);
+		} catch (IllegalArgumentException e) {
+			return new ResponseEntity<Result>(new Result("Error: Invalid variant. "+e.getMessage()), HttpStatus.BAD_REQUEST);
 		}
+		// Variants are not held by the hot Image cache
+		CachedImg cached = spec == null ? imgCache.get(id) : null;
 		try {
-			Resource resource = storageService.load(id);
-			return ResponseEntity
-					.ok()
-					.contentType(MediaType.IMAGE_JPEG)
-					.body(new InputStreamResource(resource.getInputStream()));
+			StoredImg resource = null;
+			long epoch = imgCache.epoch();
+			if (cached == null) {
+				Optional<StoredImg> found = storageService.find(id);
+				if (!found.isPresent()) {
+					logger.error("Image with id {} not found.",id);
+					return new ResponseEntity<Result>(new Result("Error: Image with id "+id+" not found."),HttpStatus.NOT_FOUND);
+				}
+				resource = found.get();
+			}
+			if (spec != null)
+				resource = variantService.load(id, resource, spec);
+			String etag = cached != null ? cached.getETag() : resource.getETag();
+			long lastModified = cached != null ? cached.lastModified() : resource.lastModified();
+			response.setHeader(HttpHeaders.CACHE_CONTROL, cacheControl);
+			// Sets the ETag and Last-Modified headers, or answers 304 if the client is up to date
+			if (new ServletWebRequest(request, response).checkNotModified(etag, lastModified))
+				return null;
+			response.setContentType(MediaType.IMAGE_JPEG_VALUE);
+			response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+			List<HttpRange> ranges = requestedRanges(request, etag, lastModified);
+			if (cached == null && spec == null)
+				cached = imgCache.admit(id, resource, epoch);
+			if (cached != null)
+				ImgStreamer.stream(cached.getData(), ranges, response);
+			else
+				ImgStreamer.stream(resource.getFile(), resource.getOffset(), resource.contentLength(), ranges, request, response);
+			// The response was already written
+			return null;
 		} catch (Exception e) {
 			e.printStackTrace();
 			return new ResponseEntity<Result>(new Result("Error: Could not return the requested Image."), HttpStatus.CONFLICT);
 		}
 	}
 	
+	/**
+	 * Returns the ranges requested by the client, if they still apply to the current version of the Image.
+	 * @param request Http request being answered.
+	 * @param etag Entity tag of the Image.
+	 * @param lastModified Last time the Image was modified.
+	 * @return The requested ranges, or an empty list if the whole Image must be sent.
+	 */
+	private List<HttpRange> requestedRanges(HttpServletRequest request, String etag, long lastModified) {
+		String range = request.getHeader(HttpHeaders.RANGE);
+		if (range == null)
+			return Collections.emptyList();
+		String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+		if (ifRange != null) {
+			// Entity tags must match strongly, and dates have a precision of seconds
+			if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+				if (!ifRange.equals("\""+etag+"\""))
+					return Collections.emptyList();
+			} else {
+				try {
+					if (request.getDateHeader(HttpHeaders.IF_RANGE)/1000 != lastModified/1000)
+						return Collections.emptyList();
+				} catch (IllegalArgumentException e) {
+					return Collections.emptyList();
+				}
+			}
+		}
+		try {
+			return HttpRange.parseRanges(range);
+		} catch (IllegalArgumentException e) {
+			// A malformed Range header is ignored
+			return Collections.emptyList();
+		}
+	}
+	
 	/**
 	 * 
 	 * @param img
@@ -87,13 +247,12 @@ public class CdnApiController {
 	@RequestMapping(value="/{id}", method=RequestMethod.PUT)
 	public ResponseEntity<Result> updateImg(@RequestParam("file") MultipartFile img, @PathVariable("id") String id){
 		logger.info("Updating Image with id {} from Database.", id);
-		if (!storageService.imgExists(id)) {
-			logger.error("Image with id "+id+" not found.");
-			return new ResponseEntity<Result>(new Result("Error: Image with id "+id+" not found."), HttpStatus.NOT_FOUND);
-		}
 		try {
 			Result result = new Result("Image with id "+storageService.update(img, id)+" was successfully updated.");
 			return new ResponseEntity<Result>(result, HttpStatus.CREATED);
+		} catch (StorageFileNotFoundException e) {
+			logger.error("Image with id "+id+" not found.");
+			return new ResponseEntity<Result>(new Result("Error: Image with id "+id+" not found."), HttpStatus.NOT_FOUND);
 		} catch (Exception e) {
 			e.printStackTrace();
 			return new ResponseEntity<Result>(new Result("Error: Could not update the requested Image."), HttpStatus.CONFLICT);
@@ -108,13 +267,12 @@ public class CdnApiController {
 	@RequestMapping(value="/{id}", method=RequestMethod.DELETE)
 	public ResponseEntity<Result> deleteImg(@PathVariable("id") String id){
 		logger.info("Deleting Image with id {} from Database.",id);
-		if (!storageService.imgExists(id)) {
-			logger.error("Image with id {} not found.", id);
-			return new ResponseEntity<Result>(new Result("Error: Image with id "+id+" not found."),HttpStatus.NOT_FOUND);
-		}
 		try {
 			String result = storageService.delete(id);
 			return new ResponseEntity<Result>(new Result("Success: "+result), HttpStatus.OK);
+		} catch (StorageFileNotFoundException e) {
+			logger.error("Image with id {} not found.", id);
+			return new ResponseEntity<Result>(new Result("Error: Image with id "+id+" not found."),HttpStatus.NOT_FOUND);
 		} catch (Exception e) {
 			e.printStackTrace();
 			return new ResponseEntity<Result>(new Result("Error: Could not delete the requested Image."), HttpStatus.CONFLICT);
@@ -0,0 +1,71 @@
+package service.storage.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * Result of one item of a batch request, with its own Http status.
+ * Metadata lookups also describe the Image that was found.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class BatchResult extends Result {
+
+	private String id;
+	private int status;
+	private String etag;
+	private Long size;
+	private Long lastModified;
+
+	public BatchResult() {
+	}
+
+	/**
+	 * Creates an instance of BatchResult.
+	 * @param id Id of the Image, null if it could not be stored.
+	 * @param status Http status of the item.
+	 * @param result Message describing the result of the item.
+	 */
+	public BatchResult(String id, int status, String result) {
+		super(result);
+		this.id = id;
+		this.status = status;
+	}
+
+	/**
+	 * Creates an instance of BatchResult describing an Image that was found.
+	 * @param id Id of the Image.
+	 * @param etag Hash of the Image's content.
+	 * @param size Size of the Image in bytes.
+	 * @param lastModified Last time the Image was modified, in milliseconds since the epoch.
+	 */
+	public BatchResult(String id, String etag, long size, long lastModified) {
+		this(id, 200, "Image with id "+id+" found.");
+		this.etag = etag;
+		this.size = size;
+		this.lastModified = lastModified;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public int getStatus() {
+		return status;
+	}
+
+	public String getEtag() {
+		return etag;
+	}
+
+	public Long getSize() {
+		return size;
+	}
+
+	public Long getLastModified() {
+		return lastModified;
+	}
+
+	@Override
+	public String toString() {
+		return "BatchResult{id="+id+",status="+status+",result="+getResult()+"}";
+	}
+}
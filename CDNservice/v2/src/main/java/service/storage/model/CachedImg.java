@@ -0,0 +1,62 @@
+package service.storage.model;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An Image held in memory by the hot Image cache, outside of the Java heap.
+ */
+public class CachedImg {
+
+	private final ByteBuffer data;
+	private final String etag;
+	private final long lastModified;
+
+	/**
+	 * Creates an instance of CachedImg.
+	 * @param data Content of the Image, in a direct buffer.
+	 * @param etag Hash of the Image's content.
+	 * @param lastModified Last time the Image was modified.
+	 */
+	public CachedImg(ByteBuffer data, String etag, long lastModified) {
+		this.data = data.asReadOnlyBuffer();
+		this.etag = etag;
+		this.lastModified = lastModified;
+	}
+
+	/**
+	 * Returns the content of the Image.
+	 * @return A new read only view of the content, so concurrent readers don't share a position.
+	 */
+	public ByteBuffer getData() {
+		return data.duplicate();
+	}
+
+	/**
+	 * Returns the size of the Image.
+	 * @return Number of bytes of the Image.
+	 */
+	public int getLength() {
+		return data.remaining();
+	}
+
+	/**
+	 * Returns the Image's entity tag.
+	 * @return Hash of the Image's content, without quotes.
+	 */
+	public String getETag() {
+		return etag;
+	}
+
+	/**
+	 * Returns the last time the Image was modified.
+	 * @return Milliseconds since the epoch.
+	 */
+	public long lastModified() {
+		return lastModified;
+	}
+
+	@Override
+	public String toString() {
+		return "CachedImg{length="+getLength()+",etag="+etag+"}";
+	}
+}
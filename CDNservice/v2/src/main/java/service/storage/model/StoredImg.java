@@ -0,0 +1,137 @@
+package service.storage.model;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import org.springframework.core.io.FileSystemResource;
+
+/**
+ * An Image stored in the local file system, together with its entity tag.
+ * The Image is either a whole file, or a region of a larger file holding several Images.
+ */
+public class StoredImg extends FileSystemResource {
+
+	private final String etag;
+	private final long offset;
+	// -1 when the Image is the whole file
+	private final long length;
+	// 0 when the Image was modified when its file was
+	private final long lastModified;
+
+	/**
+	 * Creates an instance of StoredImg for the specified file.
+	 * @param file File holding the Image.
+	 * @param etag Hash of the Image's content.
+	 */
+	public StoredImg(File file, String etag) {
+		this(file, 0, -1, 0, etag);
+	}
+
+	/**
+	 * Creates an instance of StoredImg for the specified file, modified at another time than the file.
+	 * @param file File holding the Image.
+	 * @param lastModified Time the Image was stored, in milliseconds since the epoch.
+	 * @param etag Hash of the Image's content.
+	 */
+	public StoredImg(File file, long lastModified, String etag) {
+		this(file, 0, -1, lastModified, etag);
+	}
+
+	/**
+	 * Creates an instance of StoredImg for a region of the specified file.
+	 * @param file File holding the Image.
+	 * @param offset Position of the Image in the file.
+	 * @param length Length of the Image.
+	 * @param lastModified Time the Image was stored, in milliseconds since the epoch.
+	 * @param etag Hash of the Image's content.
+	 */
+	public StoredImg(File file, long offset, long length, long lastModified, String etag) {
+		super(file);
+		this.etag = etag;
+		this.offset = offset;
+		this.length = length;
+		this.lastModified = lastModified;
+	}
+
+	/**
+	 * Returns the Image's entity tag.
+	 * @return Hash of the Image's content, without quotes.
+	 */
+	public String getETag() {
+		return etag;
+	}
+
+	/**
+	 * Returns the position of the Image in its file.
+	 * @return Offset of the first byte of the Image, 0 if the Image is the whole file.
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	@Override
+	public long contentLength() throws IOException {
+		return length < 0 ? super.contentLength() : length;
+	}
+
+	@Override
+	public long lastModified() throws IOException {
+		return lastModified > 0 ? lastModified : super.lastModified();
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		if (length < 0)
+			return super.getInputStream();
+		FileChannel channel = FileChannel.open(getFile().toPath(), StandardOpenOption.READ);
+		channel.position(offset);
+		// Stops at the end of the Image instead of the end of the file
+		return new FilterInputStream(Channels.newInputStream(channel)) {
+			private long remaining = length;
+
+			@Override
+			public int read() throws IOException {
+				if (remaining <= 0)
+					return -1;
+				int b = super.read();
+				if (b >= 0)
+					remaining--;
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (remaining <= 0)
+					return -1;
+				int n = super.read(b, off, (int) Math.min(len, remaining));
+				if (n > 0)
+					remaining -= n;
+				return n;
+			}
+
+			@Override
+			public long skip(long n) throws IOException {
+				long skipped = super.skip(Math.min(n, remaining));
+				remaining -= skipped;
+				return skipped;
+			}
+
+			@Override
+			public int available() throws IOException {
+				return (int) Math.min(super.available(), remaining);
+			}
+		};
+	}
+
+	@Override
+	public String toString() {
+		if (length < 0)
+			return "StoredImg{file="+getPath()+",etag="+etag+"}";
+		return "StoredImg{file="+getPath()+",offset="+offset+",length="+length+",etag="+etag+"}";
+	}
+}
@@ -0,0 +1,120 @@
+package service.storage.model;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Describes a resized variant of an Image: its maximum width and height, how the Image fits in them and the JPEG quality.
+ */
+public class VariantSpec {
+
+	public enum Fit {
+		/** Scales the Image to fit inside the box, keeping its aspect ratio */
+		CONTAIN,
+		/** Scales the Image to cover the box, keeping its aspect ratio, and crops what overflows */
+		COVER,
+		/** Stretches the Image to the box */
+		FILL
+	}
+
+	public static final int MAX_DIMENSION = 4096;
+	public static final int DEFAULT_QUALITY = 85;
+
+	/** Standard variants, generated ahead of time when an Image is stored */
+	public static final Map<String, VariantSpec> PRESETS;
+
+	static {
+		Map<String, VariantSpec> presets = new LinkedHashMap<>();
+		presets.put("thumb", new VariantSpec(150, 150, Fit.COVER, DEFAULT_QUALITY));
+		presets.put("medium", new VariantSpec(640, 640, Fit.CONTAIN, DEFAULT_QUALITY));
+		presets.put("large", new VariantSpec(1280, 1280, Fit.CONTAIN, DEFAULT_QUALITY));
+		PRESETS = Collections.unmodifiableMap(presets);
+	}
+
+	private final int width;
+	private final int height;
+	private final Fit fit;
+	private final int quality;
+
+	/**
+	 * Creates an instance of VariantSpec.
+	 * @param width Width of the variant, 0 to derive it from the height.
+	 * @param height Height of the variant, 0 to derive it from the width.
+	 * @param fit How the Image fits in the width and height.
+	 * @param quality JPEG quality, from 1 to 100.
+	 * @throws IllegalArgumentException If a value is out of range.
+	 */
+	public VariantSpec(int width, int height, Fit fit, int quality) {
+		if (width < 0 || height < 0 || width > MAX_DIMENSION || height > MAX_DIMENSION)
+			throw new IllegalArgumentException("Width and height must be between 0 and "+MAX_DIMENSION+".");
+		if (width == 0 && height == 0)
+			throw new IllegalArgumentException("Width or height must be set.");
+		if (quality < 1 || quality > 100)
+			throw new IllegalArgumentException("Quality must be between 1 and 100.");
+		this.width = width;
+		this.height = height;
+		this.fit = fit;
+		this.quality = quality;
+	}
+
+	/**
+	 * Creates a VariantSpec from request parameters.
+	 * @param w Width, may be null.
+	 * @param h Height, may be null.
+	 * @param fit One of contain, cover or fill, may be null.
+	 * @param q JPEG quality, may be null.
+	 * @return The requested variant, or null if no parameter was given.
+	 * @throws IllegalArgumentException If a parameter is invalid.
+	 */
+	public static VariantSpec of(Integer w, Integer h, String fit, Integer q) {
+		if (w == null && h == null && fit == null && q == null)
+			return null;
+		return new VariantSpec(w == null ? 0 : w, h == null ? 0 : h,
+				fit == null ? Fit.CONTAIN : Fit.valueOf(fit.toUpperCase(Locale.ROOT)),
+				q == null ? DEFAULT_QUALITY : q);
+	}
+
+	/**
+	 * Returns one of the standard variants.
+	 * @param size Name of the preset: thumb, medium or large.
+	 * @return The preset variant.
+	 * @throws IllegalArgumentException If there is no preset with that name.
+	 */
+	public static VariantSpec preset(String size) {
+		VariantSpec spec = PRESETS.get(size.toLowerCase(Locale.ROOT));
+		if (spec == null)
+			throw new IllegalArgumentException("Size must be one of "+PRESETS.keySet()+".");
+		return spec;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public Fit getFit() {
+		return fit;
+	}
+
+	public int getQuality() {
+		return quality;
+	}
+
+	/**
+	 * Returns a name identifying the variant, used for its file and entity tag.
+	 * @return Name of the variant, e.g. w200-h150-cover-q85.
+	 */
+	public String getName() {
+		return "w"+width+"-h"+height+"-"+fit.name().toLowerCase(Locale.ROOT)+"-q"+quality;
+	}
+
+	@Override
+	public String toString() {
+		return "VariantSpec{"+getName()+"}";
+	}
+}
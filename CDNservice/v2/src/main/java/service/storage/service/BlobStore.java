@@ -0,0 +1,188 @@
+package service.storage.service;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Content addressed store of Image bytes, where each distinct content is kept once as a blob named by its SHA-256 hash.
+ * Images are hard links to their blob, so the link count of a blob is its reference count:
+ * a blob is removed when no Image points to it anymore.
+ * On file systems without hard links or link counts, each Image keeps its own copy and nothing is counted.
+ */
+@Component
+public class BlobStore {
+
+	public static final Logger logger = LoggerFactory.getLogger(BlobStore.class);
+
+	private static final int LOCK_STRIPES = 256;
+
+	private final Path blobLocation;
+	private final Object[] locks = new Object[LOCK_STRIPES];
+	private final Counter writes;
+	private final Counter hits;
+	private final Counter savedBytes;
+	private volatile boolean linking = true;
+
+	/**
+	 * Creates the blob store inside the root folder of the Image store.
+	 * @param layout Layout of the local Image store.
+	 * @param registry Registry where the deduplication metrics are published.
+	 */
+	@Autowired
+	public BlobStore(StorageLayout layout, MeterRegistry registry) {
+		this.blobLocation = layout.getRootLocation().resolve("blobs");
+		for (int i = 0; i < LOCK_STRIPES; i++)
+			locks[i] = new Object();
+		this.writes = registry.counter("storage.blobs.writes");
+		this.hits = registry.counter("storage.blobs.dedup.hits");
+		this.savedBytes = registry.counter("storage.blobs.dedup.saved.bytes");
+		registry.gauge("storage.blobs.dedup.ratio", this, BlobStore::getDedupRatio);
+	}
+
+	/**
+	 * Creates the folders of the blob store, and checks that its file system supports hard links and link counts.
+	 * @throws IOException If the folders could not be created.
+	 */
+	public void init() throws IOException {
+		Files.createDirectories(blobLocation);
+		Path probe = Files.createTempFile(blobLocation, "probe", ".tmp");
+		Path link = probe.resolveSibling(probe.getFileName()+".link");
+		try {
+			Files.createLink(link, probe);
+			linking = ((Number) Files.getAttribute(probe, "unix:nlink")).intValue() == 2;
+		} catch (UnsupportedOperationException | IllegalArgumentException | FileSystemException e) {
+			linking = false;
+		} finally {
+			Files.deleteIfExists(link);
+			Files.deleteIfExists(probe);
+		}
+		if (!linking)
+			logger.warn("The file system of {} has no hard links or link counts, Images are copied instead of deduplicated.", blobLocation);
+	}
+
+	/**
+	 * Checks if Images are linked to shared blobs.
+	 * @return True if the file system supports hard links and link counts, False if each Image keeps its own copy.
+	 */
+	public boolean isLinking() {
+		return linking;
+	}
+
+	/**
+	 * Returns a folder for temporary files on the same file system as the blobs.
+	 * @return Folder of the blob store.
+	 */
+	public Path getTempLocation() {
+		return blobLocation;
+	}
+
+	/**
+	 * Returns where the blob with the specified hash is stored.
+	 * @param hash SHA-256 hash of the content, in hexadecimal.
+	 * @return Path of the blob, which might not exist.
+	 */
+	public Path resolve(String hash) {
+		return blobLocation.resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4)).resolve(hash);
+	}
+
+	/**
+	 * Makes an Image point to the blob holding its content, replacing the Image if it exists.
+	 * If the content was never stored, the temporary file becomes the blob, otherwise it is deleted.
+	 * Without hard links the temporary file becomes the Image itself.
+	 * @param tmp Temporary file holding the content, on the same file system as the blobs.
+	 * @param hash SHA-256 hash of the content, in hexadecimal.
+	 * @param img Path of the Image.
+	 * @throws IOException If the blob or the link could not be created.
+	 */
+	public void link(Path tmp, String hash, Path img) throws IOException {
+		if (!linking) {
+			Files.createDirectories(img.getParent());
+			Files.move(tmp, img, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			return;
+		}
+		Path blob = resolve(hash);
+		long size = Files.size(tmp);
+		synchronized (lockOf(hash)) {
+			writes.increment();
+			try {
+				Files.createDirectories(blob.getParent());
+				Files.createLink(blob, tmp);
+				Files.delete(tmp);
+			} catch (FileAlreadyExistsException e) {
+				// Same content already stored
+				Files.delete(tmp);
+				hits.increment();
+				savedBytes.increment(size);
+			}
+			// Link under a temporary name and rename it, so readers never miss the Image
+			Files.createDirectories(img.getParent());
+			Path link = img.resolveSibling(img.getFileName()+"."+hash.substring(0, 8)+".link");
+			Files.deleteIfExists(link);
+			Files.createLink(link, blob);
+			Files.move(link, img, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Drops a reference to a blob, deleting it if no Image points to it anymore.
+	 * @param hash SHA-256 hash of the content, in hexadecimal.
+	 * @throws IOException If the blob could not be deleted.
+	 */
+	public void release(String hash) throws IOException {
+		if (!linking)
+			return;
+		Path blob = resolve(hash);
+		synchronized (lockOf(hash)) {
+			try {
+				if (((Number) Files.getAttribute(blob, "unix:nlink")).intValue() <= 1) {
+					Files.delete(blob);
+					logger.debug("Deleted blob {}.", hash);
+				}
+			} catch (NoSuchFileException e) {
+				// Image stored before deduplication existed
+			}
+		}
+	}
+
+	/**
+	 * Checks if an Image points to the blob with the specified hash.
+	 * @param img Path of the Image.
+	 * @param hash SHA-256 hash of the content, in hexadecimal.
+	 * @return True if the Image is a link to the blob, False otherwise.
+	 */
+	public boolean holds(Path img, String hash) {
+		if (!linking)
+			return false;
+		try {
+			return Files.isSameFile(img, resolve(hash));
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the share of writes since startup whose content was already stored.
+	 * @return Ratio between deduplicated writes and all writes.
+	 */
+	public double getDedupRatio() {
+		double total = writes.count();
+		return total == 0 ? 0 : hits.count()/total;
+	}
+
+	private Object lockOf(String hash) {
+		return locks[Integer.parseInt(hash.substring(0, 2), 16) % LOCK_STRIPES];
+	}
+}
@@ -0,0 +1,251 @@
+package service.storage.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import service.storage.model.CachedImg;
+import service.storage.model.StoredImg;
+
+/**
+ * Keeps the most requested Images in memory, in direct buffers so they don't add to the garbage collector's work.
+ * The cache is a segmented LRU bounded by bytes: new Images enter a probation segment and are promoted
+ * to a protected segment when requested again, so a burst of one-off requests cannot flush the popular Images.
+ * An Image is only admitted on its second miss: a doorkeeper remembers the Images missed recently,
+ * so Images requested once are served from disk without allocating direct memory.
+ * Setting the maximum size to 0 disables the cache.
+ */
+@Component
+public class ImgCache {
+
+	private final long maxBytes;
+	private final long maxProtectedBytes;
+	private final long maxImageBytes;
+
+	// Both segments are kept in access order, their first entry is the least recently used
+	private final LinkedHashMap<String, CachedImg> probation = new LinkedHashMap<>(16, 0.75f, true);
+	private final LinkedHashMap<String, CachedImg> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+	private long probationBytes;
+	private long protectedBytes;
+	// Incremented on each invalidation, so Images read from disk before it are not cached
+	private long epoch;
+	// Bloom filter of the Images missed since it was last cleared
+	private final long[] doorkeeper;
+	private final int doorkeeperCapacity;
+	private int doorkeeperEntries;
+
+	private final Counter hits;
+	private final Counter misses;
+	private final Counter evictions;
+	private final Counter rejections;
+
+	/**
+	 * Creates the hot Image cache.
+	 * @param maxBytes Maximum number of bytes held by the cache, 0 disables it.
+	 * @param maxImageBytes Size above which Images are never cached.
+	 * @param doorkeeperCapacity Number of missed Images remembered before the doorkeeper is cleared, 0 admits Images on their first miss.
+	 * @param registry Registry where the cache metrics are published.
+	 */
+	@Autowired
+	public ImgCache(@Value("${storage.cache.max-bytes:67108864}") long maxBytes,
+			@Value("${storage.cache.max-image-bytes:1048576}") long maxImageBytes,
+			@Value("${storage.cache.doorkeeper-capacity:65536}") int doorkeeperCapacity,
+			MeterRegistry registry) {
+		this.maxBytes = maxBytes;
+		this.maxProtectedBytes = maxBytes*4/5;
+		// An Image must fit in the space the protected segment leaves to probation
+		this.maxImageBytes = Math.min(maxImageBytes, maxBytes-maxProtectedBytes);
+		// 8 bits per Image, rounded up to a power of 2, keep false positives around 5% when it is full
+		this.doorkeeperCapacity = doorkeeperCapacity;
+		this.doorkeeper = new long[doorkeeperCapacity > 0 ? Integer.highestOneBit(Math.max(doorkeeperCapacity*8-1, 64))*2/64 : 0];
+		this.hits = registry.counter("storage.cache.hits");
+		this.misses = registry.counter("storage.cache.misses");
+		this.evictions = registry.counter("storage.cache.evictions");
+		this.rejections = registry.counter("storage.cache.rejections");
+		registry.gauge("storage.cache.size.bytes", this, ImgCache::size);
+		registry.gauge("storage.cache.entries", this, ImgCache::entries);
+	}
+
+	/**
+	 * Checks if the cache is enabled.
+	 * @return True if Images are cached, False otherwise.
+	 */
+	public boolean isEnabled() {
+		return maxBytes > 0;
+	}
+
+	/**
+	 * Returns a cached Image, promoting it to the protected segment.
+	 * @param imgId Image's id.
+	 * @return The cached Image, or null if it is not cached.
+	 */
+	public synchronized CachedImg get(String imgId) {
+		if (!isEnabled())
+			return null;
+		CachedImg img = protectedSegment.get(imgId);
+		if (img == null) {
+			img = probation.remove(imgId);
+			if (img != null) {
+				probationBytes -= img.getLength();
+				protectedSegment.put(imgId, img);
+				protectedBytes += img.getLength();
+				// Demote the least recently used protected Images back to probation
+				Iterator<Map.Entry<String, CachedImg>> entries = protectedSegment.entrySet().iterator();
+				while (protectedBytes > maxProtectedBytes) {
+					Map.Entry<String, CachedImg> eldest = entries.next();
+					if (eldest.getValue() == img)
+						break;
+					entries.remove();
+					protectedBytes -= eldest.getValue().getLength();
+					probation.put(eldest.getKey(), eldest.getValue());
+					probationBytes += eldest.getValue().getLength();
+				}
+			}
+		}
+		if (img == null)
+			misses.increment();
+		else
+			hits.increment();
+		return img;
+	}
+
+	/**
+	 * Returns the current epoch, to be passed to admit by a reader about to load an Image from disk.
+	 * @return Current epoch.
+	 */
+	public synchronized long epoch() {
+		return epoch;
+	}
+
+	/**
+	 * Reads an Image from disk into the cache, if it was already missed recently.
+	 * @param imgId Image's id.
+	 * @param img Image loaded from disk.
+	 * @param loadEpoch Epoch returned by epoch() before the Image was loaded.
+	 * @return The Image in memory, or null if it is not cacheable or missed for the first time.
+	 * @throws IOException If the Image could not be read.
+	 */
+	public CachedImg admit(String imgId, StoredImg img, long loadEpoch) throws IOException {
+		long length = img.contentLength();
+		if (!isEnabled() || length > maxImageBytes)
+			return null;
+		if (!passDoorkeeper(imgId)) {
+			rejections.increment();
+			return null;
+		}
+		ByteBuffer data = ByteBuffer.allocateDirect((int) length);
+		try (FileChannel channel = FileChannel.open(img.getFile().toPath(), StandardOpenOption.READ)) {
+			while (data.hasRemaining())
+				if (channel.read(data, img.getOffset()+data.position()) < 0)
+					break;
+		}
+		data.flip();
+		CachedImg cached = new CachedImg(data, img.getETag(), img.lastModified());
+		synchronized (this) {
+			// The Image changed while it was read, serve it once but don't keep it
+			if (epoch != loadEpoch)
+				return cached;
+			remove(imgId);
+			probation.put(imgId, cached);
+			probationBytes += cached.getLength();
+			evict();
+		}
+		return cached;
+	}
+
+	/**
+	 * Removes an Image from the cache.
+	 * @param imgId Image's id.
+	 */
+	public synchronized void invalidate(String imgId) {
+		epoch++;
+		remove(imgId);
+	}
+
+	/**
+	 * Invalidates the cached copy of an Image when it is updated or deleted.
+	 * @param event Change of an Image.
+	 */
+	@EventListener
+	public void onImgChanged(ImgChangedEvent event) {
+		if (event.getType() != ImgChangedEvent.Type.STORED)
+			invalidate(event.getImgId());
+	}
+
+	/**
+	 * Returns the number of bytes held by the cache.
+	 * @return Size of the cached Images.
+	 */
+	public synchronized long size() {
+		return probationBytes+protectedBytes;
+	}
+
+	/**
+	 * Returns the number of Images held by the cache.
+	 * @return Number of cached Images.
+	 */
+	public synchronized int entries() {
+		return probation.size()+protectedSegment.size();
+	}
+
+	/**
+	 * Remembers a missed Image.
+	 * @return True if the Image was already missed recently, False the first time.
+	 */
+	private synchronized boolean passDoorkeeper(String imgId) {
+		if (doorkeeper.length == 0)
+			return true;
+		// Two positions from one hash, spread over the whole filter
+		int hash = imgId.hashCode()*0x9E3779B9;
+		int mask = doorkeeper.length*64-1;
+		int first = hash & mask;
+		int second = (hash >>> 16 | hash << 16) & mask;
+		boolean seen = (doorkeeper[first >>> 6] & 1L << first) != 0 && (doorkeeper[second >>> 6] & 1L << second) != 0;
+		if (seen)
+			return true;
+		// Cleared once full, an Image missed before and after is admitted on its next miss
+		if (++doorkeeperEntries > doorkeeperCapacity) {
+			Arrays.fill(doorkeeper, 0);
+			doorkeeperEntries = 1;
+		}
+		doorkeeper[first >>> 6] |= 1L << first;
+		doorkeeper[second >>> 6] |= 1L << second;
+		return false;
+	}
+
+	private void remove(String imgId) {
+		CachedImg old = probation.remove(imgId);
+		if (old != null)
+			probationBytes -= old.getLength();
+		old = protectedSegment.remove(imgId);
+		if (old != null)
+			protectedBytes -= old.getLength();
+	}
+
+	private void evict() {
+		// Evict from probation first, the protected segment only gives up Images when probation is empty
+		while (size() > maxBytes) {
+			boolean fromProbation = !probation.isEmpty();
+			Iterator<CachedImg> entries = (fromProbation ? probation : protectedSegment).values().iterator();
+			CachedImg evicted = entries.next();
+			entries.remove();
+			if (fromProbation)
+				probationBytes -= evicted.getLength();
+			else
+				protectedBytes -= evicted.getLength();
+			evictions.increment();
+		}
+	}
+}
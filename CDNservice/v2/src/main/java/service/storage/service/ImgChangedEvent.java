@@ -0,0 +1,49 @@
+package service.storage.service;
+
+import org.springframework.context.ApplicationEvent;
+
+/**
+ * Published by the storage service whenever an Image is stored, updated or deleted,
+ * so that anything derived from the Image can be refreshed.
+ */
+@SuppressWarnings("serial")
+public class ImgChangedEvent extends ApplicationEvent {
+
+	public enum Type { STORED, UPDATED, DELETED }
+
+	private final String imgId;
+	private final Type type;
+
+	/**
+	 * Creates an event for the specified Image.
+	 * @param source Storage service that changed the Image.
+	 * @param imgId Image's id.
+	 * @param type What happened to the Image.
+	 */
+	public ImgChangedEvent(Object source, String imgId, Type type) {
+		super(source);
+		this.imgId = imgId;
+		this.type = type;
+	}
+
+	/**
+	 * Returns the Image's id.
+	 * @return Image's id.
+	 */
+	public String getImgId() {
+		return imgId;
+	}
+
+	/**
+	 * Returns what happened to the Image.
+	 * @return Type of change.
+	 */
+	public Type getType() {
+		return type;
+	}
+
+	@Override
+	public String toString() {
+		return "ImgChangedEvent{imgId="+imgId+",type="+type+"}";
+	}
+}
@@ -1,39 +1,78 @@
 package service.storage.service;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Optional;
 
+import service.storage.model.StoredImg;
+import service.storage.util.ChunkedCopy;
+import service.storage.util.ContentHash;
 import service.storage.util.StorageException;
+import service.storage.util.StorageFileNotFoundException;
 
 import org.apache.commons.lang3.RandomStringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.UrlResource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Service;
+import org.springframework.util.StreamUtils;
 import org.springframework.util.StringUtils;
 import org.springframework.web.multipart.MultipartFile;
-import org.springframework.core.io.Resource;
 
 @Service
+@ConditionalOnProperty(name="storage.backend", havingValue="files", matchIfMissing=true)
 public class ImgSystemStorageService implements StorageService{
 	
-	private Path rootLocation;
+	// Length of a SHA-256 hash in hexadecimal
+	private static final int ETAG_LENGTH = 64;
+	
+	private static final int LOCK_STRIPES = 256;
+	
+	private final StorageLayout layout;
+	private final BlobStore blobs;
+	private final ApplicationEventPublisher events;
+	private final boolean deduplicate;
+	private final long maxImageBytes;
+	private final Path rootLocation;
+	// Updates and deletes of the same Image run one at a time
+	private final Object[] locks = new Object[LOCK_STRIPES];
 	
 	/**
 	 * Creates an instance of ImgSystemStorageService to handle the operations involved with Images.
+	 * @param layout Layout of the local Image store.
+	 * @param blobs Content addressed store used when deduplication is enabled.
+	 * @param events Publisher of the changes made to Images.
+	 * @param deduplicate Whether Images with the same content share the same bytes on disk.
+	 * @param maxImageBytes Maximum size of an Image.
 	 */
 	@Autowired
-	public ImgSystemStorageService() {
-		rootLocation = Paths.get("imgs");
+	public ImgSystemStorageService(StorageLayout layout, BlobStore blobs, ApplicationEventPublisher events, @Value("${storage.deduplicate:true}") boolean deduplicate,
+			@Value("${storage.max-image-bytes:524288000}") long maxImageBytes) {
+		this.layout = layout;
+		this.blobs = blobs;
+		this.events = events;
+		this.deduplicate = deduplicate;
+		this.maxImageBytes = maxImageBytes;
+		this.rootLocation = layout.getRootLocation();
+		for (int i = 0; i < LOCK_STRIPES; i++)
+			locks[i] = new Object();
 	}
 	
 	@Override
 	public void init() {
 		try {
 			Files.createDirectories(rootLocation);
+			if (deduplicate)
+				blobs.init();
 		}catch (IOException e) {
 			throw new StorageException("Could not initialize storage", e);
 		}
@@ -50,11 +89,10 @@ public class ImgSystemStorageService implements StorageService{
             throw new StorageException("Failed to store Image " + filename +" with invalid name.");
         try {
             String imgId = RandomStringUtils.randomAlphanumeric(20);
-            File destination = new File(rootLocation+"/"+imgId+".jpg");
-            destination.createNewFile();
-            FileOutputStream fos = new FileOutputStream(destination);
-            fos.write(img.getBytes());
-            fos.close();
+            File destination = layout.resolve(imgId).toFile();
+            destination.getParentFile().mkdirs();
+            write(img, destination);
+            events.publishEvent(new ImgChangedEvent(this, imgId, ImgChangedEvent.Type.STORED));
             return imgId;
         } catch (Exception e) {
         	throw new StorageException("Failed to store Image.", e);
@@ -62,21 +100,29 @@ public class ImgSystemStorageService implements StorageService{
 	}
 	
 	@Override
-	public Resource load(String imgId) {
-		Resource result;
-		try {	
-			Path img = rootLocation.resolve(imgId+".jpg");
-			result = new UrlResource(img.toUri());
+	public StoredImg load(String imgId) {
+		return find(imgId).orElseThrow(() -> new StorageFileNotFoundException("Image with id "+imgId+" not in local Database."));
+	}
+	
+	/**
+	 * Looks an Image up, reading its entity tag. A missing Image is detected by the read itself, without checking first.
+	 * The sidecar is replaced on each write of the Image, so its time is when this Image was last modified,
+	 * unlike the time of the file, which is shared by all the Images linked to the same blob.
+	 * @param imgId Image's id.
+	 * @return The Image, or an empty Optional if it does not exist.
+	 */
+	@Override
+	public Optional<StoredImg> find(String imgId) {
+		Path img = layout.locate(imgId);
+		try {
+			String etag = readETag(img);
+			long lastModified = Files.getLastModifiedTime(layout.sidecarOf(img)).toMillis();
+			return Optional.of(new StoredImg(img.toFile(), lastModified, etag));
+		} catch (NoSuchFileException e) {
+			return Optional.empty();
 		} catch (Exception e) {
-			throw new StorageException("Image with id "+imgId+" could not be loaded.");
+			throw new StorageException("Image with id "+imgId+" could not be loaded.", e);
 		}
-		if (result.exists())
-			if (result.isReadable())
-				return result;
-			else
-				throw new StorageException("Image with id "+imgId+" could not be read.");
-		else
-			throw new StorageException("Image with id "+imgId+" not in local Database.");
 	}
 	
 	@Override
@@ -88,14 +134,23 @@ public class ImgSystemStorageService implements StorageService{
 		// Security check
 		if (filename.contains(".."))
 			throw new StorageException("Failed to store Image " + filename +" with invalid name.");
+		if (!imgExists(imgId))
+			throw new StorageFileNotFoundException("Image with id "+imgId+" not in local Database.");
 		try {
-			File destination = new File(rootLocation+"/"+imgId+".jpg");
-			if (destination.exists())
-				destination.delete();
-			destination.createNewFile();
-            FileOutputStream fos = new FileOutputStream(destination);
-            fos.write(img.getBytes());
-            fos.close();
+			synchronized (lockOf(imgId)) {
+				File destination = layout.resolve(imgId).toFile();
+				String previous = deduplicate && destination.exists() ? readETag(destination.toPath()) : null;
+				destination.getParentFile().mkdirs();
+				write(img, destination);
+				if (previous != null)
+					blobs.release(previous);
+				// Drop the copy that was not migrated yet to the sharded layout
+				if (layout.isSharded()) {
+					Files.deleteIfExists(layout.resolveFlat(imgId));
+					Files.deleteIfExists(layout.sidecarOf(layout.resolveFlat(imgId)));
+				}
+				events.publishEvent(new ImgChangedEvent(this, imgId, ImgChangedEvent.Type.UPDATED));
+			}
 			return "Image with id "+imgId+" was successfully updated.";
 		}catch (Exception e) {
 			throw new StorageException("Failed to store image.",e);
@@ -105,11 +160,26 @@ public class ImgSystemStorageService implements StorageService{
 	@Override
 	public String delete(String imgId) {
 		try {
-			File file = new File(rootLocation+"/"+imgId+".jpg");
-			if (file.delete())
+			boolean deleted;
+			synchronized (lockOf(imgId)) {
+				String previous = deduplicate ? find(imgId).map(StoredImg::getETag).orElse(null) : null;
+				// Delete the flat copy first, so a running migration cannot bring it back
+				deleted = layout.isSharded() && layout.resolveFlat(imgId).toFile().delete();
+				deleted |= layout.resolve(imgId).toFile().delete();
+				if (layout.isSharded())
+					Files.deleteIfExists(layout.sidecarOf(layout.resolveFlat(imgId)));
+				Files.deleteIfExists(layout.sidecarOf(layout.resolve(imgId)));
+				if (previous != null)
+					blobs.release(previous);
+				if (deleted)
+					events.publishEvent(new ImgChangedEvent(this, imgId, ImgChangedEvent.Type.DELETED));
+			}
+			if (deleted)
 				return "Image with id "+imgId+" was successfully deleted.";
 			else
-				throw new StorageException("Could not delete requested Image.");
+				throw new StorageFileNotFoundException("Image with id "+imgId+" not in local Database.");
+		} catch (StorageFileNotFoundException e) {
+			throw e;
 		} catch (Exception e) {
 			throw new StorageException("Could not delete requested Image.",e);
 		}
@@ -123,7 +193,88 @@ public class ImgSystemStorageService implements StorageService{
 	@Override
 	public boolean imgExists(String imgId) {
 		// Check if there's image info in local database
-		File file = new File(rootLocation+"/"+imgId+".jpg");
-		return file.exists();
+		return Files.exists(layout.locate(imgId));
+	}
+	
+	/**
+	 * Writes the content of an uploaded Image and its entity tag.
+	 * The upload is streamed to a temporary file in bounded chunks and hashed on the way, it is never held in memory.
+	 * With deduplication the Image then becomes a link to the blob holding its content,
+	 * otherwise the temporary file is atomically renamed to the Image.
+	 * @param img Uploaded Image.
+	 * @param destination File of the Image.
+	 * @throws IOException If the Image could not be written.
+	 */
+	private void write(MultipartFile img, File destination) throws IOException {
+		Path folder = deduplicate ? blobs.getTempLocation() : destination.getParentFile().toPath();
+		Path tmp = Files.createTempFile(folder, destination.getName(), ".tmp");
+		try {
+			MessageDigest digest = ContentHash.sha256();
+			try (InputStream in = img.getInputStream()) {
+				ChunkedCopy.copy(in, tmp, maxImageBytes, digest);
+			}
+			String etag = ContentHash.hex(digest.digest());
+			if (deduplicate)
+				blobs.link(tmp, etag, destination.toPath());
+			else
+				Files.move(tmp, destination.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			writeETag(destination.toPath(), etag);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+	
+	/**
+	 * Reads the entity tag of an Image from its sidecar file.
+	 * An Image linked to a blob is checked against the blob named by the sidecar. Otherwise the sidecar is written after the Image,
+	 * so one older than the Image is stale. Stale entity tags are computed again,
+	 * which also happens once for Images stored before entity tags existed.
+	 * @param img Path of the Image.
+	 * @return Hash of the Image's content.
+	 * @throws IOException If the Image or its sidecar could not be read.
+	 */
+	private String readETag(Path img) throws IOException {
+		Path sidecar = layout.sidecarOf(img);
+		try {
+			String etag = new String(Files.readAllBytes(sidecar), StandardCharsets.US_ASCII);
+			if (etag.length() == ETAG_LENGTH) {
+				if (deduplicate && blobs.holds(img, etag))
+					return etag;
+				// A link to another blob means the Image was replaced after the sidecar was written
+				boolean linked = deduplicate && blobs.isLinking() && ((Number) Files.getAttribute(img, "unix:nlink")).intValue() > 1;
+				if (!linked && Files.getLastModifiedTime(sidecar).compareTo(Files.getLastModifiedTime(img)) >= 0)
+					return etag;
+			}
+		} catch (NoSuchFileException e) {
+			// Image stored before entity tags existed
+		}
+		MessageDigest digest = ContentHash.sha256();
+		try (InputStream in = new DigestInputStream(Files.newInputStream(img), digest)) {
+			StreamUtils.drain(in);
+		}
+		String etag = ContentHash.hex(digest.digest());
+		writeETag(img, etag);
+		return etag;
+	}
+	
+	private Object lockOf(String imgId) {
+		return locks[Math.floorMod(imgId.hashCode(), LOCK_STRIPES)];
+	}
+	
+	/**
+	 * Atomically replaces the sidecar file holding the entity tag of an Image.
+	 * @param img Path of the Image.
+	 * @param etag Hash of the Image's content.
+	 * @throws IOException If the sidecar could not be written.
+	 */
+	private void writeETag(Path img, String etag) throws IOException {
+		Path sidecar = layout.sidecarOf(img);
+		Path tmp = Files.createTempFile(sidecar.getParent(), sidecar.getFileName().toString(), ".tmp");
+		try {
+			Files.write(tmp, etag.getBytes(StandardCharsets.US_ASCII));
+			Files.move(tmp, sidecar, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
 	}
 }
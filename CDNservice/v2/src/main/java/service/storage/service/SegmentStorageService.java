@@ -0,0 +1,661 @@
+package service.storage.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.lang3.RandomStringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+import org.springframework.web.multipart.MultipartFile;
+
+import service.storage.model.StoredImg;
+import service.storage.util.ChunkedCopy;
+import service.storage.util.ContentHash;
+import service.storage.util.StorageException;
+import service.storage.util.StorageFileNotFoundException;
+
+/**
+ * Stores Images by appending them to large segment files, instead of keeping one file per Image.
+ * An in-memory index maps each Image to its region of a segment, so reading an Image costs no lookup on disk,
+ * and Images are served straight from the segment with positional reads.
+ * <p>
+ * Each record is a header (id, time, SHA-256 hash and length) followed by the Image. Deleting an Image appends
+ * a tombstone record. Once a segment is full, it is never written again and its records are listed in an index file
+ * next to it, so the index is rebuilt on startup from the index files, only the segment still being written is scanned.
+ * Index files are checksummed and renamed into place once complete, so the content of an Image can't pass for one.
+ * A background compactor copies the live Images of segments holding mostly deleted or replaced ones
+ * to the active segment and retires them: the index file of a retired segment is renamed, so it is skipped
+ * and deleted on startup, and the segment is deleted once no lookup has used it for the retire delay,
+ * so the reads still streaming from it complete.
+ */
+@Service
+@ConditionalOnProperty(name="storage.backend", havingValue="segments")
+public class SegmentStorageService implements StorageService {
+
+	public static final Logger logger = LoggerFactory.getLogger(SegmentStorageService.class);
+
+	private static final int RECORD_MAGIC = 0x494d4731;
+	private static final long INDEX_MAGIC = 0x494d47494e445831L;
+	private static final byte PUT = 0;
+	private static final byte TOMBSTONE = 1;
+	private static final int HASH_LENGTH = 32;
+	// Magic, type and length of the id
+	private static final int HEADER_PREFIX = 4+1+2;
+	// Time, hash and length of the Image
+	private static final int HEADER_SUFFIX = 8+HASH_LENGTH+8;
+	// Size of the segment, number of records, CRC-32 of the index file up to it and magic
+	private static final int TRAILER = 8+4+4+8;
+
+	private final Path segmentLocation;
+	private final ApplicationEventPublisher events;
+	private final long maxSegmentBytes;
+	private final long maxImageBytes;
+	private final double compactionThreshold;
+	private final long retireDelay;
+
+	private final ConcurrentMap<String, Location> index = new ConcurrentHashMap<>();
+	// Guards the segments, the active segment and the records appended to it
+	private final Object writeLock = new Object();
+	private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+	private Segment active;
+	private FileChannel activeChannel;
+	private final List<Record> activeRecords = new ArrayList<>();
+	// Compacted segments, deleted once the reads still using them can have completed
+	private final List<Segment> retired = new ArrayList<>();
+
+	/**
+	 * A segment file.
+	 */
+	private static final class Segment {
+		final int id;
+		final Path path;
+		long size;
+		// Bytes of records that were replaced or deleted, and of tombstones
+		long deadBytes;
+		// Ids of the Images stored in the segment, live or not, so a tombstone outlives them
+		final Set<String> imgIds = new HashSet<>();
+		// Time of the last lookup of one of its Images, and time it was retired
+		volatile long lastRead;
+		long retiredAt;
+
+		Segment(int id, Path path) {
+			this.id = id;
+			this.path = path;
+		}
+	}
+
+	/**
+	 * A record of a segment, as described by its header or by the index file of the segment.
+	 */
+	private static final class Record {
+		final byte type;
+		final String imgId;
+		final long timestamp;
+		final byte[] hash;
+		// Position of the Image in the segment
+		final long offset;
+		final long length;
+
+		Record(byte type, String imgId, long timestamp, byte[] hash, long offset, long length) {
+			this.type = type;
+			this.imgId = imgId;
+			this.timestamp = timestamp;
+			this.hash = hash;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		int headerSize() {
+			return HEADER_PREFIX+imgId.getBytes(StandardCharsets.UTF_8).length+HEADER_SUFFIX;
+		}
+
+		long size() {
+			return headerSize()+length;
+		}
+	}
+
+	/**
+	 * Where the current version of an Image is stored.
+	 */
+	private static final class Location {
+		final Segment segment;
+		final Record record;
+
+		Location(Segment segment, Record record) {
+			this.segment = segment;
+			this.record = record;
+		}
+	}
+
+	/**
+	 * Creates an instance of SegmentStorageService to handle the operations involved with Images.
+	 * @param layout Layout of the local Image store, the segments are kept in its root folder.
+	 * @param events Publisher of the changes made to Images.
+	 * @param maxSegmentBytes Size above which a segment is sealed and a new one is started.
+	 * @param maxImageBytes Maximum size of an Image.
+	 * @param compactionThreshold Share of dead bytes above which a segment is compacted.
+	 * @param retireDelay Number of milliseconds a compacted segment is kept after its last lookup.
+	 */
+	@Autowired
+	public SegmentStorageService(StorageLayout layout, ApplicationEventPublisher events,
+			@Value("${storage.segments.max-bytes:268435456}") long maxSegmentBytes,
+			@Value("${storage.max-image-bytes:524288000}") long maxImageBytes,
+			@Value("${storage.segments.compaction-threshold:0.5}") double compactionThreshold,
+			@Value("${storage.segments.retire-delay:60000}") long retireDelay) {
+		this.segmentLocation = layout.getRootLocation().resolve("segments");
+		this.events = events;
+		this.maxSegmentBytes = maxSegmentBytes;
+		this.maxImageBytes = maxImageBytes;
+		this.compactionThreshold = compactionThreshold;
+		this.retireDelay = retireDelay;
+	}
+
+	@Override
+	public void init() {
+		try {
+			Files.createDirectories(segmentLocation);
+		} catch (IOException e) {
+			throw new StorageException("Could not initialize storage", e);
+		}
+	}
+
+	/**
+	 * Rebuilds the index from the segments, before any request is served. The retired segments are deleted.
+	 */
+	@PostConstruct
+	public void open() {
+		init();
+		synchronized (writeLock) {
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(segmentLocation, "segment-*.dat")) {
+				for (Path file : files) {
+					String name = file.getFileName().toString();
+					int id = Integer.parseInt(name.substring("segment-".length(), name.length()-".dat".length()));
+					Segment segment = new Segment(id, file);
+					// Its Images were copied to a later segment, nothing reads it before the service starts
+					if (Files.exists(retiredOf(segment)))
+						Files.delete(file);
+					else
+						segments.put(id, segment);
+				}
+				// Left by a segment deleted after it was retired
+				try (DirectoryStream<Path> markers = Files.newDirectoryStream(segmentLocation, "segment-*.retired")) {
+					for (Path marker : markers)
+						Files.delete(marker);
+				}
+				for (Segment segment : segments.values()) {
+					List<Record> records = readIndex(segment);
+					boolean sealed = records != null;
+					if (!sealed) {
+						records = scan(segment);
+						// Only the last segment is still being written, an earlier one was being sealed when the service stopped
+						if (segment.id != segments.lastKey()) {
+							seal(segment, records);
+							sealed = true;
+						}
+					}
+					for (Record record : records)
+						apply(segment, record);
+					if (!sealed) {
+						activate(segment);
+						activeRecords.addAll(records);
+					}
+				}
+				if (active == null)
+					roll();
+			} catch (IOException e) {
+				throw new StorageException("Could not open the segments in "+segmentLocation+".", e);
+			}
+		}
+		logger.info("Indexed {} Images in {} segments.", index.size(), segments.size());
+	}
+
+	/**
+	 * Closes the active segment. The retired segments may still be read until the server stops, they are deleted on startup.
+	 */
+	@PreDestroy
+	public void close() {
+		synchronized (writeLock) {
+			try {
+				if (activeChannel != null)
+					activeChannel.close();
+				activeChannel = null;
+			} catch (IOException e) {
+				logger.error("Could not close the segments.", e);
+			}
+		}
+	}
+
+	@Override
+	public String store(MultipartFile img) {
+		String filename = StringUtils.cleanPath(img.getOriginalFilename());
+		// Check if file is empty
+		if (img.isEmpty())
+			throw new StorageException("Failed to store empty Image " + filename + ".");
+		// Security check
+		if (filename.contains(".."))
+			throw new StorageException("Failed to store Image " + filename +" with invalid name.");
+		try {
+			String imgId = RandomStringUtils.randomAlphanumeric(20);
+			write(img, imgId);
+			events.publishEvent(new ImgChangedEvent(this, imgId, ImgChangedEvent.Type.STORED));
+			return imgId;
+		} catch (Exception e) {
+			throw new StorageException("Failed to store Image.", e);
+		}
+	}
+
+	@Override
+	public StoredImg load(String imgId) {
+		return find(imgId).orElseThrow(() -> new StorageFileNotFoundException("Image with id "+imgId+" not in local Database."));
+	}
+
+	@Override
+	public Optional<StoredImg> find(String imgId) {
+		Location location = index.get(imgId);
+		if (location == null)
+			return Optional.empty();
+		Record record = location.record;
+		location.segment.lastRead = System.currentTimeMillis();
+		return Optional.of(new StoredImg(location.segment.path.toFile(), record.offset, record.length, record.timestamp, ContentHash.hex(record.hash)));
+	}
+
+	@Override
+	public String update(MultipartFile img, String imgId) {
+		String filename = StringUtils.cleanPath(img.getOriginalFilename());
+		// Check if image is empty
+		if (img.isEmpty())
+			throw new StorageException("Failed to store empty Image " + filename + ".");
+		// Security check
+		if (filename.contains(".."))
+			throw new StorageException("Failed to store Image " + filename +" with invalid name.");
+		if (!index.containsKey(imgId))
+			throw new StorageFileNotFoundException("Image with id "+imgId+" not in local Database.");
+		try {
+			write(img, imgId);
+			events.publishEvent(new ImgChangedEvent(this, imgId, ImgChangedEvent.Type.UPDATED));
+			return "Image with id "+imgId+" was successfully updated.";
+		} catch (Exception e) {
+			throw new StorageException("Failed to store image.", e);
+		}
+	}
+
+	@Override
+	public String delete(String imgId) {
+		try {
+			boolean deleted;
+			synchronized (writeLock) {
+				deleted = index.containsKey(imgId);
+				if (deleted)
+					append(new Record(TOMBSTONE, imgId, System.currentTimeMillis(), new byte[HASH_LENGTH], 0, 0), null);
+			}
+			if (!deleted)
+				throw new StorageFileNotFoundException("Image with id "+imgId+" not in local Database.");
+			events.publishEvent(new ImgChangedEvent(this, imgId, ImgChangedEvent.Type.DELETED));
+			return "Image with id "+imgId+" was successfully deleted.";
+		} catch (StorageFileNotFoundException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new StorageException("Could not delete requested Image.", e);
+		}
+	}
+
+	/**
+	 * Checks if an Image exists.
+	 * @param imgId Image's id.
+	 * @return True if the Image exists, False otherwise.
+	 */
+	@Override
+	public boolean imgExists(String imgId) {
+		return index.containsKey(imgId);
+	}
+
+	/**
+	 * Copies the live Images of the segments holding mostly dead bytes to the active segment, and retires those segments.
+	 * Deletes the segments retired before, once no lookup has used them for the retire delay.
+	 */
+	@Scheduled(fixedDelayString="${storage.segments.compaction-interval:600000}")
+	public void compact() {
+		List<Segment> candidates = new ArrayList<>();
+		synchronized (writeLock) {
+			long now = System.currentTimeMillis();
+			for (Iterator<Segment> it = retired.iterator(); it.hasNext(); ) {
+				Segment segment = it.next();
+				// Sendfile opens the segment after the request is handled, a lookup made before it was retired may not have yet
+				if (now-Math.max(segment.retiredAt, segment.lastRead) < retireDelay)
+					continue;
+				try {
+					// The segment first, a marker left alone is deleted on startup
+					Files.deleteIfExists(segment.path);
+					Files.deleteIfExists(retiredOf(segment));
+					it.remove();
+				} catch (IOException e) {
+					logger.error("Could not delete the compacted segment {}.", segment.path, e);
+				}
+			}
+			for (Segment segment : segments.values())
+				if (segment != active && segment.deadBytes > segment.size*compactionThreshold)
+					candidates.add(segment);
+		}
+		for (Segment segment : candidates) {
+			try {
+				compact(segment);
+			} catch (IOException e) {
+				logger.error("Could not compact segment {}.", segment.path, e);
+			}
+		}
+	}
+
+	private void compact(Segment segment) throws IOException {
+		List<Record> records = readIndex(segment);
+		if (records == null)
+			return;
+		long moved = 0;
+		try (FileChannel source = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+			for (Record record : records) {
+				// Appending record by record lets writes go on during the compaction
+				synchronized (writeLock) {
+					Location location = index.get(record.imgId);
+					if (record.type == PUT && location != null && location.segment == segment && location.record.offset == record.offset) {
+						append(record, source);
+						moved++;
+					} else if (record.type == TOMBSTONE && location == null && isHeldBefore(segment, record.imgId)) {
+						// The tombstone must outlive the older versions of the Image
+						append(record, null);
+					}
+				}
+			}
+		}
+		synchronized (writeLock) {
+			// The copies must be on disk before the segment is retired
+			activeChannel.force(false);
+			Files.move(indexOf(segment), retiredOf(segment), StandardCopyOption.ATOMIC_MOVE);
+			syncDirectory();
+			segments.remove(segment.id);
+			segment.retiredAt = System.currentTimeMillis();
+			retired.add(segment);
+		}
+		logger.info("Compacted segment {}, {} Images moved.", segment.path, moved);
+	}
+
+	/**
+	 * Checks if a segment older than the given one stores a version of an Image. Must hold the write lock.
+	 */
+	private boolean isHeldBefore(Segment segment, String imgId) {
+		for (Segment older : segments.headMap(segment.id).values())
+			if (older.imgIds.contains(imgId))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Streams an upload to a temporary file in bounded chunks, hashing it on the way, then appends it to the active segment.
+	 */
+	private void write(MultipartFile img, String imgId) throws IOException {
+		Path tmp = Files.createTempFile(segmentLocation, imgId, ".tmp");
+		try {
+			MessageDigest digest = ContentHash.sha256();
+			try (InputStream in = img.getInputStream()) {
+				ChunkedCopy.copy(in, tmp, maxImageBytes, digest);
+			}
+			try (FileChannel source = FileChannel.open(tmp, StandardOpenOption.READ)) {
+				Record record = new Record(PUT, imgId, System.currentTimeMillis(), digest.digest(), 0, source.size());
+				synchronized (writeLock) {
+					append(record, source);
+				}
+			}
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	/**
+	 * Appends a record to the active segment and applies it to the index. Must hold the write lock.
+	 * @param record Record to append, its offset is the position of the Image in the source.
+	 * @param source File holding the Image, null for tombstones.
+	 */
+	private void append(Record record, FileChannel source) throws IOException {
+		if (active.size > 0 && active.size+record.size() > maxSegmentBytes)
+			roll();
+		long position = active.size;
+		byte[] id = record.imgId.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer header = ByteBuffer.allocate(record.headerSize());
+		header.putInt(RECORD_MAGIC).put(record.type).putShort((short) id.length).put(id)
+			.putLong(record.timestamp).put(record.hash).putLong(record.length);
+		header.flip();
+		writeFully(header, position);
+		Record appended = new Record(record.type, record.imgId, record.timestamp, record.hash, position+header.capacity(), record.length);
+		for (long done = 0; done < record.length; )
+			done += activeChannel.transferFrom(source.position(record.offset+done), appended.offset+done, record.length-done);
+		active.size = appended.offset+appended.length;
+		activeRecords.add(appended);
+		apply(active, appended);
+	}
+
+	/**
+	 * Makes the index point to the latest version of an Image, counting what it replaces as dead.
+	 */
+	private void apply(Segment segment, Record record) {
+		Location previous = record.type == PUT ? index.put(record.imgId, new Location(segment, record)) : index.remove(record.imgId);
+		if (record.type == PUT)
+			segment.imgIds.add(record.imgId);
+		if (previous != null)
+			previous.segment.deadBytes += previous.record.size();
+		if (record.type == TOMBSTONE)
+			segment.deadBytes += record.size();
+	}
+
+	/**
+	 * Seals the active segment and starts a new one. Must hold the write lock.
+	 */
+	private void roll() throws IOException {
+		int id = 1;
+		if (active != null) {
+			seal(active, activeRecords);
+			activeChannel.close();
+		}
+		if (!segments.isEmpty())
+			id = segments.lastKey()+1;
+		Segment segment = new Segment(id, segmentLocation.resolve(String.format("segment-%08d.dat", id)));
+		// Left by a segment removed before the service stopped
+		Files.deleteIfExists(indexOf(segment));
+		Files.deleteIfExists(retiredOf(segment));
+		segments.put(id, segment);
+		activate(segment);
+		activeRecords.clear();
+	}
+
+	private void activate(Segment segment) throws IOException {
+		active = segment;
+		activeChannel = FileChannel.open(segment.path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+	}
+
+	/**
+	 * Writes the index file listing the records of a segment, which seals it.
+	 */
+	private void seal(Segment segment, List<Record> records) throws IOException {
+		int indexSize = TRAILER;
+		for (Record record : records)
+			indexSize += record.headerSize()-4+8;
+		ByteBuffer data = ByteBuffer.allocate(indexSize);
+		for (Record record : records) {
+			byte[] id = record.imgId.getBytes(StandardCharsets.UTF_8);
+			data.put(record.type).putShort((short) id.length).put(id)
+				.putLong(record.timestamp).put(record.hash).putLong(record.length).putLong(record.offset);
+		}
+		data.putLong(segment.size).putInt(records.size());
+		CRC32 crc = new CRC32();
+		crc.update(data.array(), 0, data.position());
+		data.putInt((int) crc.getValue()).putLong(INDEX_MAGIC);
+		data.flip();
+		// The records must be on disk before the index file listing them
+		try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.WRITE)) {
+			channel.force(false);
+		}
+		Path index = indexOf(segment);
+		Path tmp = index.resolveSibling(index.getFileName()+".tmp");
+		try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			while (data.hasRemaining())
+				channel.write(data);
+			channel.force(false);
+		}
+		Files.move(tmp, index, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Reads the records of a sealed segment from its index file.
+	 * @return The records, or null if the segment is not sealed or its index file is corrupted.
+	 */
+	private List<Record> readIndex(Segment segment) throws IOException {
+		Path index = indexOf(segment);
+		if (!Files.exists(index))
+			return null;
+		byte[] content = Files.readAllBytes(index);
+		if (content.length < TRAILER) {
+			logger.warn("Ignoring the truncated index file {}.", index);
+			return null;
+		}
+		ByteBuffer data = ByteBuffer.wrap(content);
+		data.position(content.length-TRAILER);
+		long size = data.getLong();
+		int count = data.getInt();
+		int checksum = data.getInt();
+		CRC32 crc = new CRC32();
+		crc.update(content, 0, content.length-TRAILER+8+4);
+		if (data.getLong() != INDEX_MAGIC || checksum != (int) crc.getValue()) {
+			logger.warn("Ignoring the corrupted index file {}.", index);
+			return null;
+		}
+		long segmentSize = Files.size(segment.path);
+		if (size < 0 || size > segmentSize || count < 0) {
+			logger.warn("Ignoring the index file {}, which does not match its segment.", index);
+			return null;
+		}
+		data.rewind().limit(content.length-TRAILER);
+		List<Record> records = new ArrayList<>();
+		try {
+			for (int i = 0; i < count; i++) {
+				byte type = data.get();
+				byte[] id = new byte[data.getShort() & 0xffff];
+				data.get(id);
+				long timestamp = data.getLong();
+				byte[] hash = new byte[HASH_LENGTH];
+				data.get(hash);
+				long length = data.getLong();
+				long offset = data.getLong();
+				if (length < 0 || offset < 0 || offset+length > size) {
+					logger.warn("Ignoring the index file {}, which does not match its segment.", index);
+					return null;
+				}
+				records.add(new Record(type, new String(id, StandardCharsets.UTF_8), timestamp, hash, offset, length));
+			}
+		} catch (BufferUnderflowException e) {
+			logger.warn("Ignoring the index file {}, which lists more records than it holds.", index);
+			return null;
+		}
+		segment.size = size;
+		return records;
+	}
+
+	/**
+	 * Reads the records of a segment that was not sealed, cutting off a record that was partially written.
+	 */
+	private List<Record> scan(Segment segment) throws IOException {
+		List<Record> records = new ArrayList<>();
+		try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			long size = channel.size();
+			long position = 0;
+			while (position+HEADER_PREFIX <= size) {
+				ByteBuffer prefix = read(channel, position, HEADER_PREFIX);
+				if (prefix.getInt() != RECORD_MAGIC)
+					break;
+				byte type = prefix.get();
+				int idLength = prefix.getShort() & 0xffff;
+				if (position+HEADER_PREFIX+idLength+HEADER_SUFFIX > size)
+					break;
+				ByteBuffer rest = read(channel, position+HEADER_PREFIX, idLength+HEADER_SUFFIX);
+				byte[] id = new byte[idLength];
+				rest.get(id);
+				long timestamp = rest.getLong();
+				byte[] hash = new byte[HASH_LENGTH];
+				rest.get(hash);
+				long length = rest.getLong();
+				long offset = position+HEADER_PREFIX+idLength+HEADER_SUFFIX;
+				if (length < 0 || offset+length > size)
+					break;
+				records.add(new Record(type, new String(id, StandardCharsets.UTF_8), timestamp, hash, offset, length));
+				position = offset+length;
+			}
+			if (position < size) {
+				logger.warn("Truncating segment {} from {} to {} bytes, its last record was not completely written.", segment.path, size, position);
+				channel.truncate(position);
+			}
+			segment.size = position;
+		}
+		return records;
+	}
+
+	private static Path indexOf(Segment segment) {
+		String name = segment.path.getFileName().toString();
+		return segment.path.resolveSibling(name.substring(0, name.length()-".dat".length())+".idx");
+	}
+
+	private static Path retiredOf(Segment segment) {
+		String name = segment.path.getFileName().toString();
+		return segment.path.resolveSibling(name.substring(0, name.length()-".dat".length())+".retired");
+	}
+
+	/**
+	 * Makes the renames in the segments folder durable.
+	 */
+	private void syncDirectory() {
+		try (FileChannel directory = FileChannel.open(segmentLocation, StandardOpenOption.READ)) {
+			directory.force(true);
+		} catch (IOException e) {
+			// Not every platform can open a directory, the rename is durable once the file system syncs it
+		}
+	}
+
+	private void writeFully(ByteBuffer data, long position) throws IOException {
+		while (data.hasRemaining())
+			activeChannel.write(data, position+data.position());
+	}
+
+	private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer data = ByteBuffer.allocate(length);
+		while (data.hasRemaining())
+			if (channel.read(data, position+data.position()) < 0)
+				throw new IOException("Unexpected end of segment at "+(position+data.position())+".");
+		data.flip();
+		return data;
+	}
+}
@@ -0,0 +1,126 @@
+package service.storage.service;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import service.storage.util.StorageException;
+
+/**
+ * Maps Image ids to their location in the local file system.
+ * In the sharded layout an Image is stored as imgs/ab/cd/id.jpg, where ab and cd are taken from a hash of its id,
+ * so the size of each directory stays small no matter how many Images are stored.
+ */
+@Component
+public class StorageLayout {
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final Path rootLocation;
+	private final boolean sharded;
+	private final int levels;
+
+	/**
+	 * Creates the layout of the local Image store.
+	 * @param location Root folder of the store.
+	 * @param layout Either "flat" or "sharded".
+	 * @param levels Number of directory levels used by the sharded layout.
+	 */
+	@Autowired
+	public StorageLayout(@Value("${storage.location:imgs}") String location,
+			@Value("${storage.layout:sharded}") String layout,
+			@Value("${storage.shard-levels:2}") int levels) {
+		if (levels < 1 || levels > 4)
+			throw new StorageException("Invalid number of shard levels "+levels+", expected between 1 and 4.");
+		this.rootLocation = Paths.get(location);
+		this.sharded = "sharded".equalsIgnoreCase(layout);
+		this.levels = levels;
+	}
+
+	/**
+	 * Returns the root folder of the store.
+	 * @return Root folder of the store.
+	 */
+	public Path getRootLocation() {
+		return rootLocation;
+	}
+
+	/**
+	 * Checks if the store uses the sharded layout.
+	 * @return True if Images are stored in sharded directories, False otherwise.
+	 */
+	public boolean isSharded() {
+		return sharded;
+	}
+
+	/**
+	 * Returns where an Image is stored in the configured layout.
+	 * @param imgId Image's id.
+	 * @return Path of the Image, which might not exist yet.
+	 */
+	public Path resolve(String imgId) {
+		if (!sharded)
+			return resolveFlat(imgId);
+		return rootLocation.resolve(shardOf(imgId)).resolve(imgId+".jpg");
+	}
+
+	/**
+	 * Returns where an Image is stored in the flat layout.
+	 * @param imgId Image's id.
+	 * @return Path of the Image directly under the root folder.
+	 */
+	public Path resolveFlat(String imgId) {
+		return rootLocation.resolve(imgId+".jpg");
+	}
+
+	/**
+	 * Returns the sidecar file holding the entity tag of an Image, stored next to it.
+	 * @param img Path of the Image.
+	 * @return Path of the sidecar file.
+	 */
+	public Path sidecarOf(Path img) {
+		String name = img.getFileName().toString();
+		return img.resolveSibling(name.substring(0, name.length()-".jpg".length())+".sha256");
+	}
+
+	/**
+	 * Finds an existing Image, looking in the flat layout for Images that were not migrated yet.
+	 * @param imgId Image's id.
+	 * @return Path of the Image, or its path in the configured layout if it does not exist.
+	 */
+	public Path locate(String imgId) {
+		Path img = resolve(imgId);
+		if (!sharded || Files.exists(img))
+			return img;
+		Path flat = resolveFlat(imgId);
+		return Files.exists(flat) ? flat : img;
+	}
+
+	/**
+	 * Returns the shard directory of an Image, e.g. "ab/cd".
+	 * @param imgId Image's id.
+	 * @return Relative path of the shard directory.
+	 */
+	public String shardOf(String imgId) {
+		byte[] hash;
+		try {
+			hash = MessageDigest.getInstance("MD5").digest(imgId.getBytes(StandardCharsets.UTF_8));
+		} catch (NoSuchAlgorithmException e) {
+			throw new StorageException("Could not compute the shard of Image "+imgId+".", e);
+		}
+		StringBuilder shard = new StringBuilder(levels*3);
+		for (int i = 0; i < levels; i++) {
+			if (i > 0)
+				shard.append('/');
+			shard.append(HEX[(hash[i] >> 4) & 0xf]).append(HEX[hash[i] & 0xf]);
+		}
+		return shard.toString();
+	}
+}
@@ -0,0 +1,105 @@
+package service.storage.service;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import service.storage.util.StorageException;
+
+/**
+ * Moves the Images of a flat store into the sharded layout while the service keeps running.
+ * Each Image is moved atomically, and the storage service looks in both layouts
+ * until the migration ends, so no Image is ever unavailable.
+ */
+@Component
+public class StorageMigrator {
+
+	public static final Logger logger = LoggerFactory.getLogger(StorageMigrator.class);
+
+	private final StorageLayout layout;
+
+	/**
+	 * Creates a migrator for the specified layout.
+	 * @param layout Layout of the local Image store.
+	 */
+	@Autowired
+	public StorageMigrator(StorageLayout layout) {
+		this.layout = layout;
+	}
+
+	/**
+	 * Moves every Image found directly under the root folder into its shard.
+	 * @return Number of Images moved.
+	 */
+	public int migrate() {
+		if (!layout.isSharded())
+			return 0;
+		int moved = 0;
+		try (DirectoryStream<Path> imgs = Files.newDirectoryStream(layout.getRootLocation(), "*.jpg")) {
+			for (Path flat : imgs) {
+				String name = flat.getFileName().toString();
+				if (migrate(flat, name.substring(0, name.length()-".jpg".length())))
+					moved++;
+			}
+		} catch (IOException e) {
+			throw new StorageException("Could not migrate the Image store.", e);
+		}
+		logger.info("Moved {} Images into the sharded layout.", moved);
+		return moved;
+	}
+
+	private boolean migrate(Path flat, String imgId) throws IOException {
+		Path sharded = layout.resolve(imgId);
+		Files.createDirectories(sharded.getParent());
+		// Move the entity tag first, a missing one is just computed again
+		try {
+			if (!moveWithoutReplacing(layout.sidecarOf(flat), layout.sidecarOf(sharded)))
+				// Written by an update meanwhile, so the flat one is stale
+				Files.deleteIfExists(layout.sidecarOf(flat));
+		} catch (NoSuchFileException e) {
+			// Image stored before entity tags existed
+		}
+		try {
+			if (moveWithoutReplacing(flat, sharded))
+				return true;
+			// The Image was updated meanwhile, so the flat copy is stale
+			Files.deleteIfExists(flat);
+		} catch (NoSuchFileException e) {
+			// The Image was deleted or updated meanwhile
+		}
+		return false;
+	}
+
+	/**
+	 * Moves a file unless the target already exists.
+	 * @return True if the file was moved, False if the target exists.
+	 * @throws NoSuchFileException If the file doesn't exist.
+	 */
+	private static boolean moveWithoutReplacing(Path source, Path target) throws IOException {
+		try {
+			// Linking never replaces an existing file, unlike a rename
+			try {
+				Files.createLink(target, source);
+			} catch (FileAlreadyExistsException | NoSuchFileException e) {
+				throw e;
+			} catch (UnsupportedOperationException | FileSystemException e) {
+				// The file system has no hard links, a move without replacing does the same
+				Files.move(source, target);
+				return true;
+			}
+			Files.delete(source);
+			return true;
+		} catch (FileAlreadyExistsException e) {
+			return false;
+		}
+	}
+}
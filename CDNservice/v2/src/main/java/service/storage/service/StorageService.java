@@ -1,13 +1,23 @@
 package service.storage.service;
 
-import org.springframework.core.io.Resource;
+import java.util.Optional;
+
 import org.springframework.web.multipart.MultipartFile;
 
+import service.storage.model.StoredImg;
+
 public interface StorageService {
 
 	String store(MultipartFile img);
 	
-	Resource load(String id);
+	StoredImg load(String id);
+	
+	/**
+	 * Looks an Image up once, instead of checking that it exists and then loading it.
+	 * @param id Image's id.
+	 * @return The Image, or an empty Optional if it does not exist.
+	 */
+	Optional<StoredImg> find(String id);
 	
 	String update(MultipartFile img, String id);
 	
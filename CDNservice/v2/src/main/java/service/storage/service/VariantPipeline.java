@@ -0,0 +1,336 @@
+package service.storage.service;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import service.storage.model.StoredImg;
+import service.storage.model.VariantSpec;
+import service.storage.util.StorageException;
+
+/**
+ * Generates the preset variants of an Image in background as soon as it is stored or updated,
+ * so the first reader doesn't pay for the resize.
+ * Jobs wait in a bounded queue: when it is full, the thread storing the Image generates its variants itself,
+ * which slows down uploads instead of piling up work. Jobs are written to a journal until they complete,
+ * so the ones still pending when the service stops are resumed on the next startup.
+ * The journal is written by its own thread, which forces the lines recorded meanwhile to disk at once,
+ * so storing an Image doesn't wait for the disk: a job recorded just before a crash can be lost,
+ * its variants are then generated when they are first requested.
+ */
+@Component
+public class VariantPipeline {
+
+	public static final Logger logger = LoggerFactory.getLogger(VariantPipeline.class);
+
+	// Number of completed jobs after which the journal is rewritten with the pending ones only
+	private static final int COMPACTION_THRESHOLD = 10000;
+
+	private final StorageService storageService;
+	private final VariantService variantService;
+	private final Path journalLocation;
+	private final boolean enabled;
+	private final ThreadPoolExecutor workers;
+	// Images waiting in the queue, a job is not queued twice
+	private final Set<String> queued = ConcurrentHashMap.newKeySet();
+	private volatile boolean closed;
+
+	private final Object journalLock = new Object();
+	// Number of journaled jobs not completed yet for each Image
+	private final Map<String, Integer> journaled = new HashMap<>();
+	// Journal lines recorded but not written yet
+	private List<String> unwritten = new ArrayList<>();
+	private int completedSinceCompaction;
+	private Thread journalWriter;
+	// Only used by the journal writer once started
+	private FileChannel journalChannel;
+	private BufferedWriter journal;
+
+	private final Timer wait;
+	private final Timer processing;
+	private final Counter failures;
+
+	/**
+	 * Creates the variant pipeline.
+	 * @param layout Layout of the local Image store, which holds the journal.
+	 * @param storageService Service storing the original Images.
+	 * @param variantService Service producing the variants.
+	 * @param registry Registry where the pipeline metrics are published.
+	 * @param enabled Whether the preset variants are generated ahead of time.
+	 * @param workers Number of threads generating variants.
+	 * @param queueCapacity Maximum number of Images waiting for their variants.
+	 */
+	@Autowired
+	public VariantPipeline(StorageLayout layout, StorageService storageService, VariantService variantService, MeterRegistry registry,
+			@Value("${storage.variants.eager:true}") boolean enabled,
+			@Value("${storage.variants.workers:2}") int workers,
+			@Value("${storage.variants.queue-capacity:1000}") int queueCapacity) {
+		this.storageService = storageService;
+		this.variantService = variantService;
+		this.journalLocation = layout.getRootLocation().resolve("variants.journal");
+		this.enabled = enabled;
+		AtomicInteger threads = new AtomicInteger();
+		this.workers = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueCapacity),
+				job -> {
+					Thread worker = new Thread(job, "variant-worker-"+threads.incrementAndGet());
+					worker.setDaemon(true);
+					return worker;
+				},
+				new ThreadPoolExecutor.CallerRunsPolicy());
+		this.wait = registry.timer("storage.variants.pipeline.wait");
+		this.processing = registry.timer("storage.variants.pipeline.processing");
+		this.failures = registry.counter("storage.variants.pipeline.failures");
+		registry.gauge("storage.variants.pipeline.queue.depth", this.workers.getQueue(), Collection::size);
+	}
+
+	/**
+	 * Opens the journal and resumes the jobs that were pending when the service stopped.
+	 */
+	@PostConstruct
+	public void init() {
+		if (!enabled)
+			return;
+		List<String> pending;
+		synchronized (journalLock) {
+			try {
+				Files.createDirectories(journalLocation.getParent());
+				if (Files.exists(journalLocation)) {
+					for (String line : Files.readAllLines(journalLocation, StandardCharsets.UTF_8)) {
+						if (line.length() < 3)
+							continue;
+						String imgId = line.substring(2);
+						journaled.merge(imgId, line.charAt(0) == '+' ? 1 : -1, Integer::sum);
+					}
+					journaled.values().removeIf(count -> count <= 0);
+				}
+				compact(journaled);
+			} catch (IOException e) {
+				throw new StorageException("Could not open the variant journal "+journalLocation+".", e);
+			}
+			pending = new ArrayList<>(journaled.keySet());
+		}
+		journalWriter = new Thread(this::writeJournal, "variant-journal");
+		journalWriter.setDaemon(true);
+		journalWriter.start();
+		if (!pending.isEmpty())
+			logger.info("Resuming the variant generation of {} Images.", pending.size());
+		for (String imgId : pending)
+			enqueue(imgId);
+	}
+
+	/**
+	 * Stops the workers, the jobs still pending stay in the journal.
+	 */
+	@PreDestroy
+	public void close() {
+		// Set before interrupting the workers, so the jobs they were running are not completed
+		closed = true;
+		workers.shutdownNow();
+		if (journalWriter == null)
+			return;
+		synchronized (journalLock) {
+			journalLock.notifyAll();
+		}
+		try {
+			// The writer writes the lines still recorded before it stops
+			journalWriter.join(5000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			closeJournal();
+		} catch (IOException e) {
+			logger.error("Could not close the variant journal.", e);
+		}
+	}
+
+	/**
+	 * Queues the generation of the preset variants of an Image when it is stored or updated.
+	 * @param event Change of an Image.
+	 */
+	@EventListener
+	public void onImgChanged(ImgChangedEvent event) {
+		if (event.getType() != ImgChangedEvent.Type.DELETED)
+			submit(event.getImgId());
+	}
+
+	/**
+	 * Queues the generation of the preset variants of an Image.
+	 * @param imgId Image's id.
+	 */
+	public void submit(String imgId) {
+		if (!enabled)
+			return;
+		synchronized (journalLock) {
+			record('+', imgId);
+			journaled.merge(imgId, 1, Integer::sum);
+		}
+		enqueue(imgId);
+	}
+
+	private void enqueue(String imgId) {
+		// Already waiting, the queued job will read the latest version of the Image
+		if (!queued.add(imgId)) {
+			complete(imgId);
+			return;
+		}
+		long queuedAt = System.nanoTime();
+		workers.execute(() -> process(imgId, queuedAt));
+	}
+
+	private void process(String imgId, long queuedAt) {
+		// Removed before reading the Image, so an update made meanwhile queues a new job
+		queued.remove(imgId);
+		wait.record(System.nanoTime()-queuedAt, TimeUnit.NANOSECONDS);
+		long start = System.nanoTime();
+		try {
+			// The Image might have been deleted while it was queued
+			Optional<StoredImg> original = storageService.find(imgId);
+			if (original.isPresent())
+				for (VariantSpec spec : VariantSpec.PRESETS.values())
+					variantService.load(imgId, original.get(), spec);
+		} catch (Exception e) {
+			// The variants will be generated when they are first requested
+			failures.increment();
+			logger.error("Could not generate the variants of Image {}.", imgId, e);
+		} finally {
+			processing.record(System.nanoTime()-start, TimeUnit.NANOSECONDS);
+			// A job interrupted by the shutdown stays in the journal, to be resumed on the next startup
+			if (!closed && !Thread.currentThread().isInterrupted())
+				complete(imgId);
+		}
+	}
+
+	private void complete(String imgId) {
+		synchronized (journalLock) {
+			Integer count = journaled.get(imgId);
+			if (count == null)
+				return;
+			if (count <= 1)
+				journaled.remove(imgId);
+			else
+				journaled.put(imgId, count-1);
+			record('-', imgId);
+			completedSinceCompaction++;
+		}
+	}
+
+	/**
+	 * Records a journal line, to be written by the journal writer. Must hold the journal lock.
+	 */
+	private void record(char op, String imgId) {
+		unwritten.add(op+" "+imgId);
+		journalLock.notifyAll();
+	}
+
+	/**
+	 * Writes the recorded lines to the journal until the pipeline is closed, forcing each batch to disk once,
+	 * or rewrites the journal when enough jobs have completed.
+	 */
+	private void writeJournal() {
+		while (true) {
+			List<String> lines;
+			Map<String, Integer> pending = null;
+			synchronized (journalLock) {
+				while (unwritten.isEmpty() && !closed) {
+					try {
+						journalLock.wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (unwritten.isEmpty())
+					return;
+				lines = unwritten;
+				unwritten = new ArrayList<>();
+				// The pending jobs include the ones of the lines recorded, which are not written again
+				if (completedSinceCompaction >= COMPACTION_THRESHOLD) {
+					pending = new HashMap<>(journaled);
+					completedSinceCompaction = 0;
+				}
+			}
+			try {
+				if (pending != null)
+					compact(pending);
+				else
+					append(lines);
+			} catch (IOException e) {
+				logger.error("Could not write to the variant journal.", e);
+			}
+		}
+	}
+
+	private void append(List<String> lines) throws IOException {
+		if (journal == null)
+			return;
+		for (String line : lines) {
+			journal.write(line);
+			journal.newLine();
+		}
+		journal.flush();
+		journalChannel.force(false);
+	}
+
+	/**
+	 * Rewrites the journal with the pending jobs only, renaming it into place once complete.
+	 * @param pending Number of pending jobs for each Image.
+	 */
+	private void compact(Map<String, Integer> pending) throws IOException {
+		closeJournal();
+		Path tmp = journalLocation.resolveSibling(journalLocation.getFileName()+".tmp");
+		try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			BufferedWriter out = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), -1));
+			for (Map.Entry<String, Integer> job : pending.entrySet())
+				for (int i = 0; i < job.getValue(); i++) {
+					out.write("+ "+job.getKey());
+					out.newLine();
+				}
+			out.flush();
+			channel.force(false);
+		}
+		Files.move(tmp, journalLocation, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		journalChannel = FileChannel.open(journalLocation, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		journal = new BufferedWriter(Channels.newWriter(journalChannel, StandardCharsets.UTF_8.newEncoder(), -1));
+	}
+
+	private void closeJournal() throws IOException {
+		try {
+			if (journal != null)
+				journal.close();
+		} finally {
+			journal = null;
+			journalChannel = null;
+		}
+	}
+}
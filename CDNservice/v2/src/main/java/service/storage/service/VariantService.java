@@ -0,0 +1,400 @@
+package service.storage.service;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Stream;
+
+import javax.annotation.PostConstruct;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+
+import service.storage.model.StoredImg;
+import service.storage.model.VariantSpec;
+import service.storage.util.StorageException;
+
+/**
+ * Produces resized JPEG variants of Images and caches them on disk, in a folder next to the original Image.
+ * Concurrent requests for the same variant share a single resize, and the variants of an Image are deleted
+ * when it is updated or deleted.
+ * So clients can't fill the disk with variants of every size, requested sizes are rounded up to the configured
+ * dimensions and qualities to the nearest configured quality, and the least recently used variants are deleted
+ * once all of them take more than the configured number of bytes.
+ */
+@Service
+public class VariantService {
+
+	public static final Logger logger = LoggerFactory.getLogger(VariantService.class);
+
+	private final StorageLayout layout;
+	// Decoding an Image takes a lot of memory, so only a few are resized at once
+	private final Semaphore resizes;
+	private final ConcurrentMap<Path, Resize> inFlight = new ConcurrentHashMap<>();
+	// Widths and heights variants are rounded up to, and qualities they are rounded to, both sorted
+	private final int[] dimensions;
+	private final int[] qualities;
+	private final long maxBytes;
+	// Variants on disk, the least recently used first, and their sizes
+	private final LinkedHashMap<Path, Long> cached = new LinkedHashMap<>(16, 0.75f, true);
+	private long cachedBytes;
+
+	/**
+	 * Creates the variant service.
+	 * @param layout Layout of the local Image store.
+	 * @param maxConcurrentResizes Maximum number of Images resized at once.
+	 * @param dimensions Comma-separated widths and heights of the variants, empty to only serve the presets.
+	 * @param qualities Comma-separated JPEG qualities of the variants.
+	 * @param maxBytes Number of bytes of variants kept on disk.
+	 */
+	@Autowired
+	public VariantService(StorageLayout layout, @Value("${storage.variants.max-concurrent-resizes:4}") int maxConcurrentResizes,
+			@Value("${storage.variants.dimensions:64,128,256,512,768,1024,1536,2048}") String dimensions,
+			@Value("${storage.variants.qualities:60,75,85,95}") String qualities,
+			@Value("${storage.variants.max-bytes:1073741824}") long maxBytes) {
+		this.layout = layout;
+		this.resizes = new Semaphore(maxConcurrentResizes);
+		this.dimensions = parse(dimensions, VariantSpec.MAX_DIMENSION);
+		this.qualities = parse(qualities, 100);
+		if (this.qualities.length == 0)
+			throw new IllegalArgumentException("At least one variant quality must be set.");
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Lists the variants already on disk, the least recently modified first, and deletes the ones over the limit.
+	 */
+	@PostConstruct
+	public void init() {
+		if (!Files.isDirectory(layout.getRootLocation()))
+			return;
+		List<Path> found = new ArrayList<>();
+		try (Stream<Path> files = Files.walk(layout.getRootLocation())) {
+			files.filter(file -> Files.isRegularFile(file) && file.getParent().getFileName().toString().endsWith(".variants"))
+				.forEach(found::add);
+		} catch (IOException e) {
+			logger.error("Could not list the variants in {}.", layout.getRootLocation(), e);
+		}
+		Map<Path, Long> modified = new HashMap<>();
+		for (Path file : found) {
+			try {
+				// Left by a resize interrupted by a stop
+				if (file.getFileName().toString().endsWith(".tmp"))
+					Files.deleteIfExists(file);
+				else
+					modified.put(file, Files.getLastModifiedTime(file).toMillis());
+			} catch (IOException e) {
+				logger.error("Could not read variant {}.", file, e);
+			}
+		}
+		List<Path> variants = new ArrayList<>(modified.keySet());
+		variants.sort(Comparator.comparing(modified::get));
+		for (Path variant : variants) {
+			try {
+				admit(variant, Files.size(variant));
+			} catch (IOException e) {
+				logger.error("Could not read variant {}.", variant, e);
+			}
+		}
+		logger.info("Found {} variants, {} bytes.", cached.size(), cachedBytes);
+	}
+
+	/**
+	 * Rounds a requested variant to the sizes and qualities that are served, so clients can't request every size.
+	 * The presets are served as they are.
+	 * @param spec Requested variant.
+	 * @return The variant served.
+	 * @throws IllegalArgumentException If only the presets are served.
+	 */
+	public VariantSpec round(VariantSpec spec) {
+		for (VariantSpec preset : VariantSpec.PRESETS.values())
+			if (preset.getName().equals(spec.getName()))
+				return preset;
+		if (dimensions.length == 0)
+			throw new IllegalArgumentException("Only the sizes "+VariantSpec.PRESETS.keySet()+" are served.");
+		return new VariantSpec(roundUp(spec.getWidth()), roundUp(spec.getHeight()), spec.getFit(), nearestQuality(spec.getQuality()));
+	}
+
+	/**
+	 * Returns a variant of an Image, resizing it if the variant is not cached yet.
+	 * @param imgId Image's id.
+	 * @param original The original Image.
+	 * @param spec Variant to be returned.
+	 * @return The variant, whose entity tag is derived from the original's.
+	 */
+	public StoredImg load(String imgId, StoredImg original, VariantSpec spec) {
+		Path variant = resolve(imgId, spec);
+		String etag = original.getETag()+"-"+spec.getName();
+		if (Files.exists(variant)) {
+			touch(variant);
+			return new StoredImg(variant.toFile(), etag);
+		}
+		Resize resize = new Resize();
+		Resize running = inFlight.putIfAbsent(variant, resize);
+		try {
+			if (running != null)
+				return new StoredImg(running.get().toFile(), etag);
+			try {
+				Path generated = generate(original, spec, variant, resize);
+				admit(generated, Files.size(generated));
+				resize.complete(generated);
+			} catch (Exception e) {
+				resize.completeExceptionally(e);
+			} finally {
+				inFlight.remove(variant, resize);
+			}
+			return new StoredImg(resize.get().toFile(), etag);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new StorageException("Interrupted while resizing Image "+imgId+".", e);
+		} catch (ExecutionException e) {
+			throw new StorageException("Could not resize Image "+imgId+".", e.getCause());
+		}
+	}
+
+	/**
+	 * Returns where a variant of an Image is cached.
+	 * @param imgId Image's id.
+	 * @param spec Variant of the Image.
+	 * @return Path of the variant, which might not exist.
+	 */
+	public Path resolve(String imgId, VariantSpec spec) {
+		return variantsOf(imgId).resolve(spec.getName()+".jpg");
+	}
+
+	/**
+	 * Deletes the cached variants of an Image when it is updated or deleted.
+	 * @param event Change of an Image.
+	 */
+	@EventListener
+	public void onImgChanged(ImgChangedEvent event) {
+		if (event.getType() == ImgChangedEvent.Type.STORED)
+			return;
+		Path variants = variantsOf(event.getImgId());
+		// Variants of this Image being resized are already stale, resizes of other Images go on
+		for (Map.Entry<Path, Resize> running : inFlight.entrySet())
+			if (running.getKey().getParent().equals(variants))
+				running.getValue().stale = true;
+		if (!Files.isDirectory(variants))
+			return;
+		try (Stream<Path> files = Files.list(variants)) {
+			Iterator<Path> it = files.iterator();
+			while (it.hasNext()) {
+				Path file = it.next();
+				Files.deleteIfExists(file);
+				forget(file);
+			}
+			Files.deleteIfExists(variants);
+		} catch (IOException e) {
+			logger.error("Could not delete the variants of Image {}.", event.getImgId(), e);
+		}
+	}
+
+	/**
+	 * Marks a variant as used, so it is the last to be deleted.
+	 */
+	private synchronized void touch(Path variant) {
+		if (cached.get(variant) == null) {
+			try {
+				// Generated while the variants were listed on startup
+				admit(variant, Files.size(variant));
+			} catch (IOException e) {
+				// Deleted meanwhile
+			}
+		}
+	}
+
+	/**
+	 * Counts a variant written to disk, and deletes the least recently used ones while the variants take too much.
+	 * The variant itself is kept, it is being served.
+	 */
+	private synchronized void admit(Path variant, long size) {
+		Long previous = cached.put(variant, size);
+		cachedBytes += size-(previous == null ? 0 : previous);
+		for (Iterator<Map.Entry<Path, Long>> it = cached.entrySet().iterator(); cachedBytes > maxBytes && it.hasNext(); ) {
+			Map.Entry<Path, Long> eldest = it.next();
+			if (eldest.getKey().equals(variant))
+				break;
+			it.remove();
+			cachedBytes -= eldest.getValue();
+			try {
+				Files.deleteIfExists(eldest.getKey());
+				// Removes the folder of an Image once its last variant is gone
+				Files.deleteIfExists(eldest.getKey().getParent());
+			} catch (DirectoryNotEmptyException e) {
+				// Other variants of the Image are still cached
+			} catch (IOException e) {
+				logger.error("Could not delete variant {}.", eldest.getKey(), e);
+			}
+		}
+	}
+
+	private synchronized void forget(Path variant) {
+		Long size = cached.remove(variant);
+		if (size != null)
+			cachedBytes -= size;
+	}
+
+	private int roundUp(int dimension) {
+		if (dimension == 0)
+			return 0;
+		for (int allowed : dimensions)
+			if (allowed >= dimension)
+				return allowed;
+		return dimensions[dimensions.length-1];
+	}
+
+	private int nearestQuality(int quality) {
+		int nearest = qualities[0];
+		for (int allowed : qualities)
+			if (Math.abs(allowed-quality) < Math.abs(nearest-quality))
+				nearest = allowed;
+		return nearest;
+	}
+
+	private static int[] parse(String values, int max) {
+		int[] parsed = Arrays.stream(StringUtils.commaDelimitedListToStringArray(values))
+				.map(String::trim).filter(value -> !value.isEmpty()).mapToInt(Integer::parseInt).sorted().toArray();
+		for (int value : parsed)
+			if (value < 1 || value > max)
+				throw new IllegalArgumentException("Variant sizes and qualities must be between 1 and "+max+", not "+value+".");
+		return parsed;
+	}
+
+	private Path variantsOf(String imgId) {
+		return layout.resolve(imgId).resolveSibling(imgId+".variants");
+	}
+
+	/**
+	 * Resizes an Image and writes the variant, renaming it into place once complete.
+	 */
+	private Path generate(StoredImg original, VariantSpec spec, Path variant, Resize resize) throws IOException, InterruptedException {
+		BufferedImage resized;
+		resizes.acquire();
+		try {
+			BufferedImage source;
+			try (InputStream in = original.getInputStream()) {
+				source = ImageIO.read(in);
+			}
+			if (source == null)
+				throw new StorageException("Image "+original.getFilename()+" is not in a supported format.");
+			resized = resize(source, spec);
+		} finally {
+			resizes.release();
+		}
+		Files.createDirectories(variant.getParent());
+		Path tmp = Files.createTempFile(variant.getParent(), spec.getName(), ".tmp");
+		try {
+			writeJpeg(resized, spec.getQuality(), tmp);
+			Files.move(tmp, variant, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+		// The Image changed while it was resized, so the variant is already stale
+		if (resize.stale) {
+			Files.deleteIfExists(variant);
+			throw new StorageException("Image "+original.getFilename()+" changed while it was resized.");
+		}
+		return variant;
+	}
+
+	/**
+	 * Scales an Image as described by the variant, never enlarging it.
+	 */
+	private static BufferedImage resize(BufferedImage source, VariantSpec spec) {
+		int srcWidth = source.getWidth();
+		int srcHeight = source.getHeight();
+		double scaleX = spec.getWidth() == 0 ? 0 : (double) spec.getWidth()/srcWidth;
+		double scaleY = spec.getHeight() == 0 ? 0 : (double) spec.getHeight()/srcHeight;
+		if (scaleX == 0)
+			scaleX = scaleY;
+		if (scaleY == 0)
+			scaleY = scaleX;
+		// Region of the source kept in the variant
+		int cropX = 0, cropY = 0, cropWidth = srcWidth, cropHeight = srcHeight;
+		switch (spec.getFit()) {
+		case CONTAIN:
+			scaleX = scaleY = Math.min(scaleX, scaleY);
+			break;
+		case COVER:
+			scaleX = scaleY = Math.max(scaleX, scaleY);
+			if (spec.getWidth() > 0 && spec.getHeight() > 0) {
+				cropWidth = Math.min(srcWidth, (int) Math.round(spec.getWidth()/scaleX));
+				cropHeight = Math.min(srcHeight, (int) Math.round(spec.getHeight()/scaleY));
+				cropX = (srcWidth-cropWidth)/2;
+				cropY = (srcHeight-cropHeight)/2;
+			}
+			break;
+		case FILL:
+			break;
+		}
+		scaleX = Math.min(scaleX, 1);
+		scaleY = Math.min(scaleY, 1);
+		int width = Math.max(1, (int) Math.round(cropWidth*scaleX));
+		int height = Math.max(1, (int) Math.round(cropHeight*scaleY));
+
+		BufferedImage current = source.getSubimage(cropX, cropY, cropWidth, cropHeight);
+		// Halve the Image until it is close to the target, bilinear filtering loses detail on larger steps
+		do {
+			int stepWidth = Math.max(width, current.getWidth()/2);
+			int stepHeight = Math.max(height, current.getHeight()/2);
+			BufferedImage step = new BufferedImage(stepWidth, stepHeight, BufferedImage.TYPE_INT_RGB);
+			Graphics2D g = step.createGraphics();
+			g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			g.drawImage(current, 0, 0, stepWidth, stepHeight, null);
+			g.dispose();
+			current = step;
+		} while (current.getWidth() != width || current.getHeight() != height);
+		return current;
+	}
+
+	private static void writeJpeg(BufferedImage img, int quality, Path target) throws IOException {
+		ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+		try (ImageOutputStream out = ImageIO.createImageOutputStream(target.toFile())) {
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setCompressionQuality(quality/100f);
+			writer.setOutput(out);
+			writer.write(null, new IIOImage(img, null, null), param);
+		} finally {
+			writer.dispose();
+		}
+	}
+
+	/**
+	 * A running resize, marked stale when its Image changes meanwhile.
+	 */
+	private static class Resize extends CompletableFuture<Path> {
+
+		private volatile boolean stale;
+	}
+}
@@ -0,0 +1,41 @@
+package service.storage.util;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Helpers to compute the SHA-256 hash of Images, used as their entity tag.
+ */
+public final class ContentHash {
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private ContentHash() {
+	}
+
+	/**
+	 * Creates a new SHA-256 digest.
+	 * @return A SHA-256 digest.
+	 */
+	public static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new StorageException("SHA-256 is not available.", e);
+		}
+	}
+
+	/**
+	 * Encodes bytes as a lower case hexadecimal String.
+	 * @param bytes Bytes to be encoded.
+	 * @return Hexadecimal String.
+	 */
+	public static String hex(byte[] bytes) {
+		char[] hex = new char[bytes.length*2];
+		for (int i = 0; i < bytes.length; i++) {
+			hex[2*i] = HEX[(bytes[i] >> 4) & 0xf];
+			hex[2*i+1] = HEX[bytes[i] & 0xf];
+		}
+		return new String(hex);
+	}
+}
@@ -0,0 +1,221 @@
+package service.storage.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.util.MimeTypeUtils;
+
+/**
+ * Writes Images stored on disk to the Http response without copying them through the heap.
+ * When the connector supports it, the file is handed over to Tomcat, which sends it with sendfile.
+ * Otherwise the bytes are moved with FileChannel.transferTo.
+ * Images held in memory by the cache are written straight from their buffer.
+ */
+public final class ImgStreamer {
+
+	private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+	private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+	private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+	private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+	// Same threshold as Tomcat's DefaultServlet, below it sendfile costs more than a plain write
+	private static final long SENDFILE_MIN_SIZE = 48*1024;
+	// Many tiny ranges cost more to serve than the whole Image
+	private static final int MAX_RANGES = 16;
+
+	// Writes a region of the Image being sent
+	@FunctionalInterface
+	private interface Region {
+		void writeTo(long position, long count, OutputStream out) throws IOException;
+	}
+
+	private ImgStreamer() {
+	}
+
+	/**
+	 * Writes a region of a file as the body of the response, setting its Content-Length.
+	 * @param file File to be sent.
+	 * @param start Position of the first byte to send.
+	 * @param length Number of bytes to send.
+	 * @param request Http request being answered.
+	 * @param response Http response to write to.
+	 * @throws IOException If the file could not be read or the response could not be written.
+	 */
+	public static void stream(File file, long start, long length, HttpServletRequest request, HttpServletResponse response) throws IOException {
+		response.setContentLengthLong(length);
+		if (length >= SENDFILE_MIN_SIZE && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+			// Tomcat sends the file once the request has been handled
+			request.setAttribute(SENDFILE_FILENAME, file.getCanonicalPath());
+			request.setAttribute(SENDFILE_START, Long.valueOf(start));
+			request.setAttribute(SENDFILE_END, Long.valueOf(start+length));
+			return;
+		}
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			transfer(channel, start, length, response.getOutputStream());
+		}
+	}
+
+	/**
+	 * Writes the requested ranges of a region of a file as a 206 Partial Content response.
+	 * A single range is sent as is, several ranges are sent as multipart/byteranges.
+	 * The Content-Type of the response must be set before, it is used as the Content-Type of each part.
+	 * @param file File to be sent.
+	 * @param start Position of the region in the file.
+	 * @param length Length of the region.
+	 * @param ranges Ranges requested by the client, relative to the region. If empty, the whole region is sent.
+	 * @param request Http request being answered.
+	 * @param response Http response to write to.
+	 * @throws IOException If the file could not be read or the response could not be written.
+	 */
+	public static void stream(File file, long start, long length, List<HttpRange> ranges, HttpServletRequest request, HttpServletResponse response) throws IOException {
+		if (ranges.isEmpty()) {
+			stream(file, start, length, request, response);
+			return;
+		}
+		long[][] bounds = bounds(ranges, length, response);
+		if (bounds == null)
+			return;
+		if (ranges.size() == 1) {
+			response.setHeader(HttpHeaders.CONTENT_RANGE, contentRange(bounds[0][0], bounds[0][1], length));
+			stream(file, start+bounds[0][0], bounds[0][1]-bounds[0][0]+1, request, response);
+			return;
+		}
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			writeMultipart(bounds, length, (position, count, out) -> transfer(channel, start+position, count, out), response);
+		}
+	}
+
+	/**
+	 * Writes an Image held in memory as the body of the response, or the requested ranges of it as a 206 Partial Content response.
+	 * The Content-Type of the response must be set before, it is used as the Content-Type of each part.
+	 * @param data Content of the Image.
+	 * @param ranges Ranges requested by the client. If empty, the whole Image is sent.
+	 * @param response Http response to write to.
+	 * @throws IOException If the response could not be written.
+	 */
+	public static void stream(ByteBuffer data, List<HttpRange> ranges, HttpServletResponse response) throws IOException {
+		long length = data.remaining();
+		if (ranges.isEmpty()) {
+			response.setContentLengthLong(length);
+			write(data, 0, length, response.getOutputStream());
+			return;
+		}
+		long[][] bounds = bounds(ranges, length, response);
+		if (bounds == null)
+			return;
+		if (ranges.size() == 1) {
+			response.setHeader(HttpHeaders.CONTENT_RANGE, contentRange(bounds[0][0], bounds[0][1], length));
+			response.setContentLengthLong(bounds[0][1]-bounds[0][0]+1);
+			write(data, bounds[0][0], bounds[0][1]-bounds[0][0]+1, response.getOutputStream());
+			return;
+		}
+		writeMultipart(bounds, length, (position, count, out) -> write(data, position, count, out), response);
+	}
+
+	/**
+	 * Resolves the requested ranges against the length of the Image and sets the 206 status,
+	 * or answers 416 Range Not Satisfiable if they can't be served.
+	 * @return First and last byte of each range, or null if the ranges are not satisfiable.
+	 */
+	private static long[][] bounds(List<HttpRange> ranges, long length, HttpServletResponse response) {
+		long[][] bounds = new long[ranges.size()][2];
+		try {
+			if (ranges.size() > MAX_RANGES)
+				throw new IllegalArgumentException("Too many ranges: "+ranges.size());
+			for (int i = 0; i < ranges.size(); i++) {
+				bounds[i][0] = ranges.get(i).getRangeStart(length);
+				bounds[i][1] = ranges.get(i).getRangeEnd(length);
+				if (bounds[i][0] >= length || bounds[i][0] > bounds[i][1])
+					throw new IllegalArgumentException("Range "+ranges.get(i)+" outside of "+length+" bytes");
+			}
+		} catch (IllegalArgumentException e) {
+			response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */"+length);
+			response.setStatus(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+			return null;
+		}
+		response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+		return bounds;
+	}
+
+	/**
+	 * Writes several ranges as a multipart/byteranges body.
+	 */
+	private static void writeMultipart(long[][] bounds, long length, Region region, HttpServletResponse response) throws IOException {
+		// Build every part header up front, so the Content-Length is known before writing
+		String boundary = MimeTypeUtils.generateMultipartBoundaryString();
+		String partType = response.getContentType();
+		byte[][] headers = new byte[bounds.length][];
+		long contentLength = 0;
+		for (int i = 0; i < bounds.length; i++) {
+			headers[i] = ("\r\n--"+boundary+"\r\n"
+					+HttpHeaders.CONTENT_TYPE+": "+partType+"\r\n"
+					+HttpHeaders.CONTENT_RANGE+": "+contentRange(bounds[i][0], bounds[i][1], length)+"\r\n\r\n")
+					.getBytes(StandardCharsets.US_ASCII);
+			contentLength += headers[i].length+bounds[i][1]-bounds[i][0]+1;
+		}
+		byte[] end = ("\r\n--"+boundary+"--\r\n").getBytes(StandardCharsets.US_ASCII);
+		contentLength += end.length;
+		response.setContentType("multipart/byteranges; boundary="+boundary);
+		response.setContentLengthLong(contentLength);
+		OutputStream out = response.getOutputStream();
+		for (int i = 0; i < bounds.length; i++) {
+			out.write(headers[i]);
+			region.writeTo(bounds[i][0], bounds[i][1]-bounds[i][0]+1, out);
+		}
+		out.write(end);
+	}
+
+	private static String contentRange(long first, long last, long length) {
+		return "bytes "+first+"-"+last+"/"+length;
+	}
+
+	/**
+	 * Copies a region of a buffer to an output stream.
+	 * @param data Buffer to read from, its position is left untouched.
+	 * @param start Position of the first byte to copy, relative to the buffer's position.
+	 * @param length Number of bytes to copy.
+	 * @param out Stream to write to.
+	 * @throws IOException If the stream could not be written.
+	 */
+	public static void write(ByteBuffer data, long start, long length, OutputStream out) throws IOException {
+		ByteBuffer region = data.duplicate();
+		region.position(data.position()+(int) start);
+		region.limit(data.position()+(int) (start+length));
+		WritableByteChannel target = Channels.newChannel(out);
+		while (region.hasRemaining())
+			target.write(region);
+	}
+
+	/**
+	 * Copies a region of a file channel to an output stream.
+	 * @param channel Channel to read from.
+	 * @param start Position of the first byte to copy.
+	 * @param length Number of bytes to copy.
+	 * @param out Stream to write to.
+	 * @throws IOException If the channel could not be read or the stream could not be written.
+	 */
+	public static void transfer(FileChannel channel, long start, long length, OutputStream out) throws IOException {
+		WritableByteChannel target = Channels.newChannel(out);
+		long position = start;
+		long end = start+length;
+		while (position < end) {
+			long sent = channel.transferTo(position, end-position, target);
+			if (sent <= 0 && position >= channel.size())
+				throw new IOException("Unexpected end of file after "+(position-start)+" of "+length+" bytes.");
+			position += sent;
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package service.storage.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Measures the throughput of Image downloads from a running CDN service, and the memory the service allocates
+ * and collects meanwhile, for Images of several sizes.
+ * An Image of each size is stored, then several threads download it in a loop, after a warm-up.
+ * Allocation and garbage collections are read from the JVM metrics of the actuator before and after each run,
+ * so the service must expose the metrics endpoint. The allocation is counted at each collection of the young generation,
+ * so short runs with few collections underestimate it.
+ * Usage: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=service.storage.util.ImgStreamerBenchmark -Dexec.args="[url] [sizes in KB] [threads] [seconds]"
+ * for example "http://localhost:8080 1,100,5120 8 15".
+ */
+public final class ImgStreamerBenchmark {
+
+	private static final Pattern IMG_ID = Pattern.compile("Image id: (\\w+)");
+	private static final long WARM_UP_MILLIS = 3000;
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	private ImgStreamerBenchmark() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		String url = args.length > 0 ? args[0] : "http://localhost:8080";
+		String[] sizes = (args.length > 1 ? args[1] : "1,100,5120").split(",");
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+		long millis = (args.length > 3 ? Long.parseLong(args[3]) : 15)*1000;
+		System.out.printf("%8s %8s %8s %12s %6s %8s%n", "size", "req/s", "MB/s", "alloc/req", "GCs", "GC ms");
+		for (String size : sizes) {
+			int bytes = Integer.parseInt(size.trim())*1024;
+			String img = url+"/api/v2/"+store(url, bytes);
+			run(img, threads, WARM_UP_MILLIS);
+			double allocated = metric(url, "jvm.gc.memory.allocated", "COUNT");
+			double collections = metric(url, "jvm.gc.pause", "COUNT");
+			double collecting = metric(url, "jvm.gc.pause", "TOTAL_TIME");
+			long requests = run(img, threads, millis);
+			allocated = metric(url, "jvm.gc.memory.allocated", "COUNT")-allocated;
+			collections = metric(url, "jvm.gc.pause", "COUNT")-collections;
+			collecting = metric(url, "jvm.gc.pause", "TOTAL_TIME")-collecting;
+			System.out.printf("%6s KB %8.0f %8.1f %9.1f KB %6.0f %8.0f%n", size.trim(), requests*1000.0/millis,
+					(double) requests*bytes/1024/1024*1000/millis, allocated/1024/Math.max(1, requests), collections, collecting*1000);
+		}
+	}
+
+	/**
+	 * Downloads an Image in a loop from several threads.
+	 * @return Number of downloads completed.
+	 */
+	private static long run(String img, int threads, long millis) throws InterruptedException {
+		AtomicLong requests = new AtomicLong();
+		long end = System.currentTimeMillis()+millis;
+		Thread[] clients = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			clients[i] = new Thread(() -> {
+				byte[] buffer = new byte[64*1024];
+				while (System.currentTimeMillis() < end) {
+					try {
+						HttpURLConnection connection = (HttpURLConnection) new URL(img).openConnection();
+						try (InputStream in = connection.getInputStream()) {
+							while (in.read(buffer) >= 0) {
+								// Drains the Image
+							}
+						}
+						if (connection.getResponseCode() == HttpURLConnection.HTTP_OK)
+							requests.incrementAndGet();
+					} catch (IOException e) {
+						System.err.println("Download failed: "+e);
+					}
+				}
+			});
+			clients[i].start();
+		}
+		for (Thread client : clients)
+			client.join();
+		return requests.get();
+	}
+
+	/**
+	 * Stores an Image of random bytes of the specified size.
+	 * @return Id of the Image.
+	 */
+	private static String store(String url, int bytes) throws IOException {
+		byte[] content = new byte[bytes];
+		new Random(42).nextBytes(content);
+		String boundary = "benchmark"+System.nanoTime();
+		HttpURLConnection connection = (HttpURLConnection) new URL(url+"/api/v2/").openConnection();
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		connection.setRequestProperty("Content-Type", "multipart/form-data; boundary="+boundary);
+		try (OutputStream out = connection.getOutputStream()) {
+			out.write(("--"+boundary+"\r\nContent-Disposition: form-data; name=\"file\"; filename=\"benchmark.jpg\"\r\n"
+					+"Content-Type: image/jpeg\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+			out.write(content);
+			out.write(("\r\n--"+boundary+"--\r\n").getBytes(StandardCharsets.US_ASCII));
+		}
+		String body = read(connection);
+		Matcher id = IMG_ID.matcher(body);
+		if (!id.find())
+			throw new IOException("Could not store an Image: "+body);
+		return id.group(1);
+	}
+
+	/**
+	 * Reads a statistic of a metric from the actuator, 0 if the metric was not recorded yet.
+	 */
+	private static double metric(String url, String name, String statistic) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(url+"/actuator/metrics/"+name).openConnection();
+		if (connection.getResponseCode() == HttpURLConnection.HTTP_NOT_FOUND)
+			return 0;
+		for (JsonNode measurement : mapper.readTree(read(connection)).path("measurements"))
+			if (statistic.equals(measurement.path("statistic").asText()))
+				return measurement.path("value").asDouble();
+		return 0;
+	}
+
+	private static String read(HttpURLConnection connection) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		try (InputStream in = connection.getInputStream()) {
+			byte[] buffer = new byte[8192];
+			for (int n; (n = in.read(buffer)) >= 0; )
+				body.write(buffer, 0, n);
+		}
+		return new String(body.toByteArray(), StandardCharsets.UTF_8);
+	}
+}
@@ -1,10 +1,17 @@
 package service.recognizer.controller;
 
+import java.io.IOException;
+import java.net.URI;
+import java.util.Optional;
+import java.util.concurrent.RejectedExecutionException;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
@@ -12,8 +19,11 @@ import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.multipart.MultipartFile;
 
 import service.recognizer.model.Information;
+import service.recognizer.model.Job;
 import service.recognizer.model.Result;
+import service.recognizer.service.RecognitionJobs;
 import service.recognizer.service.RecognitionService;
+import service.recognizer.service.VisionUnavailableException;
 
 @RestController
 @RequestMapping("/api/v1")
@@ -22,10 +32,12 @@ public class IRController {
 	public static final Logger logger = LoggerFactory.getLogger(IRController.class);
 	
 	private final RecognitionService recon;
+	private final RecognitionJobs jobs;
 	
 	@Autowired
-	public IRController(RecognitionService recon) {
+	public IRController(RecognitionService recon, RecognitionJobs jobs) {
 		this.recon = recon;
+		this.jobs = jobs;
 	}
 	
 	@RequestMapping(value="/recognize/", method=RequestMethod.POST)
@@ -37,7 +49,47 @@ public class IRController {
 			return new ResponseEntity<Result>(new Result("Image is empty."), HttpStatus.BAD_REQUEST);
 		}
 		
-		Information result = recon.recognizeThis(img);
+		Information result;
+		try {
+			result = recon.recognizeThis(img);
+		} catch (VisionUnavailableException e) {
+			logger.error(e.getMessage());
+			return new ResponseEntity<Result>(new Result(e.getMessage()), HttpStatus.SERVICE_UNAVAILABLE);
+		}
 		return new ResponseEntity<Information>(result,HttpStatus.OK);
 	}
-}
\ No newline at end of file
+	
+	@RequestMapping(value="/recognize/async", method=RequestMethod.POST)
+	public ResponseEntity<?> recognizeImageAsync(@RequestParam("file") MultipartFile img,
+			@RequestParam(value="callback", required=false) String callback) throws IOException {
+		logger.info("Queueing the Image for analysis");
+		
+		if (img.isEmpty()) {
+			logger.error("Image is empty.");
+			return new ResponseEntity<Result>(new Result("Image is empty."), HttpStatus.BAD_REQUEST);
+		}
+		Job job;
+		try {
+			job = jobs.submit(img.getBytes(), callback);
+		} catch (IllegalArgumentException e) {
+			logger.error("Callback {} refused: {}", callback, e.getMessage());
+			return new ResponseEntity<Result>(new Result(e.getMessage()), HttpStatus.BAD_REQUEST);
+		} catch (RejectedExecutionException e) {
+			logger.error("Too many Images waiting for analysis.");
+			return new ResponseEntity<Result>(new Result("Too many Images waiting for analysis, try again later."), HttpStatus.TOO_MANY_REQUESTS);
+		}
+		HttpHeaders headers = new HttpHeaders();
+		headers.setLocation(URI.create("/api/v1/recognize/jobs/"+job.getId()));
+		return new ResponseEntity<Job>(job, headers, HttpStatus.ACCEPTED);
+	}
+	
+	@RequestMapping(value="/recognize/jobs/{id}", method=RequestMethod.GET)
+	public ResponseEntity<?> getJob(@PathVariable("id") String id) {
+		Optional<Job> job = jobs.find(id);
+		if (!job.isPresent()) {
+			logger.error("Job with id {} not found.", id);
+			return new ResponseEntity<Result>(new Result("Job with id "+id+" not found."), HttpStatus.NOT_FOUND);
+		}
+		return new ResponseEntity<Job>(job.get(), HttpStatus.OK);
+	}
+}
@@ -0,0 +1,82 @@
+package service.recognizer.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * An asynchronous recognition of an Image, polled by the client or reported to its callback.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class Job {
+
+	public enum Status {
+		PENDING, RUNNING, DONE, FAILED
+	}
+
+	private final String id;
+	private final String callback;
+	private final long createdAt;
+	private volatile Status status = Status.PENDING;
+	private volatile Information info;
+	private volatile String error;
+	private volatile Long completedAt;
+
+	/**
+	 * Creates a pending Job.
+	 * @param id Job's id.
+	 * @param callback Address the Job is posted to once completed, null if the client polls it.
+	 */
+	public Job(String id, String callback) {
+		this.id = id;
+		this.callback = callback;
+		this.createdAt = System.currentTimeMillis();
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getCallback() {
+		return callback;
+	}
+
+	public long getCreatedAt() {
+		return createdAt;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	public Information getInfo() {
+		return info;
+	}
+
+	public String getError() {
+		return error;
+	}
+
+	public Long getCompletedAt() {
+		return completedAt;
+	}
+
+	public void start() {
+		status = Status.RUNNING;
+	}
+
+	public void complete(Information info) {
+		this.info = info;
+		this.completedAt = System.currentTimeMillis();
+		this.status = Status.DONE;
+	}
+
+	public void fail(String error) {
+		this.error = error;
+		this.completedAt = System.currentTimeMillis();
+		this.status = Status.FAILED;
+	}
+
+	@Override
+	public String toString() {
+		return "Job{id="+id+",status="+status+"}";
+	}
+}
@@ -0,0 +1,19 @@
+package service.recognizer.service;
+
+import java.util.List;
+
+import com.google.cloud.vision.v1.AnnotateImageRequest;
+import com.google.cloud.vision.v1.AnnotateImageResponse;
+
+/**
+ * Annotates Images, one response for each request in the same order.
+ */
+public interface Annotator {
+	public List<AnnotateImageResponse> annotate(List<AnnotateImageRequest> requests);
+
+	/**
+	 * Checks if Images can be annotated, an Annotator may need a while to start.
+	 * @return True if the Annotator is ready, False otherwise.
+	 */
+	public boolean isReady();
+}
@@ -0,0 +1,111 @@
+package service.recognizer.service;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import org.apache.http.conn.DnsResolver;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+/**
+ * Decides which callbacks Jobs are posted to, so a client can't make the service post to an internal address.
+ * When a list of hosts is configured, only those hosts are accepted. Otherwise any host is accepted as long as
+ * it only resolves to public addresses: loopback, link-local, private, unique local, shared and multicast
+ * addresses are rejected. Callbacks are checked when a Job is submitted, and the addresses are checked again
+ * when the callback is posted, as the client resolves hosts through this guard, so a host can't resolve
+ * to a public address when checked and to an internal one when posted to.
+ */
+@Component
+public class CallbackGuard implements DnsResolver {
+
+	// Hosts accepted whatever their addresses, all public hosts if empty
+	private final Set<String> hosts = new HashSet<>();
+
+	/**
+	 * Creates the guard of the callbacks.
+	 * @param hosts Comma-separated list of the hosts callbacks may be posted to, empty to accept any public host.
+	 */
+	@Autowired
+	public CallbackGuard(@Value("${recognition.jobs.callback-hosts:}") String hosts) {
+		for (String host : StringUtils.commaDelimitedListToStringArray(hosts))
+			if (!host.trim().isEmpty())
+				this.hosts.add(host.trim().toLowerCase(Locale.ROOT));
+	}
+
+	/**
+	 * Checks that a Job may be posted to a callback.
+	 * @param callback Address of the callback.
+	 * @throws IllegalArgumentException If the callback is not an http or https url, or is not accepted.
+	 */
+	public void check(String callback) {
+		URI uri;
+		try {
+			uri = new URI(callback);
+		} catch (URISyntaxException e) {
+			throw new IllegalArgumentException("Callback must be an http or https url.", e);
+		}
+		String scheme = uri.getScheme();
+		if (uri.getHost() == null || !("http".equalsIgnoreCase(scheme) || "https".equalsIgnoreCase(scheme)))
+			throw new IllegalArgumentException("Callback must be an http or https url.");
+		if (!hosts.isEmpty() && !isListed(uri.getHost()))
+			throw new IllegalArgumentException("Callback host "+uri.getHost()+" is not allowed.");
+		try {
+			resolve(uri.getHost());
+		} catch (UnknownHostException e) {
+			throw new IllegalArgumentException("Callback host "+uri.getHost()+" is not allowed.", e);
+		}
+	}
+
+	/**
+	 * Resolves the host of a callback, keeping only the addresses it may be posted to.
+	 * @param host Host name or address.
+	 * @return The addresses of the host, all of them if it is listed, only the public ones otherwise.
+	 * @throws UnknownHostException If the host could not be resolved, or has no address callbacks may be posted to.
+	 */
+	@Override
+	public InetAddress[] resolve(String host) throws UnknownHostException {
+		InetAddress[] addresses = InetAddress.getAllByName(host);
+		if (isListed(host))
+			return addresses;
+		if (!hosts.isEmpty())
+			throw new UnknownHostException("Callback host "+host+" is not allowed.");
+		InetAddress[] allowed = Arrays.stream(addresses).filter(CallbackGuard::isPublic).toArray(InetAddress[]::new);
+		if (allowed.length == 0)
+			throw new UnknownHostException("Callback host "+host+" has no public address.");
+		return allowed;
+	}
+
+	private boolean isListed(String host) {
+		String name = host.toLowerCase(Locale.ROOT);
+		// IPv6 addresses are bracketed in urls
+		if (name.startsWith("[") && name.endsWith("]"))
+			name = name.substring(1, name.length()-1);
+		return hosts.contains(name);
+	}
+
+	/**
+	 * Checks if an address is reachable from the Internet, and not one of the service's own network.
+	 */
+	static boolean isPublic(InetAddress address) {
+		if (address.isAnyLocalAddress() || address.isLoopbackAddress() || address.isLinkLocalAddress()
+				|| address.isSiteLocalAddress() || address.isMulticastAddress())
+			return false;
+		byte[] bytes = address.getAddress();
+		if (address instanceof Inet6Address)
+			// Unique local addresses, fc00::/7
+			return (bytes[0] & 0xfe) != 0xfc;
+		int first = bytes[0] & 0xff;
+		int second = bytes[1] & 0xff;
+		// "This" network 0.0.0.0/8, shared addresses 100.64.0.0/10 and reserved 240.0.0.0/4
+		return first != 0 && !(first == 100 && second >= 64 && second < 128) && first < 240;
+	}
+}
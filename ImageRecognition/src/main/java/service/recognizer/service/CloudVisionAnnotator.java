@@ -0,0 +1,154 @@
+package service.recognizer.service;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import org.threeten.bp.Duration;
+
+import com.google.api.gax.core.FixedCredentialsProvider;
+import com.google.api.gax.retrying.RetrySettings;
+import com.google.auth.oauth2.GoogleCredentials;
+import com.google.cloud.vision.v1.AnnotateImageRequest;
+import com.google.cloud.vision.v1.AnnotateImageResponse;
+import com.google.cloud.vision.v1.ImageAnnotatorClient;
+import com.google.cloud.vision.v1.ImageAnnotatorSettings;
+import com.google.common.collect.Lists;
+
+/**
+ * Annotates Images with Cloud Vision.
+ * The client is created in background, so reading the credentials and opening the channel don't delay
+ * the startup of the service. Until the client is ready, annotations are rejected, and a failed creation,
+ * such as one with bad credentials, is retried after a while.
+ * Each call, with its retries, is cancelled at the deadline, so a stuck call does not hold its place in the VisionGuard.
+ */
+@Component
+@ConditionalOnProperty(name="recognition.engine", havingValue="cloud-vision", matchIfMissing=true)
+public class CloudVisionAnnotator implements Annotator {
+
+	public static final Logger logger = LoggerFactory.getLogger(CloudVisionAnnotator.class);
+
+	private final String credentialsLocation;
+	private final long retryMillis;
+	private final long deadlineMillis;
+	private final Thread initializer;
+
+	private volatile ImageAnnotatorClient vision;
+	private volatile Exception failure;
+	private volatile boolean closed;
+
+	/**
+	 * Starts creating the Cloud Vision client in background.
+	 * @param credentialsLocation Path of the Google Cloud credentials.
+	 * @param retryMillis Number of milliseconds to wait before creating the client again after a failure.
+	 * @param deadlineMillis Number of milliseconds after which a call to Cloud Vision is cancelled.
+	 */
+	@Autowired
+	public CloudVisionAnnotator(@Value("${recognition.vision.credentials:src/main/resources/credentials.json}") String credentialsLocation,
+			@Value("${recognition.vision.init-retry:30000}") long retryMillis,
+			@Value("${recognition.vision.deadline:10000}") long deadlineMillis) {
+		this.credentialsLocation = credentialsLocation;
+		this.retryMillis = retryMillis;
+		this.deadlineMillis = deadlineMillis;
+		this.initializer = new Thread(this::initialize, "vision-init");
+		this.initializer.setDaemon(true);
+		this.initializer.start();
+	}
+
+	@Override
+	public boolean isReady() {
+		return vision != null;
+	}
+
+	/**
+	 * Returns why the client could not be created yet.
+	 * @return The failure of the last creation, or null if it is ready or was not tried yet.
+	 */
+	public Exception getFailure() {
+		return failure;
+	}
+
+	@Override
+	public List<AnnotateImageResponse> annotate(List<AnnotateImageRequest> requests) {
+		ImageAnnotatorClient client = vision;
+		if (client == null)
+			throw new VisionUnavailableException("Cloud Vision is starting, try again later.");
+		return client.batchAnnotateImages(requests).getResponsesList();
+	}
+
+	@PreDestroy
+	public synchronized void close() {
+		closed = true;
+		initializer.interrupt();
+		if (vision != null)
+			vision.close();
+	}
+
+	private void initialize() {
+		long start = System.currentTimeMillis();
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				ImageAnnotatorClient client = create();
+				synchronized (this) {
+					if (closed) {
+						client.close();
+						return;
+					}
+					vision = client;
+				}
+				failure = null;
+				logger.info("Cloud Vision client ready in {} ms.", System.currentTimeMillis()-start);
+				return;
+			} catch (IOException | RuntimeException e) {
+				// Interrupted by the shutdown of the service
+				if (closed)
+					return;
+				failure = e;
+				logger.error("Could not create the Cloud Vision client, retrying in {} ms.", retryMillis, e);
+			}
+			try {
+				Thread.sleep(retryMillis);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Creates the Cloud Vision client, called from the background thread until it succeeds.
+	 * Tests replace it with a stubbed client.
+	 * @return The client.
+	 * @throws IOException If the credentials could not be read or the client created.
+	 */
+	ImageAnnotatorClient create() throws IOException {
+		//Set Cloud Vision credentials
+		GoogleCredentials credentials;
+		try (InputStream in = new FileInputStream(credentialsLocation)) {
+			credentials = GoogleCredentials.fromStream(in)
+					.createScoped(Lists.newArrayList("https://www.googleapis.com/auth/cloud-platform"));
+		}
+		ImageAnnotatorSettings.Builder settings = ImageAnnotatorSettings.newBuilder()
+	         .setCredentialsProvider(FixedCredentialsProvider.create(credentials));
+		// The default lets a call and its retries run for 10 minutes
+		Duration deadline = Duration.ofMillis(deadlineMillis);
+		RetrySettings retries = settings.batchAnnotateImagesSettings().getRetrySettings().toBuilder()
+				.setTotalTimeout(deadline)
+				.setInitialRpcTimeout(deadline)
+				.setMaxRpcTimeout(deadline)
+				.build();
+		settings.batchAnnotateImagesSettings().setRetrySettings(retries);
+		ImageAnnotatorSettings imageAnnotatorSettings = settings.build();
+		//Create Cloud Vision client
+		return ImageAnnotatorClient.create(imageAnnotatorSettings);
+	}
+}
@@ -0,0 +1,127 @@
+package service.recognizer.service;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * Computes a global descriptor of Images, compared by their dot product to match photos of the same landmark.
+ * The Image is shrunk to a square and split in a 4x4 grid. Each cell contributes a histogram of its gradient
+ * orientations, weighted by their magnitude, which describes the shapes of the landmark, and its mean colour.
+ * Both are centred on the Image's average, so unrelated photos are not similar just because all have edges and colours.
+ * The descriptor is power-normalized, so a few strong edges don't dominate it, and has unit length.
+ */
+public final class ImageEmbedding {
+
+	public static final int GRID = 4;
+	public static final int ORIENTATIONS = 8;
+	public static final int DIMENSION = GRID*GRID*(ORIENTATIONS+3);
+
+	private static final int SIZE = 128;
+	// Colour and shape are weighted evenly, there are fewer colour values than orientation bins
+	private static final float COLOUR_WEIGHT = 1.5f;
+
+	private ImageEmbedding() {
+	}
+
+	/**
+	 * Computes the descriptor of an Image.
+	 * @param content Encoded Image.
+	 * @return The descriptor, of unit length, or null if the Image is not in a supported format.
+	 * @throws IOException If the Image could not be decoded.
+	 */
+	public static float[] compute(byte[] content) throws IOException {
+		BufferedImage img = PerceptualHash.decode(content, SIZE*2);
+		return img == null ? null : compute(img);
+	}
+
+	/**
+	 * Computes the descriptor of a decoded Image.
+	 * @param img The Image.
+	 * @return The descriptor, of unit length.
+	 */
+	public static float[] compute(BufferedImage img) {
+		BufferedImage square = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = square.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		g.drawImage(img, 0, 0, SIZE, SIZE, null);
+		g.dispose();
+		int[] rgb = square.getRGB(0, 0, SIZE, SIZE, null, 0, SIZE);
+		float[] luma = new float[rgb.length];
+		for (int i = 0; i < rgb.length; i++)
+			luma[i] = 0.299f*((rgb[i] >> 16) & 0xff)+0.587f*((rgb[i] >> 8) & 0xff)+0.114f*(rgb[i] & 0xff);
+
+		float[] descriptor = new float[DIMENSION];
+		int cellSize = SIZE/GRID;
+		for (int y = 1; y < SIZE-1; y++)
+			for (int x = 1; x < SIZE-1; x++) {
+				float dx = luma[y*SIZE+x+1]-luma[y*SIZE+x-1];
+				float dy = luma[(y+1)*SIZE+x]-luma[(y-1)*SIZE+x];
+				float magnitude = (float) Math.sqrt(dx*dx+dy*dy);
+				// Unsigned orientation, a landmark's edges look the same on a darker or brighter sky
+				double angle = Math.atan2(dy, dx);
+				if (angle < 0)
+					angle += Math.PI;
+				int bin = Math.min(ORIENTATIONS-1, (int) (angle/Math.PI*ORIENTATIONS));
+				int cell = (y/cellSize)*GRID+x/cellSize;
+				descriptor[cell*(ORIENTATIONS+3)+bin] += magnitude;
+			}
+		normalize(descriptor);
+		// Only the share of each orientation above the average tells landmarks apart, every photo has edges
+		float average = 0;
+		for (int cell = 0; cell < GRID*GRID; cell++)
+			for (int bin = 0; bin < ORIENTATIONS; bin++)
+				average += descriptor[cell*(ORIENTATIONS+3)+bin]/(GRID*GRID*ORIENTATIONS);
+		for (int cell = 0; cell < GRID*GRID; cell++)
+			for (int bin = 0; bin < ORIENTATIONS; bin++)
+				descriptor[cell*(ORIENTATIONS+3)+bin] -= average;
+		// Colours are taken relative to the Image's mean, so the descriptor doesn't depend on the lighting
+		float[] mean = new float[3];
+		float[][] cells = new float[GRID*GRID][3];
+		for (int y = 0; y < SIZE; y++)
+			for (int x = 0; x < SIZE; x++) {
+				int p = rgb[y*SIZE+x];
+				float[] cell = cells[(y/cellSize)*GRID+x/cellSize];
+				cell[0] += (p >> 16) & 0xff;
+				cell[1] += (p >> 8) & 0xff;
+				cell[2] += p & 0xff;
+			}
+		for (float[] cell : cells)
+			for (int c = 0; c < 3; c++) {
+				cell[c] /= 255f*cellSize*cellSize;
+				mean[c] += cell[c]/(GRID*GRID);
+			}
+		for (int cell = 0; cell < GRID*GRID; cell++)
+			for (int c = 0; c < 3; c++)
+				descriptor[cell*(ORIENTATIONS+3)+ORIENTATIONS+c] = COLOUR_WEIGHT*(cells[cell][c]-mean[c]);
+		for (int i = 0; i < DIMENSION; i++)
+			descriptor[i] = (float) (Math.signum(descriptor[i])*Math.sqrt(Math.abs(descriptor[i])));
+		normalize(descriptor);
+		return descriptor;
+	}
+
+	/**
+	 * Returns the similarity of two descriptors.
+	 * @param a A descriptor.
+	 * @param b Another descriptor.
+	 * @return Cosine of the angle between both descriptors, 1 for identical Images.
+	 */
+	public static float similarity(float[] a, float[] b) {
+		float dot = 0;
+		for (int i = 0; i < a.length; i++)
+			dot += a[i]*b[i];
+		return dot;
+	}
+
+	private static void normalize(float[] v) {
+		double norm = 0;
+		for (float x : v)
+			norm += x*x;
+		if (norm == 0)
+			return;
+		float inv = (float) (1/Math.sqrt(norm));
+		for (int i = 0; i < v.length; i++)
+			v[i] *= inv;
+	}
+}
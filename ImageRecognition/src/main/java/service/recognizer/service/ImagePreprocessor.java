@@ -0,0 +1,241 @@
+package service.recognizer.service;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Shrinks Images before they are sent to Cloud Vision, which detects landmarks as well at about 1024 pixels.
+ * Larger Images are decoded with subsampling, scaled down to the maximum dimension and re-encoded as JPEG.
+ * The re-encoded Image has no metadata, so the EXIF orientation of a JPEG is applied to its pixels first.
+ * Smaller Images, and Images that cannot be decoded or encoded, such as CMYK or truncated JPEGs,
+ * are sent as they are. The bytes are wrapped, not copied.
+ * Setting the maximum dimension to 0 disables the preprocessing.
+ */
+@Component
+public class ImagePreprocessor {
+
+	public static final Logger logger = LoggerFactory.getLogger(ImagePreprocessor.class);
+
+	// EXIF tag of the orientation, in the first directory of the APP1 segment of JPEGs
+	private static final int ORIENTATION_TAG = 0x0112;
+
+	private final int maxDimension;
+	private final int quality;
+
+	private final DistributionSummary originalBytes;
+	private final DistributionSummary sentBytes;
+
+	/**
+	 * Creates the preprocessor.
+	 * @param maxDimension Maximum width and height of the Images sent, 0 disables the preprocessing.
+	 * @param quality JPEG quality of the shrunk Images, from 1 to 100.
+	 * @param registry Registry where the preprocessing metrics are published.
+	 */
+	@Autowired
+	public ImagePreprocessor(@Value("${recognition.preprocess.max-dimension:1024}") int maxDimension,
+			@Value("${recognition.preprocess.quality:85}") int quality,
+			MeterRegistry registry) {
+		this.maxDimension = maxDimension;
+		this.quality = Math.max(1, Math.min(quality, 100));
+		this.originalBytes = registry.summary("recognition.preprocess.original.bytes");
+		this.sentBytes = registry.summary("recognition.preprocess.sent.bytes");
+	}
+
+	/**
+	 * Returns the content to send to Cloud Vision for an Image.
+	 * @param content Encoded Image, which must not be modified afterwards.
+	 * @return The shrunk Image, or the original if it is small enough or cannot be decoded or encoded.
+	 */
+	public ByteString prepare(byte[] content) {
+		byte[] sent = content;
+		if (maxDimension > 0) {
+			try {
+				sent = shrink(content);
+			} catch (IOException | RuntimeException e) {
+				// Cloud Vision might still read it
+				logger.warn("Could not shrink an Image of {} bytes, sending it as it is: {}", content.length, e.toString());
+			}
+		}
+		originalBytes.record(content.length);
+		sentBytes.record(sent.length);
+		return UnsafeByteOperations.unsafeWrap(sent);
+	}
+
+	private byte[] shrink(byte[] content) throws IOException {
+		BufferedImage img;
+		try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(content))) {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+			if (!readers.hasNext())
+				return content;
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(in, true, true);
+				int largest = Math.max(reader.getWidth(0), reader.getHeight(0));
+				if (largest <= maxDimension)
+					return content;
+				// Skipping pixels while decoding is much cheaper than decoding them all and scaling down
+				ImageReadParam param = reader.getDefaultReadParam();
+				int step = Math.max(1, largest/maxDimension);
+				param.setSourceSubsampling(step, step, 0, 0);
+				img = reader.read(0, param);
+			} finally {
+				reader.dispose();
+			}
+		}
+		double scale = (double) maxDimension/Math.max(img.getWidth(), img.getHeight());
+		byte[] shrunk = writeJpeg(orient(resize(img, scale), orientation(content)));
+		return shrunk.length < content.length ? shrunk : content;
+	}
+
+	/**
+	 * Halves the Image until it is close to the target, bilinear filtering loses detail on larger steps.
+	 */
+	private static BufferedImage resize(BufferedImage img, double scale) {
+		int width = Math.max(1, (int) Math.round(img.getWidth()*Math.min(scale, 1)));
+		int height = Math.max(1, (int) Math.round(img.getHeight()*Math.min(scale, 1)));
+		BufferedImage current = img;
+		do {
+			int stepWidth = Math.max(width, current.getWidth()/2);
+			int stepHeight = Math.max(height, current.getHeight()/2);
+			BufferedImage step = new BufferedImage(stepWidth, stepHeight, BufferedImage.TYPE_INT_RGB);
+			Graphics2D g = step.createGraphics();
+			g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			g.drawImage(current, 0, 0, stepWidth, stepHeight, null);
+			g.dispose();
+			current = step;
+		} while (current.getWidth() != width || current.getHeight() != height);
+		return current;
+	}
+
+	/**
+	 * Turns an Image the way its EXIF orientation says it is displayed, from 1 (as stored) to 8.
+	 */
+	private static BufferedImage orient(BufferedImage img, int orientation) {
+		if (orientation < 2 || orientation > 8)
+			return img;
+		int w = img.getWidth();
+		int h = img.getHeight();
+		// Orientations from 5 on swap the width and height
+		boolean swap = orientation >= 5;
+		int width = swap ? h : w;
+		int height = swap ? w : h;
+		int[] source = img.getRGB(0, 0, w, h, null, 0, w);
+		int[] target = new int[source.length];
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++) {
+				int sx, sy;
+				switch (orientation) {
+				case 2: sx = w-1-x; sy = y; break;
+				case 3: sx = w-1-x; sy = h-1-y; break;
+				case 4: sx = x; sy = h-1-y; break;
+				case 5: sx = y; sy = x; break;
+				case 6: sx = y; sy = h-1-x; break;
+				case 7: sx = w-1-y; sy = h-1-x; break;
+				default: sx = w-1-y; sy = x; break;
+				}
+				target[y*width+x] = source[sy*w+sx];
+			}
+		BufferedImage oriented = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		oriented.setRGB(0, 0, width, height, target, 0, width);
+		return oriented;
+	}
+
+	/**
+	 * Reads the EXIF orientation of a JPEG.
+	 * @return The orientation, 1 if the Image is not a JPEG or has none.
+	 */
+	static int orientation(byte[] content) {
+		if (content.length < 4 || (content[0] & 0xff) != 0xff || (content[1] & 0xff) != 0xd8)
+			return 1;
+		int position = 2;
+		// Segments before the image data, each a marker and a big-endian length that includes itself
+		while (position+4 <= content.length && (content[position] & 0xff) == 0xff) {
+			int marker = content[position+1] & 0xff;
+			if (marker == 0xda || marker == 0xd9)
+				break;
+			int length = u16(content, position+2, false);
+			int start = position+4;
+			if (length < 2 || start+length-2 > content.length)
+				break;
+			if (marker == 0xe1 && length >= 2+6+8 && content[start] == 'E' && content[start+1] == 'x' && content[start+2] == 'i'
+					&& content[start+3] == 'f' && content[start+4] == 0 && content[start+5] == 0)
+				return exifOrientation(content, start+6, start+length-2);
+			position = start+length-2;
+		}
+		return 1;
+	}
+
+	/**
+	 * Reads the orientation in the first directory of a TIFF header, between tiff and end.
+	 */
+	private static int exifOrientation(byte[] content, int tiff, int end) {
+		boolean little = content[tiff] == 'I' && content[tiff+1] == 'I';
+		if (!little && !(content[tiff] == 'M' && content[tiff+1] == 'M'))
+			return 1;
+		long directory = tiff+u32(content, tiff+4, little);
+		if (directory+2 > end)
+			return 1;
+		int entries = u16(content, (int) directory, little);
+		for (int i = 0; i < entries; i++) {
+			int entry = (int) directory+2+i*12;
+			if (entry+12 > end)
+				break;
+			if (u16(content, entry, little) == ORIENTATION_TAG)
+				return u16(content, entry+8, little);
+		}
+		return 1;
+	}
+
+	private static int u16(byte[] content, int position, boolean little) {
+		int a = content[position] & 0xff;
+		int b = content[position+1] & 0xff;
+		return little ? b << 8 | a : a << 8 | b;
+	}
+
+	private static long u32(byte[] content, int position, boolean little) {
+		long high = u16(content, position+(little ? 2 : 0), little);
+		long low = u16(content, position+(little ? 0 : 2), little);
+		return high << 16 | low;
+	}
+
+	private byte[] writeJpeg(BufferedImage img) throws IOException {
+		ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ImageOutputStream out = ImageIO.createImageOutputStream(bytes)) {
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setCompressionQuality(quality/100f);
+			writer.setOutput(out);
+			writer.write(null, new IIOImage(img, null, null), param);
+		} finally {
+			writer.dispose();
+		}
+		return bytes.toByteArray();
+	}
+}
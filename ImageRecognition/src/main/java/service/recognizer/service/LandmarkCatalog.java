@@ -0,0 +1,156 @@
+package service.recognizer.service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import service.recognizer.model.Information;
+
+/**
+ * Known landmarks, each described by one or more photos, looked up by the descriptor of a new Image.
+ * The photos are kept in a landmark index, built from the catalog on startup if it does not exist yet
+ * or the catalog changed since. Building it again keeps the photos added with LandmarkIndexBuilder --append.
+ * The catalog is a CSV file with the columns image, label, latitude, longitude, description and extract,
+ * where image is the path of a photo relative to the file.
+ */
+@Component
+@ConditionalOnProperty(name="recognition.engine", havingValue="local")
+public class LandmarkCatalog {
+
+	public static final Logger logger = LoggerFactory.getLogger(LandmarkCatalog.class);
+
+	private final Path location;
+	private final Path indexLocation;
+	private final int probes;
+	private LandmarkIndex index;
+
+	/**
+	 * Creates the landmark catalog.
+	 * @param location Path of the CSV file describing the landmarks.
+	 * @param indexLocation Path of the landmark index.
+	 * @param probes Number of lists of the index scanned by a lookup.
+	 */
+	@Autowired
+	public LandmarkCatalog(@Value("${recognition.local.catalog:landmarks/landmarks.csv}") String location,
+			@Value("${recognition.local.index:landmarks/landmarks.idx}") String indexLocation,
+			@Value("${recognition.local.probes:8}") int probes) {
+		this.location = Paths.get(location);
+		this.indexLocation = Paths.get(indexLocation);
+		this.probes = Math.max(1, probes);
+	}
+
+	/**
+	 * Opens the landmark index, building it from the catalog if it does not exist or is older than the catalog.
+	 */
+	@PostConstruct
+	public void init() throws IOException {
+		boolean catalog = Files.exists(location);
+		if (Files.exists(indexLocation) && !(catalog && isNewer(location, indexLocation)))
+			index = LandmarkIndex.open(indexLocation, false);
+		else if (catalog) {
+			if (Files.exists(indexLocation))
+				logger.info("Landmark catalog {} changed, building the landmark index again.", location);
+			index = LandmarkIndexBuilder.build(location, indexLocation);
+		} else {
+			logger.error("Landmark catalog {} not found, no landmark will be recognized.", location);
+			return;
+		}
+		logger.info("Loaded {} photos of known landmarks.", index.size());
+	}
+
+	private static boolean isNewer(Path file, Path than) throws IOException {
+		return Files.getLastModifiedTime(file).compareTo(Files.getLastModifiedTime(than)) > 0;
+	}
+
+	@PreDestroy
+	public void close() throws IOException {
+		if (index != null)
+			index.close();
+	}
+
+	/**
+	 * Returns the landmark whose photo is the most similar to an Image.
+	 * @param descriptor Descriptor of the Image.
+	 * @param minSimilarity Similarity below which photos are not considered.
+	 * @return The landmark, or null if no photo is similar enough.
+	 * @throws IOException If the landmark could not be read from the index.
+	 */
+	public Information nearest(float[] descriptor, float minSimilarity) throws IOException {
+		if (index == null)
+			return null;
+		List<LandmarkIndex.Neighbour> neighbours = index.search(descriptor, 1, probes);
+		if (neighbours.isEmpty() || neighbours.get(0).getSimilarity() < minSimilarity)
+			return null;
+		return neighbours.get(0).getInfo();
+	}
+
+	public int size() {
+		return index == null ? 0 : index.size();
+	}
+
+	/**
+	 * Converts a row of the catalog, from its second column on, to the landmark's Information.
+	 * @param row Columns of the row.
+	 * @return The Information of the landmark.
+	 */
+	public static Information toInformation(String[] row) {
+		return new Information(row[1], Double.parseDouble(row[2]), Double.parseDouble(row[3]),
+				row.length > 4 ? row[4] : row[1], row.length > 5 ? row[5] : null);
+	}
+
+	/**
+	 * Reads a CSV file with a header, one record per line, where fields may be quoted with ".
+	 * @param file The CSV file.
+	 * @return The fields of each record, without the header.
+	 * @throws IOException If the file could not be read, or a record has less than 4 fields.
+	 */
+	public static List<String[]> readCsv(Path file) throws IOException {
+		List<String[]> rows = new ArrayList<>();
+		List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+		for (int n = 1; n < lines.size(); n++) {
+			String line = lines.get(n);
+			if (line.trim().isEmpty())
+				continue;
+			List<String> fields = new ArrayList<>();
+			StringBuilder field = new StringBuilder();
+			boolean quoted = false;
+			for (int i = 0; i < line.length(); i++) {
+				char c = line.charAt(i);
+				if (quoted) {
+					if (c == '"' && i+1 < line.length() && line.charAt(i+1) == '"') {
+						field.append('"');
+						i++;
+					} else if (c == '"')
+						quoted = false;
+					else
+						field.append(c);
+				} else if (c == '"')
+					quoted = true;
+				else if (c == ',') {
+					fields.add(field.toString());
+					field.setLength(0);
+				} else
+					field.append(c);
+			}
+			fields.add(field.toString());
+			if (fields.size() < 4)
+				throw new IOException("Line "+(n+1)+" of "+file+" has less than 4 fields.");
+			rows.add(fields.toArray(new String[0]));
+		}
+		return rows;
+	}
+}
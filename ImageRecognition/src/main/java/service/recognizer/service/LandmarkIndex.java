@@ -0,0 +1,358 @@
+package service.recognizer.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.stream.IntStream;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import service.recognizer.model.Information;
+
+/**
+ * Approximate nearest-neighbour index of landmark descriptors, stored in a memory-mapped file so it opens
+ * instantly and its pages are shared by every process reading it.
+ * The descriptors are split in lists, one for each centroid found by k-means when the index is built,
+ * and a lookup only scans the lists of the few centroids closest to the query (an inverted file index).
+ * New landmarks are appended to the list of their closest centroid, and an index open for reading maps the
+ * landmarks appended by another process once the number in the header has grown. The Information of each
+ * landmark is kept as JSON in a second file, next to the index, and only read for the landmarks returned.
+ *
+ * The index file starts with a header (magic, version, dimension, number of lists, number of landmarks),
+ * followed by the last landmark of each list, the centroids, and the landmarks: each holds the previous landmark
+ * of its list, the position and length of its Information, and its descriptor.
+ */
+public class LandmarkIndex implements Closeable {
+
+	private static final int MAGIC = 0x4C4D4958;
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 24;
+	private static final int RECORD_HEADER_BYTES = 16;
+	private static final int COUNT_POSITION = 16;
+	private static final int NONE = -1;
+
+	private final FileChannel channel;
+	private final FileChannel metaChannel;
+	private final ObjectMapper mapper = new ObjectMapper();
+	private final int dimension;
+	private final int lists;
+	private final int dataStart;
+	private final int recordBytes;
+	private final float[][] centroids;
+
+	private volatile MappedByteBuffer buffer;
+	private volatile int count;
+
+	private LandmarkIndex(Path file, boolean writable) throws IOException {
+		this.channel = writable
+				? FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)
+				: FileChannel.open(file, StandardOpenOption.READ);
+		Path meta = metaFile(file);
+		this.metaChannel = writable
+				? FileChannel.open(meta, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE)
+				: FileChannel.open(meta, StandardOpenOption.READ);
+		this.buffer = map(channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+			throw new IOException(file+" is not a landmark index.");
+		this.dimension = buffer.getInt(8);
+		this.lists = buffer.getInt(12);
+		this.count = buffer.getInt(COUNT_POSITION);
+		this.dataStart = HEADER_BYTES+4*lists+4*lists*dimension;
+		this.recordBytes = RECORD_HEADER_BYTES+4*dimension;
+		this.centroids = new float[lists][dimension];
+		for (int list = 0; list < lists; list++)
+			for (int i = 0; i < dimension; i++)
+				centroids[list][i] = buffer.getFloat(HEADER_BYTES+4*lists+4*(list*dimension+i));
+	}
+
+	/**
+	 * Opens an existing index.
+	 * @param file The index file.
+	 * @param writable Whether landmarks are added to the index.
+	 * @return The index.
+	 * @throws IOException If the file could not be read or is not an index.
+	 */
+	public static LandmarkIndex open(Path file, boolean writable) throws IOException {
+		return new LandmarkIndex(file, writable);
+	}
+
+	/**
+	 * Creates an empty index, replacing the existing one.
+	 * @param file The index file.
+	 * @param centroids Centroids of the lists, all with the descriptors' dimension.
+	 * @return The index, open for writing.
+	 * @throws IOException If the file could not be written.
+	 */
+	public static LandmarkIndex create(Path file, float[][] centroids) throws IOException {
+		int lists = centroids.length;
+		int dimension = centroids[0].length;
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES+4*lists+4*lists*dimension).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC).putInt(VERSION).putInt(dimension).putInt(lists).putInt(0).putInt(0);
+		for (int list = 0; list < lists; list++)
+			header.putInt(NONE);
+		for (float[] centroid : centroids)
+			for (float x : centroid)
+				header.putFloat(x);
+		header.flip();
+		try (FileChannel out = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (header.hasRemaining())
+				out.write(header);
+		}
+		Files.deleteIfExists(metaFile(file));
+		return new LandmarkIndex(file, true);
+	}
+
+	public int getDimension() {
+		return dimension;
+	}
+
+	public int getLists() {
+		return lists;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Adds a landmark to the list of its closest centroid.
+	 * @param descriptor Descriptor of a photo of the landmark.
+	 * @param info Information of the landmark.
+	 * @throws IOException If the index could not be written.
+	 */
+	public synchronized void add(float[] descriptor, Information info) throws IOException {
+		if (descriptor.length != dimension)
+			throw new IllegalArgumentException("Descriptor has "+descriptor.length+" values instead of "+dimension+".");
+		byte[] json = mapper.writeValueAsBytes(info);
+		long metaOffset = metaChannel.size();
+		ByteBuffer meta = ByteBuffer.wrap(json);
+		while (meta.hasRemaining())
+			metaChannel.write(meta, metaOffset+meta.position());
+
+		long position = (long) dataStart+(long) count*recordBytes;
+		if (position+recordBytes > Integer.MAX_VALUE)
+			throw new IOException("The landmark index is full.");
+		MappedByteBuffer map = buffer;
+		if (position+recordBytes > map.capacity()) {
+			// Doubles the mapping, which extends the file
+			long capacity = Math.min(Integer.MAX_VALUE, Math.max(position+recordBytes, (long) map.capacity()*2));
+			map = map(channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity));
+			buffer = map;
+		}
+		int list = closestLists(descriptor, 1)[0];
+		int headPosition = HEADER_BYTES+4*list;
+		int record = (int) position;
+		map.putInt(record, map.getInt(headPosition));
+		map.putInt(record+4, json.length);
+		map.putLong(record+8, metaOffset);
+		for (int i = 0; i < dimension; i++)
+			map.putFloat(record+RECORD_HEADER_BYTES+4*i, descriptor[i]);
+		// The landmark is linked and counted once it is complete, so readers never see it half written
+		map.putInt(headPosition, count);
+		map.putInt(COUNT_POSITION, count+1);
+		count++;
+	}
+
+	/**
+	 * Returns the landmarks whose descriptors are the most similar to a query.
+	 * @param descriptor Descriptor of the query, of unit length.
+	 * @param k Number of landmarks returned at most.
+	 * @param probes Number of lists scanned, the more the closer to an exact search.
+	 * @return The landmarks, the most similar first.
+	 * @throws IOException If the Information of a landmark could not be read.
+	 */
+	public List<Neighbour> search(float[] descriptor, int k, int probes) throws IOException {
+		MappedByteBuffer map = buffer;
+		if (map.getInt(COUNT_POSITION) != count)
+			map = refresh();
+		// Descriptors are copied in bulk through a float view, much faster than reading them one by one
+		FloatBuffer floats = map.duplicate().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+		float[] candidate = new float[dimension];
+		int size = count;
+		// Smallest similarity first, so the worst of the k best is dropped
+		PriorityQueue<long[]> best = new PriorityQueue<>(k+1, (a, b) -> Float.compare(Float.intBitsToFloat((int) a[1]), Float.intBitsToFloat((int) b[1])));
+		for (int list : closestLists(descriptor, Math.min(probes, lists))) {
+			for (int entry = map.getInt(HEADER_BYTES+4*list); entry != NONE; ) {
+				long end = dataStart+((long) entry+1)*recordBytes;
+				if (entry < 0 || end > map.capacity()) {
+					// Landmark added by another process beyond the mapping, only its link to the previous one is needed
+					map = refresh();
+					if (entry < 0 || end > map.capacity())
+						break;
+					floats = map.duplicate().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+				}
+				int record = dataStart+entry*recordBytes;
+				if (entry < size) {
+					floats.position((record+RECORD_HEADER_BYTES)/4);
+					floats.get(candidate);
+					float similarity = ImageEmbedding.similarity(descriptor, candidate);
+					if (best.size() < k || similarity > Float.intBitsToFloat((int) best.peek()[1])) {
+						best.add(new long[] {entry, Float.floatToIntBits(similarity)});
+						if (best.size() > k)
+							best.poll();
+					}
+				}
+				entry = map.getInt(record);
+			}
+		}
+		Neighbour[] neighbours = new Neighbour[best.size()];
+		for (int i = neighbours.length-1; i >= 0; i--) {
+			long[] match = best.poll();
+			int record = dataStart+(int) match[0]*recordBytes;
+			neighbours[i] = new Neighbour(readInfo(map.getLong(record+8), map.getInt(record+4)), Float.intBitsToFloat((int) match[1]));
+		}
+		return Arrays.asList(neighbours);
+	}
+
+	/**
+	 * Maps the landmarks added by another process since the index was mapped, when it is open for reading.
+	 * @return The current mapping.
+	 */
+	private synchronized MappedByteBuffer refresh() throws IOException {
+		MappedByteBuffer map = buffer;
+		long size = Math.min(channel.size(), Integer.MAX_VALUE);
+		if (map.isReadOnly() && size > map.capacity()) {
+			map = map(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+			buffer = map;
+		}
+		// Only the landmarks within the mapping are counted, the file may not be extended yet
+		long mapped = (map.capacity()-dataStart)/recordBytes;
+		count = (int) Math.max(count, Math.min(map.getInt(COUNT_POSITION), mapped));
+		return map;
+	}
+
+	/**
+	 * Writes the changes to disk.
+	 * @throws IOException If the index could not be written.
+	 */
+	public synchronized void flush() throws IOException {
+		if (!buffer.isReadOnly())
+			buffer.force();
+		metaChannel.force(false);
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			channel.close();
+			metaChannel.close();
+		}
+	}
+
+	private int[] closestLists(float[] descriptor, int n) {
+		Integer[] order = new Integer[lists];
+		float[] similarities = new float[lists];
+		for (int list = 0; list < lists; list++) {
+			order[list] = list;
+			similarities[list] = ImageEmbedding.similarity(descriptor, centroids[list]);
+		}
+		Arrays.sort(order, (a, b) -> Float.compare(similarities[b], similarities[a]));
+		int[] closest = new int[n];
+		for (int i = 0; i < n; i++)
+			closest[i] = order[i];
+		return closest;
+	}
+
+	private Information readInfo(long offset, int length) throws IOException {
+		ByteBuffer json = ByteBuffer.allocate(length);
+		while (json.hasRemaining())
+			if (metaChannel.read(json, offset+json.position()) < 0)
+				throw new IOException("The Information of a landmark is truncated.");
+		return mapper.readValue(new String(json.array(), StandardCharsets.UTF_8), Information.class);
+	}
+
+	/**
+	 * Reads the file in little-endian order, the native one of most CPUs, so floats are read without swapping bytes.
+	 */
+	private static MappedByteBuffer map(MappedByteBuffer buffer) {
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		return buffer;
+	}
+
+	static Path metaFile(Path file) {
+		return file.resolveSibling(file.getFileName()+".meta");
+	}
+
+	/**
+	 * Finds the centroids of a set of descriptors by spherical k-means, so each list holds about as many landmarks.
+	 * @param descriptors Descriptors of unit length.
+	 * @param lists Number of centroids.
+	 * @param iterations Number of k-means iterations.
+	 * @return The centroids, of unit length.
+	 */
+	public static float[][] train(List<float[]> descriptors, int lists, int iterations) {
+		int dimension = descriptors.get(0).length;
+		lists = Math.max(1, Math.min(lists, descriptors.size()));
+		float[][] centroids = new float[lists][];
+		// Evenly spaced descriptors as the initial centroids
+		for (int list = 0; list < lists; list++)
+			centroids[list] = descriptors.get((int) ((long) list*descriptors.size()/lists)).clone();
+		int[] assignment = new int[descriptors.size()];
+		for (int iteration = 0; iteration < iterations; iteration++) {
+			float[][] current = centroids;
+			IntStream.range(0, descriptors.size()).parallel().forEach(i -> {
+				int best = 0;
+				float bestSimilarity = -Float.MAX_VALUE;
+				for (int list = 0; list < current.length; list++) {
+					float similarity = ImageEmbedding.similarity(descriptors.get(i), current[list]);
+					if (similarity > bestSimilarity) {
+						best = list;
+						bestSimilarity = similarity;
+					}
+				}
+				assignment[i] = best;
+			});
+			float[][] sums = new float[lists][dimension];
+			for (int i = 0; i < descriptors.size(); i++)
+				for (int d = 0; d < dimension; d++)
+					sums[assignment[i]][d] += descriptors.get(i)[d];
+			for (int list = 0; list < lists; list++) {
+				double norm = 0;
+				for (float x : sums[list])
+					norm += x*x;
+				// An empty list keeps its centroid
+				if (norm == 0)
+					continue;
+				for (int d = 0; d < dimension; d++)
+					sums[list][d] /= Math.sqrt(norm);
+				centroids[list] = sums[list];
+			}
+		}
+		return centroids;
+	}
+
+	/**
+	 * A landmark returned by a lookup, with its similarity to the query.
+	 */
+	public static class Neighbour {
+
+		private final Information info;
+		private final float similarity;
+
+		public Neighbour(Information info, float similarity) {
+			this.info = info;
+			this.similarity = similarity;
+		}
+
+		public Information getInfo() {
+			return info;
+		}
+
+		public float getSimilarity() {
+			return similarity;
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package service.recognizer.service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds the landmark index from a CSV file of labelled photos, in the format of the landmark catalog,
+ * or adds the photos of such a file to an existing index.
+ * The catalogs added to an index are listed in a file next to it, so building the index again keeps their photos.
+ * Usage: LandmarkIndexBuilder catalog.csv index [--append]
+ */
+public final class LandmarkIndexBuilder {
+
+	public static final Logger logger = LoggerFactory.getLogger(LandmarkIndexBuilder.class);
+
+	// Number of k-means iterations finding the centroids of the lists
+	private static final int ITERATIONS = 10;
+
+	private LandmarkIndexBuilder() {
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2 || (args.length > 2 && !"--append".equals(args[2]))) {
+			System.err.println("Usage: LandmarkIndexBuilder catalog.csv index [--append]");
+			System.exit(1);
+		}
+		Path catalog = Paths.get(args[0]);
+		Path index = Paths.get(args[1]);
+		if (args.length > 2)
+			append(catalog, index);
+		else
+			build(catalog, index).close();
+	}
+
+	/**
+	 * Builds an index of the photos of a catalog, replacing the existing one.
+	 * The photos of the catalogs added to the existing index are kept, and a catalog that was added but is missing
+	 * stops the build, rather than silently dropping its photos.
+	 * The photos are split in about the square root of their number of lists.
+	 * The index is built in a temporary file renamed into place once complete, so a build that fails
+	 * or is interrupted leaves the existing index as it was, and processes reading it are not disturbed.
+	 * The Information file is renamed before the index, if the index is not renamed it is older than the catalog
+	 * and is built again on the next startup.
+	 * @param catalog CSV file describing the landmarks.
+	 * @param index The index file.
+	 * @return The index, open for writing.
+	 * @throws IOException If a catalog could not be read or the index written.
+	 */
+	public static LandmarkIndex build(Path catalog, Path index) throws IOException {
+		List<String[]> rows = new ArrayList<>();
+		List<float[]> descriptors = new ArrayList<>();
+		List<Path> catalogs = new ArrayList<>();
+		catalogs.add(catalog);
+		for (Path appended : appended(index)) {
+			if (!Files.exists(appended))
+				throw new IOException("Catalog "+appended+" was added to the landmark index "+index+" but is missing, remove it from "
+						+appendedFile(index)+" to drop its photos.");
+			if (!Files.isSameFile(appended, catalog))
+				catalogs.add(appended);
+		}
+		for (Path file : catalogs) {
+			List<String[]> read = LandmarkCatalog.readCsv(file);
+			rows.addAll(read);
+			descriptors.addAll(Arrays.asList(describe(file, read)));
+		}
+		List<float[]> described = new ArrayList<>();
+		for (float[] descriptor : descriptors)
+			if (descriptor != null)
+				described.add(descriptor);
+		float[][] centroids = described.isEmpty()
+				? new float[][] {new float[ImageEmbedding.DIMENSION]}
+				: LandmarkIndex.train(described, (int) Math.ceil(Math.sqrt(described.size())), ITERATIONS);
+		Path temporary = index.resolveSibling(index.getFileName()+".tmp");
+		try {
+			try (LandmarkIndex built = LandmarkIndex.create(temporary, centroids)) {
+				add(built, rows, descriptors);
+			}
+			Files.move(LandmarkIndex.metaFile(temporary), LandmarkIndex.metaFile(index), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			Files.move(temporary, index, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(temporary);
+			Files.deleteIfExists(LandmarkIndex.metaFile(temporary));
+		}
+		LandmarkIndex built = LandmarkIndex.open(index, true);
+		logger.info("Built the landmark index {} with {} photos in {} lists.", index, built.size(), built.getLists());
+		return built;
+	}
+
+	/**
+	 * Adds the photos of a catalog to an existing index, and lists the catalog with the ones added to the index.
+	 * @param catalog CSV file describing the landmarks.
+	 * @param index The index file.
+	 * @throws IOException If the catalog could not be read or the index written.
+	 */
+	public static void append(Path catalog, Path index) throws IOException {
+		List<String[]> rows = LandmarkCatalog.readCsv(catalog);
+		List<float[]> descriptors = Arrays.asList(describe(catalog, rows));
+		try (LandmarkIndex existing = LandmarkIndex.open(index, true)) {
+			int before = existing.size();
+			add(existing, rows, descriptors);
+			logger.info("Added {} photos to the landmark index {}.", existing.size()-before, index);
+		}
+		Path added = catalog.toAbsolutePath().normalize();
+		if (!appended(index).contains(added))
+			Files.write(appendedFile(index), Collections.singletonList(added.toString()), StandardCharsets.UTF_8,
+					StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+	}
+
+	/**
+	 * Returns the catalogs added to an index.
+	 * @param index The index file.
+	 * @return Absolute paths of the catalogs, empty if none was added.
+	 * @throws IOException If the list of catalogs could not be read.
+	 */
+	public static List<Path> appended(Path index) throws IOException {
+		Path file = appendedFile(index);
+		List<Path> catalogs = new ArrayList<>();
+		if (!Files.exists(file))
+			return catalogs;
+		for (String line : Files.readAllLines(file, StandardCharsets.UTF_8))
+			if (!line.trim().isEmpty())
+				catalogs.add(Paths.get(line.trim()));
+		return catalogs;
+	}
+
+	static Path appendedFile(Path index) {
+		return index.resolveSibling(index.getFileName()+".appended");
+	}
+
+	private static void add(LandmarkIndex index, List<String[]> rows, List<float[]> descriptors) throws IOException {
+		for (int i = 0; i < rows.size(); i++)
+			if (descriptors.get(i) != null)
+				index.add(descriptors.get(i), LandmarkCatalog.toInformation(rows.get(i)));
+	}
+
+	/**
+	 * Describes the photos of a catalog in parallel, leaving null the ones that cannot be read.
+	 */
+	private static float[][] describe(Path catalog, List<String[]> rows) {
+		float[][] described = new float[rows.size()][];
+		IntStream.range(0, rows.size()).parallel().forEach(i -> {
+			Path img = catalog.resolveSibling(rows.get(i)[0]);
+			try {
+				described[i] = ImageEmbedding.compute(Files.readAllBytes(img));
+				if (described[i] == null)
+					logger.error("Photo {} of the landmark catalog is not in a supported format.", img);
+			} catch (IOException e) {
+				logger.error("Could not read photo {} of the landmark catalog.", img, e);
+			}
+		});
+		return described;
+	}
+}
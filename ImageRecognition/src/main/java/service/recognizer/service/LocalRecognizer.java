@@ -0,0 +1,66 @@
+package service.recognizer.service;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import service.recognizer.model.Information;
+
+/**
+ * Recognizes landmarks on the local CPU, by matching the descriptor of an Image against a catalog
+ * of photos of known landmarks. No network is needed, but only the landmarks of the catalog are recognized.
+ */
+@Service
+@ConditionalOnProperty(name="recognition.engine", havingValue="local")
+public class LocalRecognizer implements RecognitionService {
+
+	private final LandmarkCatalog catalog;
+	private final float minSimilarity;
+	private final Timer lookups;
+
+	/**
+	 * Creates the local recognizer.
+	 * @param catalog Catalog of known landmarks.
+	 * @param minSimilarity Similarity, from 0 to 1, above which an Image shows a landmark of the catalog.
+	 * @param registry Registry where the recognition metrics are published.
+	 */
+	@Autowired
+	public LocalRecognizer(LandmarkCatalog catalog, @Value("${recognition.local.min-similarity:0.7}") float minSimilarity,
+			MeterRegistry registry) {
+		this.catalog = catalog;
+		this.minSimilarity = minSimilarity;
+		this.lookups = registry.timer("recognition.local.lookup");
+	}
+
+	@Override
+	public Information recognizeThis(MultipartFile file) {
+		try {
+			return recognizeThis(file.getBytes());
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return new Information();
+	}
+
+	@Override
+	public Information recognizeThis(byte[] content) {
+		long start = System.nanoTime();
+		try {
+			float[] descriptor = ImageEmbedding.compute(content);
+			Information landmark = descriptor == null ? null : catalog.nearest(descriptor, minSimilarity);
+			return landmark == null ? new Information() : landmark;
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			lookups.record(System.nanoTime()-start, TimeUnit.NANOSECONDS);
+		}
+		return new Information();
+	}
+}
@@ -0,0 +1,211 @@
+package service.recognizer.service;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import service.recognizer.model.Information;
+
+/**
+ * Finds the recognition result of an Image similar to a new one, so crops, recompressions and resizes
+ * of an Image recognized before are answered without calling Cloud Vision.
+ * Results are indexed by the perceptual hash of their Image in a multi-index hash table: the 64 bits are split
+ * in 4 chunks of 16 bits, each with its own table. Two hashes within distance d have at least one chunk
+ * within distance d/4, so a lookup only compares the hashes found in the buckets of the chunks near the query's.
+ * Entries are kept in flat arrays, in insertion order, and the buckets are linked lists through them,
+ * to hold millions of results in little memory. When the index is full, the oldest tenth of the results is dropped.
+ * Setting the maximum distance below 0 disables the index.
+ */
+@Component
+public class NearDuplicateIndex {
+
+	private static final int NONE = -1;
+	private static final int CHUNKS = 4;
+	private static final int CHUNK_BITS = 16;
+
+	private final int maxDistance;
+	// Maximum distance of the chunk that must be close to the query's
+	private final int maxChunkDistance;
+	private final int maxEntries;
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	// First entry of each bucket of each table
+	private final int[][] buckets = new int[CHUNKS][1 << CHUNK_BITS];
+	// Entry i holds hashes[i] and infos[i], next[t][i] is the next entry in its bucket of table t
+	private long[] hashes = new long[1024];
+	private Information[] infos = new Information[1024];
+	private int[][] next = new int[CHUNKS][1024];
+	private int size;
+
+	private final Counter hits;
+	private final Counter misses;
+	private final Timer lookups;
+
+	/**
+	 * Creates the near-duplicate index.
+	 * @param maxDistance Maximum number of differing hash bits between similar Images, below 0 disables the index.
+	 * @param maxEntries Maximum number of results indexed.
+	 * @param registry Registry where the index metrics are published.
+	 */
+	@Autowired
+	public NearDuplicateIndex(@Value("${recognition.near-duplicates.max-distance:6}") int maxDistance,
+			@Value("${recognition.near-duplicates.max-entries:1000000}") int maxEntries,
+			MeterRegistry registry) {
+		this.maxDistance = Math.min(maxDistance, 64);
+		this.maxChunkDistance = this.maxDistance/CHUNKS;
+		this.maxEntries = Math.max(maxEntries, 1);
+		for (int[] table : buckets)
+			Arrays.fill(table, NONE);
+		this.hits = registry.counter("recognition.near-duplicates.hits");
+		this.misses = registry.counter("recognition.near-duplicates.misses");
+		this.lookups = registry.timer("recognition.near-duplicates.lookup");
+		registry.gauge("recognition.near-duplicates.entries", this, NearDuplicateIndex::size);
+	}
+
+	/**
+	 * Checks if the index is enabled.
+	 * @return True if similar Images are looked up, False otherwise.
+	 */
+	public boolean isEnabled() {
+		return maxDistance >= 0;
+	}
+
+	/**
+	 * Returns the result of the most similar Image indexed.
+	 * @param hash Perceptual hash of the Image.
+	 * @return The result of the closest Image within the maximum distance, or null if there is none.
+	 */
+	public Information find(long hash) {
+		long start = System.nanoTime();
+		Information info = null;
+		lock.readLock().lock();
+		try {
+			int best = closest(hash);
+			if (best != NONE)
+				info = infos[best];
+		} finally {
+			lock.readLock().unlock();
+			lookups.record(System.nanoTime()-start, TimeUnit.NANOSECONDS);
+		}
+		if (info == null) {
+			misses.increment();
+			return null;
+		}
+		hits.increment();
+		return info;
+	}
+
+	/**
+	 * Indexes the result of an Image, replacing the result of an Image with the same hash.
+	 * @param hash Perceptual hash of the Image.
+	 * @param info The recognition result.
+	 */
+	public void put(long hash, Information info) {
+		if (!isEnabled())
+			return;
+		lock.writeLock().lock();
+		try {
+			for (int entry = buckets[0][chunk(hash, 0)]; entry != NONE; entry = next[0][entry])
+				if (hashes[entry] == hash) {
+					infos[entry] = info;
+					return;
+				}
+			if (size == maxEntries)
+				dropOldest();
+			insert(hash, info);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return size;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private int closest(long hash) {
+		Match best = new Match();
+		for (int t = 0; t < CHUNKS && best.distance > 0; t++)
+			probe(hash, t, chunk(hash, t), 0, maxChunkDistance, best);
+		return best.entry;
+	}
+
+	/**
+	 * Compares the query with the entries of every bucket whose key is within the remaining distance
+	 * of the query's chunk, flipping the bits from the given one onwards.
+	 */
+	private void probe(long hash, int t, int key, int fromBit, int remaining, Match best) {
+		for (int entry = buckets[t][key]; entry != NONE; entry = next[t][entry]) {
+			int d = PerceptualHash.distance(hash, hashes[entry]);
+			if (d < best.distance) {
+				best.entry = entry;
+				best.distance = d;
+			}
+		}
+		if (remaining == 0)
+			return;
+		for (int bit = fromBit; bit < CHUNK_BITS; bit++)
+			probe(hash, t, key^(1 << bit), bit+1, remaining-1, best);
+	}
+
+	private void insert(long hash, Information info) {
+		if (size == hashes.length)
+			grow();
+		int entry = size++;
+		hashes[entry] = hash;
+		infos[entry] = info;
+		for (int t = 0; t < CHUNKS; t++) {
+			int key = chunk(hash, t);
+			next[t][entry] = buckets[t][key];
+			buckets[t][key] = entry;
+		}
+	}
+
+	private void grow() {
+		int capacity = (int) Math.min((long) hashes.length*2, maxEntries);
+		hashes = Arrays.copyOf(hashes, capacity);
+		infos = Arrays.copyOf(infos, capacity);
+		for (int t = 0; t < CHUNKS; t++)
+			next[t] = Arrays.copyOf(next[t], capacity);
+	}
+
+	/**
+	 * Drops the oldest tenth of the results and indexes the others again, in their insertion order.
+	 */
+	private void dropOldest() {
+		int dropped = Math.max(1, size/10);
+		long[] keptHashes = Arrays.copyOfRange(hashes, dropped, size);
+		Information[] keptInfos = Arrays.copyOfRange(infos, dropped, size);
+		Arrays.fill(infos, null);
+		for (int[] table : buckets)
+			Arrays.fill(table, NONE);
+		size = 0;
+		for (int i = 0; i < keptHashes.length; i++)
+			insert(keptHashes[i], keptInfos[i]);
+	}
+
+	private static int chunk(long hash, int t) {
+		return (int) (hash >>> (t*CHUNK_BITS)) & ((1 << CHUNK_BITS)-1);
+	}
+
+	/**
+	 * Closest entry found so far by a lookup.
+	 */
+	private class Match {
+
+		private int entry = NONE;
+		private int distance = maxDistance+1;
+	}
+}
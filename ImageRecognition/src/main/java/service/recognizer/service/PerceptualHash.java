@@ -0,0 +1,120 @@
+package service.recognizer.service;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Computes the difference hash (dHash) of Images: 64 bits telling, for each row of a 9x8 grayscale thumbnail,
+ * whether each pixel is brighter than the next one. Crops, recompressions and resizes of an Image flip
+ * only a few bits, so similar Images have hashes at a small Hamming distance.
+ */
+public final class PerceptualHash {
+
+	private static final int WIDTH = 9;
+	private static final int HEIGHT = 8;
+	// Large Images are subsampled while decoding down to about this width, the hash only needs a thumbnail
+	private static final int DECODE_WIDTH = 256;
+	// Minimum number of bits set, and of bits unset, in the hash of an Image that is not almost uniform
+	private static final int MIN_BITS = 8;
+
+	private PerceptualHash() {
+	}
+
+	/**
+	 * Computes the difference hash of an Image.
+	 * @param content Encoded Image.
+	 * @return The hash, or null if the Image is not in a supported format.
+	 * @throws IOException If the Image could not be decoded.
+	 */
+	public static Long dHash(byte[] content) throws IOException {
+		BufferedImage img = decode(content, DECODE_WIDTH);
+		if (img == null)
+			return null;
+		double[][] gray = thumbnail(img);
+		long hash = 0;
+		for (int y = 0; y < HEIGHT; y++)
+			for (int x = 0; x < WIDTH-1; x++) {
+				hash <<= 1;
+				if (gray[y][x] > gray[y][x+1])
+					hash |= 1;
+			}
+		return hash;
+	}
+
+	/**
+	 * Checks if a hash tells its Image apart from others. Flat, blank or gradient Images hash to almost
+	 * all zeros or all ones, so unrelated ones of them are within a small distance of each other.
+	 * @param hash A hash.
+	 * @return True if the hash has between 8 and 56 bits set, False otherwise.
+	 */
+	public static boolean isDistinctive(long hash) {
+		int bits = Long.bitCount(hash);
+		return bits >= MIN_BITS && bits <= Long.SIZE-MIN_BITS;
+	}
+
+	/**
+	 * Returns the number of bits that differ between two hashes.
+	 * @param a A hash.
+	 * @param b Another hash.
+	 * @return Hamming distance between both hashes, from 0 to 64.
+	 */
+	public static int distance(long a, long b) {
+		return Long.bitCount(a^b);
+	}
+
+	/**
+	 * Shrinks an Image to the hash's size, each pixel being the mean luminance of the area it covers.
+	 */
+	private static double[][] thumbnail(BufferedImage img) {
+		int width = img.getWidth();
+		int height = img.getHeight();
+		int[] rgb = img.getRGB(0, 0, width, height, null, 0, width);
+		double[][] sums = new double[HEIGHT][WIDTH];
+		int[][] counts = new int[HEIGHT][WIDTH];
+		for (int y = 0; y < height; y++) {
+			int row = (int) ((long) y*HEIGHT/height);
+			for (int x = 0; x < width; x++) {
+				int col = (int) ((long) x*WIDTH/width);
+				int p = rgb[y*width+x];
+				sums[row][col] += 0.299*((p >> 16) & 0xff)+0.587*((p >> 8) & 0xff)+0.114*(p & 0xff);
+				counts[row][col]++;
+			}
+		}
+		for (int y = 0; y < HEIGHT; y++)
+			for (int x = 0; x < WIDTH; x++)
+				sums[y][x] /= Math.max(1, counts[y][x]);
+		return sums;
+	}
+
+	/**
+	 * Decodes an Image, skipping pixels so it is not much wider than needed.
+	 * @param content Encoded Image.
+	 * @param width Width the decoded Image should have at least.
+	 * @return The decoded Image, or null if it is not in a supported format.
+	 * @throws IOException If the Image could not be decoded.
+	 */
+	static BufferedImage decode(byte[] content, int width) throws IOException {
+		try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(content))) {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+			if (!readers.hasNext())
+				return null;
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(in, true, true);
+				ImageReadParam param = reader.getDefaultReadParam();
+				int step = Math.max(1, reader.getWidth(0)/width);
+				param.setSourceSubsampling(step, step, 0, 0);
+				return reader.read(0, param);
+			} finally {
+				reader.dispose();
+			}
+		}
+	}
+}
@@ -0,0 +1,215 @@
+package service.recognizer.service;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import service.recognizer.model.Job;
+
+/**
+ * Recognizes Images in background, so clients don't hold a connection while Cloud Vision and Wikipedia answer.
+ * Jobs wait in a bounded queue and are rejected when it is full. Completed Jobs are kept for polling,
+ * up to a maximum number, and posted to their callback if they have one, as long as the CallbackGuard accepts it.
+ */
+@Service
+public class RecognitionJobs {
+
+	public static final Logger logger = LoggerFactory.getLogger(RecognitionJobs.class);
+
+	private final RecognitionService recognizer;
+	private final CallbackGuard callbackGuard;
+	private final int maxCompleted;
+	private final ThreadPoolExecutor workers;
+	private final CloseableHttpAsyncClient callbacks;
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	private final ConcurrentMap<String, Job> active = new ConcurrentHashMap<>();
+	// Kept in completion order, the first entry is the oldest
+	private final LinkedHashMap<String, Job> completed = new LinkedHashMap<>();
+
+	private final Counter rejected;
+	private final Counter callbackFailures;
+
+	/**
+	 * Creates the background recognition service.
+	 * @param recognizer Service recognizing the Images.
+	 * @param callbackGuard Guard of the callbacks, which also resolves their hosts.
+	 * @param workers Number of Images recognized at once.
+	 * @param queueCapacity Maximum number of Jobs waiting, more are rejected.
+	 * @param maxCompleted Maximum number of completed Jobs kept for polling.
+	 * @param callbackTimeout Maximum number of milliseconds to connect and post to a callback.
+	 * @param registry Registry where the Job metrics are published.
+	 * @throws IOException If the client posting to the callbacks could not be started.
+	 */
+	@Autowired
+	public RecognitionJobs(RecognitionService recognizer, CallbackGuard callbackGuard,
+			@Value("${recognition.jobs.workers:8}") int workers,
+			@Value("${recognition.jobs.queue-capacity:100}") int queueCapacity,
+			@Value("${recognition.jobs.max-completed:10000}") int maxCompleted,
+			@Value("${recognition.jobs.callback-timeout:5000}") int callbackTimeout,
+			MeterRegistry registry) throws IOException {
+		this.recognizer = recognizer;
+		this.callbackGuard = callbackGuard;
+		this.maxCompleted = maxCompleted;
+		AtomicInteger threads = new AtomicInteger();
+		this.workers = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueCapacity),
+				job -> {
+					Thread worker = new Thread(job, "recognition-worker-"+threads.incrementAndGet());
+					worker.setDaemon(true);
+					return worker;
+				},
+				new ThreadPoolExecutor.AbortPolicy());
+		RequestConfig config = RequestConfig.custom()
+				.setConnectTimeout(callbackTimeout)
+				.setConnectionRequestTimeout(callbackTimeout)
+				.setSocketTimeout(callbackTimeout)
+				.build();
+		// Every connection resolves its host through the guard, which leaves out the internal addresses
+		PoolingNHttpClientConnectionManager connections = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(), null,
+				RegistryBuilder.<SchemeIOSessionStrategy>create()
+					.register("http", NoopIOSessionStrategy.INSTANCE)
+					.register("https", SSLIOSessionStrategy.getDefaultStrategy())
+					.build(),
+				callbackGuard);
+		this.callbacks = HttpAsyncClients.custom()
+				.setConnectionManager(connections)
+				.setDefaultRequestConfig(config)
+				.build();
+		this.callbacks.start();
+		this.rejected = registry.counter("recognition.jobs.rejected");
+		this.callbackFailures = registry.counter("recognition.jobs.callback.failures");
+		registry.gauge("recognition.jobs.queue.depth", this.workers.getQueue(), Collection::size);
+		registry.gauge("recognition.jobs.active", active, ConcurrentMap::size);
+	}
+
+	@PreDestroy
+	public void close() throws IOException {
+		workers.shutdownNow();
+		callbacks.close();
+	}
+
+	/**
+	 * Queues the recognition of an Image.
+	 * @param content Encoded Image.
+	 * @param callback Address the Job is posted to once completed, null if the client polls it.
+	 * @return The pending Job.
+	 * @throws IllegalArgumentException If the Job may not be posted to the callback.
+	 * @throws RejectedExecutionException If too many Jobs are waiting.
+	 */
+	public Job submit(byte[] content, String callback) {
+		if (callback != null)
+			callbackGuard.check(callback);
+		Job job = new Job(UUID.randomUUID().toString(), callback);
+		active.put(job.getId(), job);
+		try {
+			workers.execute(() -> process(job, content));
+		} catch (RejectedExecutionException e) {
+			active.remove(job.getId());
+			rejected.increment();
+			throw e;
+		}
+		return job;
+	}
+
+	/**
+	 * Searches for a Job that is pending, running, or recently completed.
+	 * @param id Job's id.
+	 * @return The Job, or an empty Optional if there is none with this id.
+	 */
+	public Optional<Job> find(String id) {
+		Job job = active.get(id);
+		if (job != null)
+			return Optional.of(job);
+		synchronized (completed) {
+			return Optional.ofNullable(completed.get(id));
+		}
+	}
+
+	private void process(Job job, byte[] content) {
+		job.start();
+		try {
+			job.complete(recognizer.recognizeThis(content));
+		} catch (RuntimeException e) {
+			logger.error("Could not recognize the Image of Job {}.", job.getId(), e);
+			job.fail(e.getMessage() == null ? e.toString() : e.getMessage());
+		}
+		// Stored before it stops being active, so a poll in between still finds it
+		synchronized (completed) {
+			completed.put(job.getId(), job);
+			Iterator<String> it = completed.keySet().iterator();
+			while (completed.size() > maxCompleted && it.hasNext()) {
+				it.next();
+				it.remove();
+			}
+		}
+		active.remove(job.getId());
+		if (job.getCallback() != null)
+			notify(job);
+	}
+
+	private void notify(Job job) {
+		try {
+			HttpPost post = new HttpPost(job.getCallback());
+			post.setEntity(new StringEntity(mapper.writeValueAsString(job), ContentType.APPLICATION_JSON));
+			callbacks.execute(post, new FutureCallback<HttpResponse>() {
+
+				@Override
+				public void completed(HttpResponse response) {
+					int status = response.getStatusLine().getStatusCode();
+					if (status >= 300)
+						failed(new IOException("Callback answered "+status+"."));
+				}
+
+				@Override
+				public void failed(Exception e) {
+					callbackFailures.increment();
+					logger.error("Could not post Job {} to {}.", job.getId(), job.getCallback(), e);
+				}
+
+				@Override
+				public void cancelled() {
+					failed(new IOException("Callback was cancelled."));
+				}
+			});
+		} catch (IOException | IllegalArgumentException e) {
+			callbackFailures.increment();
+			logger.error("Could not post Job {} to {}.", job.getId(), job.getCallback(), e);
+		}
+	}
+}
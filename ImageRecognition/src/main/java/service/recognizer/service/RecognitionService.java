@@ -6,4 +6,5 @@ import service.recognizer.model.Information;
 
 public interface RecognitionService {
 	public Information recognizeThis(MultipartFile file);
+	public Information recognizeThis(byte[] content);
 }
@@ -1,32 +1,22 @@
 package service.recognizer.service;
 
-import java.io.BufferedReader;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.URL;
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.boot.configurationprocessor.json.JSONException;
-import org.springframework.boot.configurationprocessor.json.JSONObject;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
-import com.google.api.gax.core.FixedCredentialsProvider;
-import com.google.auth.oauth2.GoogleCredentials;
 import com.google.cloud.vision.v1.AnnotateImageRequest;
 import com.google.cloud.vision.v1.AnnotateImageResponse;
-import com.google.cloud.vision.v1.BatchAnnotateImagesResponse;
 import com.google.cloud.vision.v1.EntityAnnotation;
-import com.google.cloud.vision.v1.ImageAnnotatorClient;
-import com.google.cloud.vision.v1.ImageAnnotatorSettings;
 import com.google.cloud.vision.v1.LocationInfo;
 import com.google.cloud.vision.v1.WebDetection;
 import com.google.cloud.vision.v1.WebDetection.WebLabel;
-import com.google.common.collect.Lists;
 import com.google.cloud.vision.v1.Feature;
 import com.google.cloud.vision.v1.Feature.Type;
 import com.google.cloud.vision.v1.Image;
@@ -35,98 +25,128 @@ import com.google.protobuf.ByteString;
 import service.recognizer.model.Information;
 
 @Service
+@ConditionalOnProperty(name="recognition.engine", havingValue="cloud-vision", matchIfMissing=true)
 public class Recognizer implements RecognitionService{
 	
-	private final ImageAnnotatorClient vision;
-	private final GoogleCredentials credentials;
+	private final ImagePreprocessor preprocessor;
+	private final VisionBatcher vision;
+	private final VisionGuard guard;
+	private final ResultCache cache;
+	private final NearDuplicateIndex nearDuplicates;
+	private final WikipediaClient wikipedia;
 	
 	@Autowired
-	public Recognizer() throws Exception{
-		//Set Cloud Vision credentials
-		credentials = GoogleCredentials.fromStream(new FileInputStream("src/main/resources/credentials.json"))
-				.createScoped(Lists.newArrayList("https://www.googleapis.com/auth/cloud-platform"));
-		ImageAnnotatorSettings imageAnnotatorSettings = ImageAnnotatorSettings.newBuilder()
-	         .setCredentialsProvider(FixedCredentialsProvider.create(credentials))
-	         .build();
-		//Create Cloud Vision client
-		vision = ImageAnnotatorClient.create(imageAnnotatorSettings);
+	public Recognizer(ImagePreprocessor preprocessor, VisionBatcher vision, VisionGuard guard, ResultCache cache, NearDuplicateIndex nearDuplicates, WikipediaClient wikipedia) {
+		this.preprocessor = preprocessor;
+		this.vision = vision;
+		this.guard = guard;
+		this.cache = cache;
+		this.nearDuplicates = nearDuplicates;
+		this.wikipedia = wikipedia;
 	}
 	
-	@SuppressWarnings("unchecked")
 	@Override
 	public Information recognizeThis(MultipartFile file) {
+		try {
+			return recognizeThis(file.getBytes());
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return new Information();
+	}
+	
+	@Override
+	public Information recognizeThis(byte[] content) {
 		Information info = new Information();
 		try {
-			//Create list of requests
-			List<AnnotateImageRequest> requests = new ArrayList<>();
-			//Retrieve Bytes from Image
-			ByteString imgBytes = ByteString.copyFrom(file.getBytes());
-			Image img = Image.newBuilder().setContent(imgBytes).build();
-			//Specify which info to retrieve from Image
-			Feature featLand = Feature.newBuilder().setType(Type.LANDMARK_DETECTION).build();
-			Feature featWeb = Feature.newBuilder().setType(Type.WEB_DETECTION).build();
-			//Build the request
-			AnnotateImageRequest request = AnnotateImageRequest.newBuilder()
-					.addFeatures(featLand)
-					.addFeatures(featWeb)
-					.setImage(img)
-					.build();
-			//Add request to list of requests
-			requests.add(request);
-			
-			//Send list of requests to Cloud Vision
-			BatchAnnotateImagesResponse response = vision.batchAnnotateImages(requests);
-			//Retrieve info from Cloud Vision
-			List<AnnotateImageResponse> responses = response.getResponsesList();
-			
-			//Process info from Cloud Vision
-			for (AnnotateImageResponse res : responses) {
-				String subject = "";
-				//Retrieve Best Guess label
-				WebDetection web = res.getWebDetection();
-				for(WebLabel w: web.getBestGuessLabelsList())
-					info.setLabel(w.getLabel());
-				//Retrieve most probable Landmark info
-				EntityAnnotation landmark = res.getLandmarkAnnotationsList().get(0);
-				//Retrieve Description info
-				subject = landmark.getDescription();
-				info.setDescription(subject);
-				//Retrieve Location info
-				for (LocationInfo l : landmark.getLocationsList()) {
-					info.setLatitude(l.getLatLng().getLatitude());
-					info.setLongitude(l.getLatLng().getLongitude());
-				}
-				//Create an url to the wikipedia page
-				URL url = new URL("https://en.wikipedia.org/w/api.php?action=query&prop=extracts&format=json&exsentences=1&exintro=&explaintext=&exsectionformat=plain&titles=" + subject.replace(" ", "%20"));
-				String text = "";
-				//Store the contents from the wikipedia page
-				try (BufferedReader br = new BufferedReader(new InputStreamReader(url.openConnection().getInputStream()))) {
-				    String line = null;
-				    //Read until the end
-				    while ((line = br.readLine()) != null) {
-				    	//Trim the initial and final white spaces
-				        text += line.trim();
-				    }
-				}
-				//Process the json received from wikipedia
-				JSONObject json = new JSONObject(text);
-				//Retrieve the pages information
-				JSONObject pages = json.getJSONObject("query").getJSONObject("pages");
-				//Create an iterator for the keys
-				Iterator<String> keys = pages.keys();
-				while(keys.hasNext()) {
-				    String extract = pages.getJSONObject(keys.next()).getString("extract");
-				    info.setExtract(extract);
+			//Images recognized recently are answered from the cache
+			String hash = sha256(content);
+			Information cached = cache.get(hash);
+			if (cached != null)
+				return cached;
+			//Crops, recompressions and resizes of an Image recognized before are answered from the index
+			Long pHash = nearDuplicates.isEnabled() ? PerceptualHash.dHash(content) : null;
+			//Almost uniform Images have degenerate hashes, which would match each other
+			if (pHash != null && !PerceptualHash.isDistinctive(pHash))
+				pHash = null;
+			if (pHash != null) {
+				cached = nearDuplicates.find(pHash);
+				if (cached != null) {
+					cache.put(hash, cached);
+					return cached;
 				}
-				
 			}
-			
+			recognize(content, info);
+			//Only complete results are cached, a failed recognition is retried on the next request
+			cache.put(hash, info);
+			if (pHash != null)
+				nearDuplicates.put(pHash, info);
 		} catch (IOException e) {
 			e.printStackTrace();
-		} catch (JSONException e) {
-			e.printStackTrace();
 		}
-		
 		return info;
 	}
+	
+	private void recognize(byte[] content, Information info) throws IOException {
+		//Cloud Vision is not called until its client is ready, which is not a failure of Cloud Vision
+		if (!vision.isReady())
+			throw new VisionUnavailableException("Cloud Vision is starting, try again later.");
+		//Retrieve Bytes from Image, shrunk to the size Cloud Vision needs
+		ByteString imgBytes = preprocessor.prepare(content);
+		Image img = Image.newBuilder().setContent(imgBytes).build();
+		//Specify which info to retrieve from Image
+		Feature featLand = Feature.newBuilder().setType(Type.LANDMARK_DETECTION).build();
+		Feature featWeb = Feature.newBuilder().setType(Type.WEB_DETECTION).build();
+		//Build the request
+		AnnotateImageRequest request = AnnotateImageRequest.newBuilder()
+				.addFeatures(featLand)
+				.addFeatures(featWeb)
+				.setImage(img)
+				.build();
+		
+		//Send the request to Cloud Vision, batched with the requests of other Images, unless it is failing or overloaded
+		AnnotateImageResponse res = guard.await(vision.annotate(request));
+		
+		//Process info from Cloud Vision
+		String subject = "";
+		//Retrieve Best Guess label
+		WebDetection web = res.getWebDetection();
+		for(WebLabel w: web.getBestGuessLabelsList())
+			info.setLabel(w.getLabel());
+		//Retrieve most probable Landmark info
+		EntityAnnotation landmark = res.getLandmarkAnnotationsList().get(0);
+		//Retrieve Description info
+		subject = landmark.getDescription();
+		info.setDescription(subject);
+		//Retrieve Location info
+		for (LocationInfo l : landmark.getLocationsList()) {
+			info.setLatitude(l.getLatLng().getLatitude());
+			info.setLongitude(l.getLatLng().getLongitude());
+		}
+		//Retrieve the first sentence of the wikipedia page, cached by title
+		info.setExtract(await(wikipedia.extract(subject), "extract of "+subject));
+	}
+	
+	private static <T> T await(Future<T> result, String what) throws IOException {
+		try {
+			return result.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while retrieving the "+what+".", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Could not retrieve the "+what+".", e.getCause());
+		}
+	}
+	
+	private static String sha256(byte[] content) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+			StringBuilder hex = new StringBuilder(digest.length*2);
+			for (byte b : digest)
+				hex.append(String.format("%02x", b));
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available.", e);
+		}
+	}
 }
@@ -0,0 +1,284 @@
+package service.recognizer.service;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import service.recognizer.model.Information;
+
+/**
+ * Keeps the recognition results of the latest Images, keyed by the SHA-256 hash of their content,
+ * so an Image recognized before is answered without calling Cloud Vision and Wikipedia again.
+ * Results expire after a while and the least recently used ones are evicted when the cache is full.
+ * When a location is set, results are also written there, one file per Image, and loaded back on startup.
+ * A result's file is written and deleted under the same lock, so a result evicted while it is written
+ * doesn't leave its file behind.
+ */
+@Component
+public class ResultCache {
+
+	public static final Logger logger = LoggerFactory.getLogger(ResultCache.class);
+
+	private static final int LOCK_STRIPES = 64;
+
+	private final int maxEntries;
+	private final long ttlMillis;
+	// Null when the results are kept in memory only
+	private final Path location;
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	// Kept in access order, the first entry is the least recently used
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	// Guard the file of each result, taken before the cache itself
+	private final Object[] locks = new Object[LOCK_STRIPES];
+
+	private final Counter hits;
+	private final Counter misses;
+	private final Counter evictions;
+
+	/**
+	 * Creates the recognition result cache.
+	 * @param maxEntries Maximum number of results kept, 0 disables the cache.
+	 * @param ttlSeconds Number of seconds a result is reused before the Image is recognized again.
+	 * @param location Folder where the results are persisted, empty to keep them in memory only.
+	 * @param registry Registry where the cache metrics are published.
+	 */
+	@Autowired
+	public ResultCache(@Value("${recognition.cache.max-entries:10000}") int maxEntries,
+			@Value("${recognition.cache.ttl:86400}") long ttlSeconds,
+			@Value("${recognition.cache.location:}") String location,
+			MeterRegistry registry) {
+		this.maxEntries = maxEntries;
+		this.ttlMillis = ttlSeconds*1000;
+		this.location = location.isEmpty() ? null : Paths.get(location);
+		this.hits = registry.counter("recognition.cache.hits");
+		this.misses = registry.counter("recognition.cache.misses");
+		this.evictions = registry.counter("recognition.cache.evictions");
+		registry.gauge("recognition.cache.entries", this, ResultCache::size);
+		registry.gauge("recognition.cache.hit.ratio", this, ResultCache::hitRatio);
+		for (int i = 0; i < locks.length; i++)
+			locks[i] = new Object();
+	}
+
+	/**
+	 * Loads the results persisted before the service stopped, skipping the expired ones.
+	 */
+	@PostConstruct
+	public void init() {
+		if (location == null || maxEntries <= 0)
+			return;
+		List<Entry> loaded = new ArrayList<>();
+		try {
+			Files.createDirectories(location);
+			long now = System.currentTimeMillis();
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(location, "*.json")) {
+				for (Path file : files) {
+					try {
+						Entry entry = mapper.readValue(file.toFile(), Entry.class);
+						if (entry.expiresAt > now)
+							loaded.add(entry);
+						else
+							Files.deleteIfExists(file);
+					} catch (IOException e) {
+						logger.error("Could not read the cached result {}.", file, e);
+						Files.deleteIfExists(file);
+					}
+				}
+			}
+			// Left by writes interrupted when the service stopped
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(location, "*.tmp")) {
+				for (Path file : files)
+					Files.deleteIfExists(file);
+			}
+		} catch (IOException e) {
+			logger.error("Could not load the cached results from {}.", location, e);
+		}
+		// The results expiring last are the most recent ones, they are the last to be evicted
+		loaded.sort(Comparator.comparingLong(entry -> entry.expiresAt));
+		List<String> evicted;
+		synchronized (this) {
+			for (Entry entry : loaded)
+				entries.put(entry.hash, entry);
+			evicted = evict();
+		}
+		evicted.forEach(this::delete);
+		if (!loaded.isEmpty())
+			logger.info("Loaded {} cached recognition results.", entries.size());
+	}
+
+	/**
+	 * Checks if the cache is enabled.
+	 * @return True if results are cached, False otherwise.
+	 */
+	public boolean isEnabled() {
+		return maxEntries > 0;
+	}
+
+	/**
+	 * Returns the cached result of an Image.
+	 * @param hash SHA-256 hash of the Image's content.
+	 * @return The result, or null if the Image was not recognized recently.
+	 */
+	public Information get(String hash) {
+		Entry entry;
+		boolean expired = false;
+		synchronized (this) {
+			entry = entries.get(hash);
+			if (entry != null && entry.expiresAt <= System.currentTimeMillis()) {
+				entries.remove(hash).removed = true;
+				expired = true;
+				entry = null;
+			}
+		}
+		if (expired)
+			delete(hash);
+		if (entry == null) {
+			misses.increment();
+			return null;
+		}
+		hits.increment();
+		return entry.info;
+	}
+
+	/**
+	 * Caches the result of an Image, evicting the least recently used results if the cache is full.
+	 * @param hash SHA-256 hash of the Image's content.
+	 * @param info The recognition result.
+	 */
+	public void put(String hash, Information info) {
+		if (!isEnabled())
+			return;
+		Entry entry = new Entry(hash, System.currentTimeMillis()+ttlMillis, info);
+		List<String> evicted;
+		synchronized (this) {
+			Entry old = entries.put(hash, entry);
+			if (old != null)
+				old.removed = true;
+			evicted = evict();
+		}
+		evicted.forEach(this::delete);
+		write(entry);
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public double hitRatio() {
+		double total = hits.count()+misses.count();
+		return total == 0 ? 0 : hits.count()/total;
+	}
+
+	/**
+	 * Evicts the least recently used results while the cache is full. Must hold the cache's lock.
+	 * @return Hashes of the evicted results, whose files are to be deleted once the lock is released.
+	 */
+	private List<String> evict() {
+		List<String> evicted = new ArrayList<>();
+		Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+		while (entries.size() > maxEntries && it.hasNext()) {
+			Entry entry = it.next().getValue();
+			it.remove();
+			entry.removed = true;
+			evicted.add(entry.hash);
+			evictions.increment();
+		}
+		return evicted;
+	}
+
+	private Object lockOf(String hash) {
+		return locks[Math.floorMod(hash.hashCode(), locks.length)];
+	}
+
+	/**
+	 * Writes a result to the cache folder, renaming it into place once complete, unless it was removed meanwhile.
+	 */
+	private void write(Entry entry) {
+		if (location == null)
+			return;
+		Path file = location.resolve(entry.hash+".json");
+		synchronized (lockOf(entry.hash)) {
+			// Evicted or replaced before it could be written, whoever removed it deletes the file after this write
+			synchronized (this) {
+				if (entry.removed)
+					return;
+			}
+			persist(entry, file);
+		}
+	}
+
+	private void persist(Entry entry, Path file) {
+		try {
+			Path tmp = Files.createTempFile(location, entry.hash, ".tmp");
+			try {
+				mapper.writeValue(tmp.toFile(), entry);
+				Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} finally {
+				Files.deleteIfExists(tmp);
+			}
+		} catch (IOException e) {
+			logger.error("Could not persist the cached result {}.", file, e);
+		}
+	}
+
+	/**
+	 * Deletes the file of a removed result, unless the result was cached again meanwhile.
+	 */
+	private void delete(String hash) {
+		if (location == null)
+			return;
+		synchronized (lockOf(hash)) {
+			synchronized (this) {
+				if (entries.containsKey(hash))
+					return;
+			}
+			try {
+				Files.deleteIfExists(location.resolve(hash+".json"));
+			} catch (IOException e) {
+				logger.error("Could not delete the cached result {}.", hash, e);
+			}
+		}
+	}
+
+	/**
+	 * A cached result, as it is persisted.
+	 */
+	public static class Entry {
+
+		public String hash;
+		public long expiresAt;
+		public Information info;
+		// Set once the result is no longer cached, not persisted. Guarded by the cache's lock
+		private boolean removed;
+
+		public Entry() {
+		}
+
+		public Entry(String hash, long expiresAt, Information info) {
+			this.hash = hash;
+			this.expiresAt = expiresAt;
+			this.info = info;
+		}
+	}
+}
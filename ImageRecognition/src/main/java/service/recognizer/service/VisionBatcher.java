@@ -0,0 +1,262 @@
+package service.recognizer.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import com.google.cloud.vision.v1.AnnotateImageRequest;
+import com.google.cloud.vision.v1.AnnotateImageResponse;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Groups concurrent annotation requests into batches, so Cloud Vision is called once for up to 16 Images.
+ * A dispatcher waits for a request, collects the ones arriving within a short window or until the batch is full,
+ * and hands the batch to a sender. Each caller gets the response at its request's position.
+ * The number of calls in flight is only capped by the limit of the VisionGuard: when it is reached, the dispatcher
+ * waits for a call to return, so requests pile up in larger batches instead of in more calls.
+ * Setting the window to 0 sends each request on its own, from a sender waiting for its place.
+ * Each call goes through the VisionGuard, so a failed or slow batch counts once, not once per Image.
+ * Requests waiting for the dispatcher are bounded, more are rejected as when Cloud Vision is busy.
+ * Once the batcher is closed, every request not answered yet fails, including the batches waiting for a sender.
+ */
+@Component
+@ConditionalOnProperty(name="recognition.engine", havingValue="cloud-vision", matchIfMissing=true)
+public class VisionBatcher {
+
+	public static final Logger logger = LoggerFactory.getLogger(VisionBatcher.class);
+
+	// Maximum number of Images Cloud Vision accepts in a call
+	public static final int MAX_BATCH_SIZE = 16;
+
+	private final Annotator annotator;
+	private final VisionGuard guard;
+	private final long windowNanos;
+	private final int maxBatchSize;
+	private final BlockingQueue<Pending> pending;
+	private final ThreadPoolExecutor senders;
+	private final Thread dispatcher;
+	private volatile boolean closed;
+
+	private final DistributionSummary batchSizes;
+	private final Timer calls;
+
+	/**
+	 * Creates the batcher and starts its dispatcher.
+	 * @param annotator Client annotating the batches.
+	 * @param guard Guard of the calls to the annotator.
+	 * @param windowMillis Number of milliseconds a batch waits for more requests after its first one, 0 disables batching.
+	 * @param maxBatchSize Number of requests after which a batch is sent without waiting for the window to end.
+	 * @param queueCapacity Maximum number of requests waiting for a batch, more are rejected.
+	 * @param registry Registry where the batching metrics are published.
+	 */
+	@Autowired
+	public VisionBatcher(Annotator annotator, VisionGuard guard,
+			@Value("${recognition.batch.window:5}") long windowMillis,
+			@Value("${recognition.batch.max-size:16}") int maxBatchSize,
+			@Value("${recognition.batch.queue-capacity:256}") int queueCapacity,
+			MeterRegistry registry) {
+		this.annotator = annotator;
+		this.guard = guard;
+		this.pending = new LinkedBlockingQueue<>(Math.max(1, queueCapacity));
+		this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+		this.maxBatchSize = Math.max(1, Math.min(maxBatchSize, MAX_BATCH_SIZE));
+		AtomicInteger threads = new AtomicInteger();
+		// The guard caps the calls in flight, a sender is started for each call it allows
+		this.senders = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+				task -> {
+					Thread sender = new Thread(task, "vision-sender-"+threads.incrementAndGet());
+					sender.setDaemon(true);
+					return sender;
+				},
+				(task, executor) -> {
+					// Only rejected after the shutdown, the batch would never be sent
+					Send send = (Send) task;
+					if (send.reserved)
+						guard.cancel();
+					fail(send.batch, shuttingDown());
+				});
+		this.batchSizes = registry.summary("recognition.batch.size");
+		this.calls = registry.timer("recognition.batch.calls");
+		this.dispatcher = new Thread(this::dispatch, "vision-dispatcher");
+		this.dispatcher.setDaemon(true);
+		if (isEnabled())
+			this.dispatcher.start();
+	}
+
+	/**
+	 * Checks if requests are batched.
+	 * @return True if requests wait for others to be sent with them, False otherwise.
+	 */
+	public boolean isEnabled() {
+		return windowNanos > 0 && maxBatchSize > 1;
+	}
+
+	/**
+	 * Checks if the annotator has started.
+	 * @return True if requests can be annotated, False if the annotator is still starting.
+	 */
+	public boolean isReady() {
+		return annotator.isReady();
+	}
+
+	/**
+	 * Stops the dispatcher, the requests still waiting fail.
+	 */
+	@PreDestroy
+	public void close() {
+		closed = true;
+		dispatcher.interrupt();
+		for (Runnable task : senders.shutdownNow())
+			fail(((Send) task).batch, shuttingDown());
+		List<Pending> left = new ArrayList<>();
+		pending.drainTo(left);
+		fail(left, shuttingDown());
+	}
+
+	/**
+	 * Annotates an Image, together with the other Images requested meanwhile.
+	 * @param request Annotation request of the Image.
+	 * @return Future completed with the response to the request, failed with a VisionUnavailableException
+	 * if too many requests are waiting or the guard rejects the call.
+	 */
+	public CompletableFuture<AnnotateImageResponse> annotate(AnnotateImageRequest request) {
+		Pending item = new Pending(request);
+		if (closed) {
+			item.response.completeExceptionally(shuttingDown());
+		} else if (isEnabled()) {
+			if (!pending.offer(item)) {
+				item.response.completeExceptionally(new VisionUnavailableException("Cloud Vision is busy, try again later."));
+				return item.response;
+			}
+			// Closed meanwhile, after the waiting requests were failed
+			if (closed && pending.remove(item))
+				item.response.completeExceptionally(shuttingDown());
+		} else {
+			senders.execute(new Send(Collections.singletonList(item), false));
+		}
+		return item.response;
+	}
+
+	private void dispatch() {
+		List<Pending> batch = new ArrayList<>(maxBatchSize);
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				batch.add(pending.take());
+				long deadline = System.nanoTime()+windowNanos;
+				while (batch.size() < maxBatchSize) {
+					// Requests already waiting join the batch even when the window is over
+					Pending next = pending.poll(Math.max(0, deadline-System.nanoTime()), TimeUnit.NANOSECONDS);
+					if (next == null)
+						break;
+					batch.add(next);
+				}
+				// Waits for the guard to allow one more call, meanwhile requests pile up in larger batches
+				try {
+					guard.reserve();
+				} catch (VisionUnavailableException e) {
+					fail(batch, e);
+					batch = new ArrayList<>(maxBatchSize);
+					continue;
+				}
+				List<Pending> full = batch;
+				batch = new ArrayList<>(maxBatchSize);
+				senders.execute(new Send(full, true));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (RuntimeException e) {
+			logger.error("The Cloud Vision dispatcher stopped.", e);
+		}
+		fail(batch, shuttingDown());
+	}
+
+	private void send(List<Pending> batch, boolean reserved) {
+		List<AnnotateImageRequest> requests = new ArrayList<>(batch.size());
+		for (Pending item : batch)
+			requests.add(item.request);
+		batchSizes.record(batch.size());
+		long start = System.nanoTime();
+		try {
+			Supplier<List<AnnotateImageResponse>> call = () -> {
+				List<AnnotateImageResponse> answered = annotator.annotate(requests);
+				// A failure of the call, responses can't be matched with their requests
+				if (answered.size() != requests.size())
+					throw new IllegalStateException("Cloud Vision answered "+answered.size()+" responses to "+requests.size()+" requests.");
+				return answered;
+			};
+			if (!reserved)
+				guard.reserve();
+			List<AnnotateImageResponse> responses = guard.call(call);
+			for (int i = 0; i < batch.size(); i++)
+				batch.get(i).response.complete(responses.get(i));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			fail(batch, shuttingDown());
+		} catch (RuntimeException e) {
+			fail(batch, e);
+		} finally {
+			calls.record(System.nanoTime()-start, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	private static void fail(List<Pending> batch, RuntimeException e) {
+		for (Pending item : batch)
+			item.response.completeExceptionally(e);
+	}
+
+	private static IllegalStateException shuttingDown() {
+		return new IllegalStateException("The recognition service is shutting down.");
+	}
+
+	/**
+	 * Sending of a batch, which holds its place in the guard when reserved by the dispatcher.
+	 */
+	private class Send implements Runnable {
+
+		private final List<Pending> batch;
+		private final boolean reserved;
+
+		private Send(List<Pending> batch, boolean reserved) {
+			this.batch = batch;
+			this.reserved = reserved;
+		}
+
+		@Override
+		public void run() {
+			send(batch, reserved);
+		}
+	}
+
+	/**
+	 * A request waiting to be sent, with the future its caller waits on.
+	 */
+	private static class Pending {
+
+		private final AnnotateImageRequest request;
+		private final CompletableFuture<AnnotateImageResponse> response = new CompletableFuture<>();
+
+		private Pending(AnnotateImageRequest request) {
+			this.request = request;
+		}
+	}
+}
@@ -0,0 +1,213 @@
+package service.recognizer.service;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Protects the service from a slow or failing Cloud Vision, so requests fail fast instead of holding every thread.
+ * The guard applies to each call to Cloud Vision, whatever the number of Images it annotates: the number of calls
+ * in flight is capped by a limit adapted as in AIMD, which grows by one every limit calls answered quickly
+ * and is halved when a call is slow, takes longer than the deadline or fails. A call holds its place until it
+ * returns, even when the requests waiting for it gave up at the deadline. Calls beyond the limit wait for a place,
+ * and are rejected if none is free by the deadline.
+ * After a number of consecutive failures the circuit opens and calls are rejected for a while,
+ * then a single trial call decides whether it closes again.
+ */
+@Component
+@ConditionalOnProperty(name="recognition.engine", havingValue="cloud-vision", matchIfMissing=true)
+public class VisionGuard {
+
+	public static final Logger logger = LoggerFactory.getLogger(VisionGuard.class);
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private final long deadlineMillis;
+	private final long deadlineNanos;
+	private final long slowNanos;
+	private final int minLimit;
+	private final int maxLimit;
+	private final int failureThreshold;
+	private final long openMillis;
+
+	private double limit;
+	private int inFlight;
+	private State state = State.CLOSED;
+	private int consecutiveFailures;
+	private long openedAt;
+
+	private final Counter limitRejections;
+	private final Counter openRejections;
+	private final Counter timeouts;
+
+	/**
+	 * Creates the guard.
+	 * @param deadlineMillis Maximum number of milliseconds to wait for Cloud Vision.
+	 * @param slowMillis Number of milliseconds above which a call lowers the limit.
+	 * @param initialLimit Number of calls allowed in flight on startup.
+	 * @param minLimit Lowest number of calls allowed in flight.
+	 * @param maxLimit Highest number of calls allowed in flight.
+	 * @param failureThreshold Number of consecutive failures opening the circuit.
+	 * @param openMillis Number of milliseconds the circuit stays open before a trial call.
+	 * @param registry Registry where the guard metrics are published.
+	 */
+	@Autowired
+	public VisionGuard(@Value("${recognition.vision.deadline:10000}") long deadlineMillis,
+			@Value("${recognition.vision.limit.slow-call:3000}") long slowMillis,
+			@Value("${recognition.vision.limit.initial:16}") int initialLimit,
+			@Value("${recognition.vision.limit.min:4}") int minLimit,
+			@Value("${recognition.vision.limit.max:64}") int maxLimit,
+			@Value("${recognition.vision.circuit.failure-threshold:5}") int failureThreshold,
+			@Value("${recognition.vision.circuit.open-duration:30000}") long openMillis,
+			MeterRegistry registry) {
+		this.deadlineMillis = deadlineMillis;
+		this.deadlineNanos = TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+		this.slowNanos = TimeUnit.MILLISECONDS.toNanos(slowMillis);
+		this.minLimit = Math.max(1, minLimit);
+		this.maxLimit = Math.max(this.minLimit, maxLimit);
+		this.limit = Math.max(this.minLimit, Math.min(initialLimit, this.maxLimit));
+		this.failureThreshold = Math.max(1, failureThreshold);
+		this.openMillis = openMillis;
+		this.limitRejections = registry.counter("recognition.vision.rejections", "reason", "limit");
+		this.openRejections = registry.counter("recognition.vision.rejections", "reason", "circuit-open");
+		this.timeouts = registry.counter("recognition.vision.timeouts");
+		registry.gauge("recognition.vision.limit", this, VisionGuard::getLimit);
+		registry.gauge("recognition.vision.inflight", this, VisionGuard::getInFlight);
+		registry.gauge("recognition.vision.circuit.state", this, guard -> guard.getState().ordinal());
+	}
+
+	/**
+	 * Reserves a place for a call if the circuit allows it, waiting up to the deadline while the limit is reached.
+	 * The place is then used by {@link #call(Supplier)} or given back by {@link #cancel()}.
+	 * @throws VisionUnavailableException If the circuit is open, or the limit is still reached at the deadline.
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	public synchronized void reserve() throws InterruptedException {
+		long end = System.nanoTime()+deadlineNanos;
+		for (long left = deadlineNanos; state == State.CLOSED && inFlight >= (int) limit && left > 0; left = end-System.nanoTime())
+			TimeUnit.NANOSECONDS.timedWait(this, left);
+		acquire();
+	}
+
+	/**
+	 * Calls Cloud Vision in a place reserved by {@link #reserve()}, counting the call as failed
+	 * if it throws or answers after the deadline.
+	 * @param call The call, run by the calling thread.
+	 * @return The answer of Cloud Vision.
+	 */
+	public <T> T call(Supplier<T> call) {
+		long start = System.nanoTime();
+		boolean answered = false;
+		try {
+			T result = call.get();
+			answered = true;
+			return result;
+		} finally {
+			long nanos = System.nanoTime()-start;
+			// Its requests stopped waiting, Cloud Vision is too slow
+			if (nanos > deadlineNanos)
+				timeouts.increment();
+			release(answered && nanos <= deadlineNanos, nanos);
+		}
+	}
+
+	/**
+	 * Waits for the answer of Cloud Vision to a request until the deadline.
+	 * The call keeps running when the request stops waiting, it is accounted for by {@link #call(Supplier)}.
+	 * @param answer Answer to the request.
+	 * @return The answer of Cloud Vision.
+	 * @throws VisionUnavailableException If the call was rejected or the deadline passed.
+	 * @throws IOException If the wait is interrupted or the call failed with a checked exception.
+	 */
+	public <T> T await(Future<T> answer) throws IOException {
+		try {
+			return answer.get(deadlineMillis, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			throw new VisionUnavailableException("Cloud Vision did not answer within "+deadlineMillis+" ms.");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for Cloud Vision.", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new IOException("Cloud Vision failed.", e.getCause());
+		}
+	}
+
+	public synchronized double getLimit() {
+		return limit;
+	}
+
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	private synchronized void acquire() {
+		if (state == State.OPEN) {
+			if (System.currentTimeMillis()-openedAt < openMillis) {
+				openRejections.increment();
+				throw new VisionUnavailableException("Cloud Vision is failing, try again later.");
+			}
+			state = State.HALF_OPEN;
+			logger.info("Trying Cloud Vision again.");
+		} else if (state == State.HALF_OPEN) {
+			// Only the trial call goes through until it is answered
+			openRejections.increment();
+			throw new VisionUnavailableException("Cloud Vision is failing, try again later.");
+		}
+		if (inFlight >= (int) limit) {
+			limitRejections.increment();
+			throw new VisionUnavailableException("Cloud Vision is busy, try again later.");
+		}
+		inFlight++;
+	}
+
+	/**
+	 * Gives back a place reserved for a call that was not made.
+	 */
+	public synchronized void cancel() {
+		inFlight--;
+		notifyAll();
+	}
+
+	private synchronized void release(boolean success, long nanos) {
+		inFlight--;
+		notifyAll();
+		if (success && nanos <= slowNanos)
+			limit = Math.min(maxLimit, limit+1/limit);
+		else
+			limit = Math.max(minLimit, limit/2);
+		if (success) {
+			consecutiveFailures = 0;
+			if (state == State.HALF_OPEN) {
+				state = State.CLOSED;
+				logger.info("Cloud Vision is answering again.");
+			}
+		} else if (state == State.HALF_OPEN || (state == State.CLOSED && ++consecutiveFailures >= failureThreshold)) {
+			// Calls started before the circuit opened don't keep it open longer
+			logger.error("Cloud Vision is failing, rejecting calls for {} ms.", openMillis);
+			state = State.OPEN;
+			openedAt = System.currentTimeMillis();
+			consecutiveFailures = 0;
+		}
+	}
+}
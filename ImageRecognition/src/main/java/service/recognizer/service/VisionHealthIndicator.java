@@ -0,0 +1,34 @@
+package service.recognizer.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * Reports whether the Cloud Vision client is ready in the health endpoint, so the service is only sent traffic
+ * once it can recognize Images. The service is out of service while the client starts, and down when it could
+ * not be created.
+ */
+@Component
+@ConditionalOnProperty(name="recognition.engine", havingValue="cloud-vision", matchIfMissing=true)
+public class VisionHealthIndicator implements HealthIndicator {
+
+	private final CloudVisionAnnotator annotator;
+
+	@Autowired
+	public VisionHealthIndicator(CloudVisionAnnotator annotator) {
+		this.annotator = annotator;
+	}
+
+	@Override
+	public Health health() {
+		if (annotator.isReady())
+			return Health.up().build();
+		Exception failure = annotator.getFailure();
+		if (failure != null)
+			return Health.down(failure).build();
+		return Health.outOfService().withDetail("reason", "Cloud Vision client is starting").build();
+	}
+}
@@ -0,0 +1,14 @@
+package service.recognizer.service;
+
+/**
+ * Thrown when Cloud Vision is not called, because it is failing or already handling as many requests as it can,
+ * or when it does not answer in time.
+ */
+public class VisionUnavailableException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public VisionUnavailableException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,216 @@
+package service.recognizer.service;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Retrieves the first sentence of the Wikipedia page of a landmark.
+ * Requests go through a pooled, non-blocking HTTP client with connect and read timeouts, and extracts are cached
+ * by title for a while. Concurrent lookups of the same title share a single request.
+ * Only created for Cloud Vision recognitions, the local recognizer doesn't look up extracts.
+ */
+@Component
+@ConditionalOnProperty(name="recognition.engine", havingValue="cloud-vision", matchIfMissing=true)
+public class WikipediaClient {
+
+	public static final Logger logger = LoggerFactory.getLogger(WikipediaClient.class);
+
+	private static final String QUERY = "?action=query&prop=extracts&format=json&exsentences=1&exintro=&explaintext=&exsectionformat=plain&titles=";
+
+	private final String url;
+	private final int maxEntries;
+	private final long ttlMillis;
+	private final CloseableHttpAsyncClient client;
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	// Kept in access order, the first entry is the least recently used
+	private final LinkedHashMap<String, Entry> extracts = new LinkedHashMap<>(16, 0.75f, true);
+	private final ConcurrentMap<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+
+	private final Counter hits;
+	private final Counter misses;
+	private final Counter failures;
+	private final Timer requests;
+
+	/**
+	 * Creates the Wikipedia client.
+	 * @param url Address of the MediaWiki API.
+	 * @param connectTimeout Maximum number of milliseconds to connect to Wikipedia.
+	 * @param readTimeout Maximum number of milliseconds to wait for data from Wikipedia.
+	 * @param maxConnections Maximum number of connections kept open to Wikipedia.
+	 * @param maxEntries Maximum number of extracts cached.
+	 * @param ttlSeconds Number of seconds an extract is reused before it is requested again.
+	 * @param registry Registry where the client metrics are published.
+	 */
+	@Autowired
+	public WikipediaClient(@Value("${recognition.wikipedia.url:https://en.wikipedia.org/w/api.php}") String url,
+			@Value("${recognition.wikipedia.connect-timeout:2000}") int connectTimeout,
+			@Value("${recognition.wikipedia.read-timeout:5000}") int readTimeout,
+			@Value("${recognition.wikipedia.max-connections:20}") int maxConnections,
+			@Value("${recognition.wikipedia.cache.max-entries:10000}") int maxEntries,
+			@Value("${recognition.wikipedia.cache.ttl:86400}") long ttlSeconds,
+			MeterRegistry registry) {
+		this.url = url;
+		this.maxEntries = maxEntries;
+		this.ttlMillis = ttlSeconds*1000;
+		RequestConfig config = RequestConfig.custom()
+				.setConnectTimeout(connectTimeout)
+				.setConnectionRequestTimeout(connectTimeout)
+				.setSocketTimeout(readTimeout)
+				.build();
+		this.client = HttpAsyncClients.custom()
+				.setDefaultRequestConfig(config)
+				.setMaxConnTotal(maxConnections)
+				.setMaxConnPerRoute(maxConnections)
+				.setUserAgent("Roadini-ImageRecognition")
+				.build();
+		this.client.start();
+		this.hits = registry.counter("recognition.wikipedia.cache.hits");
+		this.misses = registry.counter("recognition.wikipedia.cache.misses");
+		this.failures = registry.counter("recognition.wikipedia.failures");
+		this.requests = registry.timer("recognition.wikipedia.requests");
+	}
+
+	@PreDestroy
+	public void close() throws IOException {
+		client.close();
+	}
+
+	/**
+	 * Returns the first sentence of the Wikipedia page of a landmark, requesting it if it is not cached.
+	 * @param title Title of the page.
+	 * @return Future completed with the extract, or with null if there is no page with this title.
+	 */
+	public CompletableFuture<String> extract(String title) {
+		synchronized (extracts) {
+			Entry entry = extracts.get(title);
+			if (entry != null && entry.expiresAt > System.currentTimeMillis()) {
+				hits.increment();
+				return CompletableFuture.completedFuture(entry.extract);
+			}
+		}
+		misses.increment();
+		CompletableFuture<String> request = new CompletableFuture<>();
+		CompletableFuture<String> running = inFlight.putIfAbsent(title, request);
+		if (running != null)
+			return running;
+		fetch(title).whenComplete((extract, e) -> {
+			// Cached before the request is removed, so no lookup in between requests the title again
+			if (e == null)
+				put(title, extract);
+			inFlight.remove(title, request);
+			if (e == null)
+				request.complete(extract);
+			else
+				request.completeExceptionally(e);
+		});
+		return request;
+	}
+
+	private CompletableFuture<String> fetch(String title) {
+		CompletableFuture<String> result = new CompletableFuture<>();
+		HttpGet get;
+		try {
+			get = new HttpGet(url+QUERY+URLEncoder.encode(title, "UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			result.completeExceptionally(e);
+			return result;
+		}
+		long start = System.nanoTime();
+		client.execute(get, new FutureCallback<HttpResponse>() {
+
+			@Override
+			public void completed(HttpResponse response) {
+				requests.record(System.nanoTime()-start, TimeUnit.NANOSECONDS);
+				try {
+					int status = response.getStatusLine().getStatusCode();
+					if (status != HttpStatus.SC_OK)
+						throw new IOException("Wikipedia answered "+status+" for "+title+".");
+					result.complete(parse(EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8)));
+				} catch (IOException e) {
+					failed(e);
+				}
+			}
+
+			@Override
+			public void failed(Exception e) {
+				failures.increment();
+				logger.error("Could not retrieve the Wikipedia extract of {}.", title, e);
+				result.completeExceptionally(e);
+			}
+
+			@Override
+			public void cancelled() {
+				failed(new IOException("Request for the Wikipedia extract of "+title+" was cancelled."));
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Retrieves the extract from the pages of the response, a title without page has none.
+	 */
+	private String parse(String body) throws IOException {
+		String extract = null;
+		for (JsonNode page : mapper.readTree(body).path("query").path("pages"))
+			if (page.hasNonNull("extract"))
+				extract = page.get("extract").asText();
+		return extract;
+	}
+
+	private void put(String title, String extract) {
+		if (maxEntries <= 0)
+			return;
+		synchronized (extracts) {
+			extracts.put(title, new Entry(extract, System.currentTimeMillis()+ttlMillis));
+			Iterator<String> it = extracts.keySet().iterator();
+			while (extracts.size() > maxEntries && it.hasNext()) {
+				it.next();
+				it.remove();
+			}
+		}
+	}
+
+	private static class Entry {
+
+		private final String extract;
+		private final long expiresAt;
+
+		private Entry(String extract, long expiresAt) {
+			this.extract = extract;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package service.recognizer.controller;
+
+import static org.junit.Assert.assertEquals;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockMultipartFile;
+
+import com.google.cloud.vision.v1.AnnotateImageRequest;
+import com.google.cloud.vision.v1.AnnotateImageResponse;
+import com.google.cloud.vision.v1.EntityAnnotation;
+import com.google.cloud.vision.v1.LocationInfo;
+import com.google.cloud.vision.v1.WebDetection;
+import com.google.type.LatLng;
+import com.sun.net.httpserver.HttpServer;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import service.recognizer.model.Information;
+import service.recognizer.service.Annotator;
+import service.recognizer.service.ImagePreprocessor;
+import service.recognizer.service.NearDuplicateIndex;
+import service.recognizer.service.Recognizer;
+import service.recognizer.service.ResultCache;
+import service.recognizer.service.VisionBatcher;
+import service.recognizer.service.VisionGuard;
+import service.recognizer.service.WikipediaClient;
+
+/**
+ * Checks that recognitions answer 503 while the Cloud Vision client starts, and are answered once it is ready,
+ * through the whole recognition service with a stubbed Cloud Vision and a stub Wikipedia server.
+ */
+public class IRControllerTest {
+
+	private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+	private final StartingAnnotator annotator = new StartingAnnotator();
+	private HttpServer wikipedia;
+	private WikipediaClient wikipediaClient;
+	private VisionBatcher batcher;
+	private IRController controller;
+
+	@Before
+	public void start() throws IOException {
+		wikipedia = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		wikipedia.createContext("/w/api.php", exchange -> {
+			byte[] body = "{\"query\":{\"pages\":{\"1\":{\"extract\":\"The Eiffel Tower is in Paris.\"}}}}".getBytes(StandardCharsets.UTF_8);
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		wikipedia.start();
+		wikipediaClient = new WikipediaClient("http://localhost:"+wikipedia.getAddress().getPort()+"/w/api.php",
+				1000, 1000, 4, 100, 3600, registry);
+		VisionGuard guard = new VisionGuard(10000, 3000, 16, 4, 64, 5, 30000, registry);
+		batcher = new VisionBatcher(annotator, guard, 0, 16, 256, registry);
+		Recognizer recognizer = new Recognizer(new ImagePreprocessor(1024, 85, registry), batcher, guard,
+				new ResultCache(100, 3600, "", registry), new NearDuplicateIndex(6, 100, registry), wikipediaClient);
+		// Jobs are not used by synchronous recognitions
+		controller = new IRController(recognizer, null);
+	}
+
+	@After
+	public void close() throws IOException {
+		batcher.close();
+		wikipediaClient.close();
+		wikipedia.stop(0);
+	}
+
+	@Test
+	public void answersServiceUnavailableUntilCloudVisionIsReady() throws IOException {
+		MockMultipartFile img = new MockMultipartFile("file", "tower.png", "image/png", photo());
+		assertEquals(HttpStatus.SERVICE_UNAVAILABLE, controller.recognizeImage(img).getStatusCode());
+		assertEquals(HttpStatus.SERVICE_UNAVAILABLE, controller.recognizeImage(img).getStatusCode());
+		assertEquals(0, annotator.calls);
+
+		annotator.ready = true;
+		ResponseEntity<?> response = controller.recognizeImage(img);
+		assertEquals(HttpStatus.OK, response.getStatusCode());
+		Information info = (Information) response.getBody();
+		assertEquals("Eiffel Tower", info.getLabel());
+		assertEquals(48.8584, info.getLatitude(), 1e-9);
+		assertEquals("The Eiffel Tower is in Paris.", info.getExtract());
+		assertEquals(1, annotator.calls);
+	}
+
+	private static byte[] photo() throws IOException {
+		BufferedImage img = new BufferedImage(96, 64, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = img.createGraphics();
+		g.setColor(Color.RED);
+		g.fillRect(0, 0, 96, 64);
+		g.setColor(Color.WHITE);
+		g.fillRect(40, 8, 16, 48);
+		g.dispose();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(img, "png", out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Stubbed Cloud Vision, which recognizes the Eiffel Tower on every Image once it has started.
+	 */
+	private static class StartingAnnotator implements Annotator {
+
+		private volatile boolean ready;
+		private volatile int calls;
+
+		@Override
+		public List<AnnotateImageResponse> annotate(List<AnnotateImageRequest> requests) {
+			calls++;
+			List<AnnotateImageResponse> responses = new ArrayList<>();
+			for (int i = 0; i < requests.size(); i++)
+				responses.add(AnnotateImageResponse.newBuilder()
+						.setWebDetection(WebDetection.newBuilder()
+								.addBestGuessLabels(WebDetection.WebLabel.newBuilder().setLabel("Eiffel Tower").build())
+								.build())
+						.addLandmarkAnnotations(EntityAnnotation.newBuilder()
+								.setDescription("Eiffel Tower")
+								.addLocations(LocationInfo.newBuilder()
+										.setLatLng(LatLng.newBuilder().setLatitude(48.8584).setLongitude(2.2945).build())
+										.build())
+								.build())
+						.build());
+			return responses;
+		}
+
+		@Override
+		public boolean isReady() {
+			return ready;
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package service.recognizer.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static service.recognizer.service.VisionBatcherTest.request;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.boot.actuate.health.Status;
+
+import com.google.cloud.vision.v1.ImageAnnotatorClient;
+import com.google.cloud.vision.v1.stub.ImageAnnotatorStub;
+
+/**
+ * Checks that the service is out of service, and rejects annotations, until the Cloud Vision client created
+ * in background is ready, with a stubbed client whose creation is held or failing.
+ */
+public class CloudVisionAnnotatorTest {
+
+	private CloudVisionAnnotator annotator;
+
+	@After
+	public void close() {
+		if (annotator != null)
+			annotator.close();
+	}
+
+	@Test
+	public void isOutOfServiceUntilTheClientIsCreated() throws Exception {
+		CountDownLatch created = new CountDownLatch(1);
+		annotator = new CloudVisionAnnotator("credentials.json", 30000, 10000) {
+			@Override
+			ImageAnnotatorClient create() throws IOException {
+				try {
+					created.await();
+				} catch (InterruptedException e) {
+					throw new IOException("Interrupted while creating the client.", e);
+				}
+				return stubbedClient();
+			}
+		};
+		VisionHealthIndicator health = new VisionHealthIndicator(annotator);
+		assertFalse(annotator.isReady());
+		assertEquals(Status.OUT_OF_SERVICE, health.health().getStatus());
+		try {
+			annotator.annotate(Collections.singletonList(request("img")));
+			fail("An annotation was sent before the client was created.");
+		} catch (VisionUnavailableException e) {
+			// Answered 503 by the controller
+		}
+		created.countDown();
+		awaitReady(annotator);
+		assertEquals(Status.UP, health.health().getStatus());
+		assertNull(annotator.getFailure());
+	}
+
+	@Test
+	public void isDownUntilAFailedCreationIsRetried() throws Exception {
+		AtomicInteger attempts = new AtomicInteger();
+		CountDownLatch retry = new CountDownLatch(1);
+		annotator = new CloudVisionAnnotator("credentials.json", 50, 10000) {
+			@Override
+			ImageAnnotatorClient create() throws IOException {
+				if (attempts.incrementAndGet() == 1)
+					throw new IOException("Bad credentials.");
+				try {
+					retry.await();
+				} catch (InterruptedException e) {
+					throw new IOException("Interrupted while creating the client.", e);
+				}
+				return stubbedClient();
+			}
+		};
+		VisionHealthIndicator health = new VisionHealthIndicator(annotator);
+		long deadline = System.currentTimeMillis()+5000;
+		while (annotator.getFailure() == null && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(Status.DOWN, health.health().getStatus());
+		assertFalse(annotator.isReady());
+		retry.countDown();
+		awaitReady(annotator);
+		assertEquals(2, attempts.get());
+		assertEquals(Status.UP, health.health().getStatus());
+	}
+
+	static void awaitReady(CloudVisionAnnotator annotator) throws InterruptedException {
+		long deadline = System.currentTimeMillis()+5000;
+		while (!annotator.isReady() && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertTrue("The client was not ready after 5 s.", annotator.isReady());
+	}
+
+	/**
+	 * Returns a client that opens no channel, it only needs to exist for the annotator to be ready.
+	 */
+	static ImageAnnotatorClient stubbedClient() {
+		return ImageAnnotatorClient.create(new ImageAnnotatorStub() {
+
+			private volatile boolean shutdown;
+
+			@Override
+			public void close() {
+				shutdown = true;
+			}
+
+			@Override
+			public void shutdown() {
+				shutdown = true;
+			}
+
+			@Override
+			public boolean isShutdown() {
+				return shutdown;
+			}
+
+			@Override
+			public boolean isTerminated() {
+				return shutdown;
+			}
+
+			@Override
+			public void shutdownNow() {
+				shutdown = true;
+			}
+
+			@Override
+			public boolean awaitTermination(long duration, TimeUnit unit) {
+				return shutdown;
+			}
+		});
+	}
+}
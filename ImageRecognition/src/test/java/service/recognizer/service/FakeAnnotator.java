@@ -0,0 +1,68 @@
+package service.recognizer.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.cloud.vision.v1.AnnotateImageRequest;
+import com.google.cloud.vision.v1.AnnotateImageResponse;
+import com.google.cloud.vision.v1.WebDetection;
+
+/**
+ * Answers each request with a response labelled with the content of its Image, and records the batches.
+ * It can be made slow, blocked until released, or failing.
+ */
+class FakeAnnotator implements Annotator {
+
+	final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+	// Number of responses left out of each answer
+	volatile int missing;
+	// Number of milliseconds each call takes
+	volatile long delayMillis;
+	// Calls wait for it before answering
+	volatile CountDownLatch release = new CountDownLatch(0);
+	volatile boolean failing;
+	private final AtomicInteger concurrent = new AtomicInteger();
+	private final AtomicInteger maxConcurrent = new AtomicInteger();
+
+	@Override
+	public List<AnnotateImageResponse> annotate(List<AnnotateImageRequest> requests) {
+		batchSizes.add(requests.size());
+		maxConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+		try {
+			release.await();
+			Thread.sleep(delayMillis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while annotating.", e);
+		} finally {
+			concurrent.decrementAndGet();
+		}
+		if (failing)
+			throw new IllegalStateException("Cloud Vision failed.");
+		List<AnnotateImageResponse> responses = new ArrayList<>();
+		for (AnnotateImageRequest request : requests.subList(0, Math.max(0, requests.size()-missing)))
+			responses.add(AnnotateImageResponse.newBuilder()
+					.setWebDetection(WebDetection.newBuilder()
+							.addBestGuessLabels(WebDetection.WebLabel.newBuilder().setLabel(request.getImage().getContent().toStringUtf8()).build())
+							.build())
+					.build());
+		return responses;
+	}
+
+	@Override
+	public boolean isReady() {
+		return true;
+	}
+
+	int calls() {
+		return batchSizes.size();
+	}
+
+	// Largest number of calls running at once
+	int maxConcurrent() {
+		return maxConcurrent.get();
+	}
+}
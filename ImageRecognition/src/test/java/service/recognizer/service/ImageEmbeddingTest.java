@@ -0,0 +1,44 @@
+package service.recognizer.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static service.recognizer.service.LandmarkIndexBuilderTest.drawing;
+import static service.recognizer.service.LandmarkIndexBuilderTest.encode;
+import static service.recognizer.service.LandmarkIndexBuilderTest.photo;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * Checks the descriptors of small drawn photos, which need no network nor catalog.
+ */
+public class ImageEmbeddingTest {
+
+	@Test
+	public void describesAnImageWithAUnitVectorOfTheGridDimension() throws IOException {
+		// Landmark indexes store descriptors of this dimension, changing it requires building them again
+		assertEquals(176, ImageEmbedding.DIMENSION);
+		float[] descriptor = ImageEmbedding.compute(photo(Color.RED, 2));
+		assertEquals(ImageEmbedding.DIMENSION, descriptor.length);
+		assertEquals(1, ImageEmbedding.similarity(descriptor, descriptor), 1e-4);
+	}
+
+	@Test
+	public void matchesTheSamePhotoAtAnotherSizeAndFormat() throws IOException {
+		float[] photo = ImageEmbedding.compute(photo(Color.RED, 2));
+		float[] resized = ImageEmbedding.compute(encode(drawing(Color.RED, 2, 300, 200), "jpg"));
+		float[] other = ImageEmbedding.compute(photo(Color.GREEN, 4));
+		float same = ImageEmbedding.similarity(photo, resized);
+		assertTrue("Similarity of the same photo is "+same, same > 0.9f);
+		assertTrue(ImageEmbedding.similarity(photo, other) < same-0.2f);
+	}
+
+	@Test
+	public void describesNothingOutOfAnUnsupportedFormat() throws IOException {
+		assertNull(ImageEmbedding.compute("not an image".getBytes(StandardCharsets.UTF_8)));
+	}
+}
@@ -0,0 +1,66 @@
+package service.recognizer.service;
+
+import static service.recognizer.service.LandmarkIndexBuilderTest.encode;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import com.google.protobuf.ByteString;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Measures the bytes sent to Cloud Vision and the time spent shrinking a photo-sized JPEG,
+ * compared with a plain full decode of the same JPEG.
+ * The photo is synthetic, smooth gradients with noise, so it compresses about as a camera photo does.
+ * Usage: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=service.recognizer.service.ImagePreprocessorBenchmark -Dexec.args="[width] [height] [runs]"
+ */
+public final class ImagePreprocessorBenchmark {
+
+	private ImagePreprocessorBenchmark() {
+	}
+
+	public static void main(String[] args) throws IOException {
+		int width = args.length > 0 ? Integer.parseInt(args[0]) : 4032;
+		int height = args.length > 1 ? Integer.parseInt(args[1]) : 3024;
+		int runs = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+		byte[] photo = encode(photo(width, height), "jpg");
+		ImagePreprocessor preprocessor = new ImagePreprocessor(1024, 85, new SimpleMeterRegistry());
+
+		// Warms up the decoder and encoder, so the JIT compiler does not count
+		ByteString sent = preprocessor.prepare(photo);
+		ImageIO.read(new ByteArrayInputStream(photo));
+		long prepare = 0;
+		long decode = 0;
+		for (int run = 0; run < runs; run++) {
+			long start = System.nanoTime();
+			sent = preprocessor.prepare(photo);
+			prepare += System.nanoTime()-start;
+			start = System.nanoTime();
+			ImageIO.read(new ByteArrayInputStream(photo));
+			decode += System.nanoTime()-start;
+		}
+		BufferedImage shrunk = ImageIO.read(new ByteArrayInputStream(sent.toByteArray()));
+		System.out.printf("%dx%d JPEG of %d KB sent as %dx%d JPEG of %d KB%n", width, height, photo.length/1024,
+				shrunk.getWidth(), shrunk.getHeight(), sent.size()/1024);
+		System.out.printf("Shrinking takes %.1f ms, a full decode %.1f ms%n", prepare/1e6/runs, decode/1e6/runs);
+	}
+
+	private static BufferedImage photo(int width, int height) {
+		Random random = new Random(42);
+		BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++) {
+				int noise = random.nextInt(32);
+				int r = Math.min(255, 255*x/width+noise);
+				int g = Math.min(255, 255*y/height+noise);
+				int b = Math.min(255, 128+noise);
+				img.setRGB(x, y, r << 16 | g << 8 | b);
+			}
+		return img;
+	}
+}
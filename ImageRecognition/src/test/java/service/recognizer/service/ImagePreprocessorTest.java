@@ -0,0 +1,164 @@
+package service.recognizer.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static service.recognizer.service.LandmarkIndexBuilderTest.encode;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Checks how Images are shrunk before they are sent to Cloud Vision, on small drawn fixtures:
+ * JPEGs with an EXIF orientation, and JPEGs too damaged to be decoded.
+ */
+public class ImagePreprocessorTest {
+
+	private final ImagePreprocessor preprocessor = new ImagePreprocessor(100, 85, new SimpleMeterRegistry());
+
+	@Test
+	public void shrinksALargeImageToTheMaximumDimension() throws IOException {
+		BufferedImage shrunk = decode(preprocessor.prepare(encode(halves(600, 300), "jpg")).toByteArray());
+		assertEquals(100, shrunk.getWidth());
+		assertEquals(50, shrunk.getHeight());
+	}
+
+	@Test
+	public void sendsASmallImageAsItIs() throws IOException {
+		byte[] small = encode(halves(80, 40), "png");
+		assertArrayEquals(small, preprocessor.prepare(small).toByteArray());
+		byte[] large = encode(halves(600, 300), "png");
+		assertArrayEquals(large, new ImagePreprocessor(0, 85, new SimpleMeterRegistry()).prepare(large).toByteArray());
+	}
+
+	@Test
+	public void readsTheExifOrientationInBothByteOrders() throws IOException {
+		byte[] jpeg = encode(halves(60, 30), "jpg");
+		assertEquals(1, ImagePreprocessor.orientation(jpeg));
+		assertEquals(6, ImagePreprocessor.orientation(withOrientation(jpeg, 6, true)));
+		assertEquals(8, ImagePreprocessor.orientation(withOrientation(jpeg, 8, false)));
+		assertEquals(1, ImagePreprocessor.orientation(encode(halves(60, 30), "png")));
+		// A truncated EXIF segment is ignored
+		assertEquals(1, ImagePreprocessor.orientation(Arrays.copyOf(withOrientation(jpeg, 6, true), 30)));
+	}
+
+	@Test
+	public void turnsAShrunkImageTheWayItIsDisplayed() throws IOException {
+		// Stored red on the left and blue on the right, displayed turned a quarter clockwise: red on top
+		byte[] rotated = withOrientation(encode(halves(600, 300), "jpg"), 6, false);
+		BufferedImage shrunk = decode(preprocessor.prepare(rotated).toByteArray());
+		assertEquals(50, shrunk.getWidth());
+		assertEquals(100, shrunk.getHeight());
+		assertTrue(isRed(shrunk.getRGB(25, 10)));
+		assertTrue(isBlue(shrunk.getRGB(25, 90)));
+
+		// Turned a half: blue on the left
+		shrunk = decode(preprocessor.prepare(withOrientation(encode(halves(600, 300), "jpg"), 3, true)).toByteArray());
+		assertEquals(100, shrunk.getWidth());
+		assertTrue(isBlue(shrunk.getRGB(10, 25)));
+		assertTrue(isRed(shrunk.getRGB(90, 25)));
+	}
+
+	@Test
+	public void sendsAnImageThatCannotBeDecodedAsItIs() throws IOException {
+		byte[] jpeg = encode(halves(600, 300), "jpg");
+		// Everything after the start of the JPEG is overwritten, the reader finds no Image in it
+		byte[] corrupt = jpeg.clone();
+		Arrays.fill(corrupt, 2, corrupt.length, (byte) 0xff);
+		assertArrayEquals(corrupt, preprocessor.prepare(corrupt).toByteArray());
+		byte[] garbage = {(byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xc0, 0, 2, 1, 2, 3};
+		assertArrayEquals(garbage, preprocessor.prepare(garbage).toByteArray());
+		byte[] text = "not an image".getBytes("UTF-8");
+		assertArrayEquals(text, preprocessor.prepare(text).toByteArray());
+	}
+
+	@Test
+	public void neverSendsMoreThanTheOriginal() throws IOException {
+		// Truncated in the middle of its data, what is decoded is sent only if smaller
+		byte[] jpeg = encode(halves(600, 300), "jpg");
+		byte[] truncated = Arrays.copyOf(jpeg, jpeg.length/2);
+		assertTrue(preprocessor.prepare(truncated).size() <= truncated.length);
+	}
+
+	/**
+	 * Draws an Image red on its left half and blue on its right half.
+	 */
+	private static BufferedImage halves(int width, int height) {
+		BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = img.createGraphics();
+		g.setColor(Color.RED);
+		g.fillRect(0, 0, width/2, height);
+		g.setColor(Color.BLUE);
+		g.fillRect(width/2, 0, width-width/2, height);
+		g.dispose();
+		return img;
+	}
+
+	/**
+	 * Inserts an EXIF segment holding only an orientation right after the start of a JPEG.
+	 */
+	static byte[] withOrientation(byte[] jpeg, int orientation, boolean little) {
+		ByteArrayOutputStream tiff = new ByteArrayOutputStream();
+		tiff.write(little ? 'I' : 'M');
+		tiff.write(little ? 'I' : 'M');
+		writeShort(tiff, 42, little);
+		writeInt(tiff, 8, little);
+		// One entry: the orientation, a SHORT, then no next directory
+		writeShort(tiff, 1, little);
+		writeShort(tiff, 0x0112, little);
+		writeShort(tiff, 3, little);
+		writeInt(tiff, 1, little);
+		writeShort(tiff, orientation, little);
+		writeShort(tiff, 0, little);
+		writeInt(tiff, 0, little);
+		byte[] exif = tiff.toByteArray();
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(jpeg, 0, 2);
+		out.write(0xff);
+		out.write(0xe1);
+		writeShort(out, 2+6+exif.length, false);
+		out.write('E');
+		out.write('x');
+		out.write('i');
+		out.write('f');
+		out.write(0);
+		out.write(0);
+		out.write(exif, 0, exif.length);
+		out.write(jpeg, 2, jpeg.length-2);
+		return out.toByteArray();
+	}
+
+	private static void writeShort(ByteArrayOutputStream out, int value, boolean little) {
+		out.write(little ? value & 0xff : (value >> 8) & 0xff);
+		out.write(little ? (value >> 8) & 0xff : value & 0xff);
+	}
+
+	private static void writeInt(ByteArrayOutputStream out, int value, boolean little) {
+		writeShort(out, little ? value & 0xffff : value >>> 16, little);
+		writeShort(out, little ? value >>> 16 : value & 0xffff, little);
+	}
+
+	private static BufferedImage decode(byte[] content) throws IOException {
+		return ImageIO.read(new ByteArrayInputStream(content));
+	}
+
+	private static boolean isRed(int rgb) {
+		return ((rgb >> 16) & 0xff) > 200 && (rgb & 0xff) < 60;
+	}
+
+	private static boolean isBlue(int rgb) {
+		return (rgb & 0xff) > 200 && ((rgb >> 16) & 0xff) < 60;
+	}
+}
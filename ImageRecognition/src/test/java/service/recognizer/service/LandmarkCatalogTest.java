@@ -0,0 +1,73 @@
+package service.recognizer.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static service.recognizer.service.LandmarkIndexBuilderTest.catalog;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import service.recognizer.model.Information;
+
+/**
+ * Checks how the landmark catalog is read, and that a missing catalog recognizes nothing.
+ */
+public class LandmarkCatalogTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void readsQuotedFieldsAndSkipsTheHeaderAndBlankLines() throws IOException {
+		Path file = catalog(folder.getRoot().toPath().resolve("landmarks.csv"),
+				"tower.png,Eiffel Tower,48.8584,2.2945,\"Paris, France\",\"The \"\"Iron Lady\"\"\"",
+				"",
+				"bridge.png,Golden Gate Bridge,37.8199,-122.4783");
+		List<String[]> rows = LandmarkCatalog.readCsv(file);
+		assertEquals(2, rows.size());
+		assertEquals(6, rows.get(0).length);
+		assertEquals("Paris, France", rows.get(0)[4]);
+		assertEquals("The \"Iron Lady\"", rows.get(0)[5]);
+		assertEquals("bridge.png", rows.get(1)[0]);
+	}
+
+	@Test
+	public void rejectsARowWithoutCoordinates() throws IOException {
+		Path file = catalog(folder.getRoot().toPath().resolve("landmarks.csv"),
+				"tower.png,Eiffel Tower,48.8584,2.2945",
+				"bridge.png,Golden Gate Bridge");
+		try {
+			LandmarkCatalog.readCsv(file);
+			fail("A row without coordinates was read.");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Line 3 "));
+		}
+	}
+
+	@Test
+	public void describesALandmarkByItsLabelWithoutDescription() {
+		Information info = LandmarkCatalog.toInformation(new String[] {"tower.png", "Eiffel Tower", "48.8584", "2.2945"});
+		assertEquals("Eiffel Tower", info.getLabel());
+		assertEquals(48.8584, info.getLatitude(), 1e-9);
+		assertEquals(2.2945, info.getLongitude(), 1e-9);
+		assertEquals("Eiffel Tower", info.getDescription());
+		assertNull(info.getExtract());
+	}
+
+	@Test
+	public void recognizesNothingWithoutCatalog() throws IOException {
+		Path root = folder.getRoot().toPath();
+		LandmarkCatalog catalog = new LandmarkCatalog(root.resolve("landmarks.csv").toString(), root.resolve("landmarks.idx").toString(), 8);
+		catalog.init();
+		assertEquals(0, catalog.size());
+		assertNull(catalog.nearest(new float[ImageEmbedding.DIMENSION], 0));
+		catalog.close();
+	}
+}
@@ -0,0 +1,82 @@
+package service.recognizer.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import service.recognizer.model.Information;
+
+/**
+ * Measures the recall and the latency of lookups in the landmark index, compared with an exact search,
+ * on random descriptors of the dimension of ImageEmbedding grouped around landmarks.
+ * The index is split in lists as LandmarkIndexBuilder does, and each query is a landmark of the index with some noise.
+ * Usage: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=service.recognizer.service.LandmarkIndexBenchmark -Dexec.args="[landmarks] [queries]"
+ */
+public final class LandmarkIndexBenchmark {
+
+	private static final int[] PROBES = {1, 2, 4, 8, 16, 32};
+
+	private LandmarkIndexBenchmark() {
+	}
+
+	public static void main(String[] args) throws IOException {
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int queries = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		Random random = new Random(42);
+		// Photos of a landmark are about as far from each other as from other landmarks, the hard case for the lists
+		List<float[]> descriptors = LandmarkIndexTest.clustered(random, size, ImageEmbedding.DIMENSION, Math.max(1, size/20), 1.2f);
+		Path file = Files.createTempFile("landmarks", ".idx");
+		try {
+			long start = System.nanoTime();
+			int lists = (int) Math.ceil(Math.sqrt(size));
+			try (LandmarkIndex index = LandmarkIndex.create(file, LandmarkIndex.train(descriptors, lists, 10))) {
+				for (int i = 0; i < size; i++)
+					index.add(descriptors.get(i), new Information(String.valueOf(i), 0, 0, null, null));
+				System.out.printf("Built an index of %d landmarks in %d lists in %d ms%n", size, index.getLists(), (System.nanoTime()-start)/1000000);
+
+				float[][] query = new float[queries][];
+				String[] nearest = new String[queries];
+				long[] exact = new long[queries];
+				for (int q = 0; q < queries; q++) {
+					query[q] = LandmarkIndexTest.noisy(random, descriptors.get(random.nextInt(size)), 0.6f);
+					long before = System.nanoTime();
+					nearest[q] = LandmarkIndexTest.exact(descriptors, query[q]);
+					exact[q] = System.nanoTime()-before;
+				}
+				report("exact", 1, exact);
+
+				for (int probes : PROBES) {
+					if (probes > index.getLists())
+						break;
+					// Warms up the lookups, so the JIT compiler does not count
+					for (int q = 0; q < Math.min(queries, 200); q++)
+						index.search(query[q], 1, probes);
+					long[] latencies = new long[queries];
+					int found = 0;
+					for (int q = 0; q < queries; q++) {
+						long before = System.nanoTime();
+						List<LandmarkIndex.Neighbour> neighbours = index.search(query[q], 1, probes);
+						latencies[q] = System.nanoTime()-before;
+						if (!neighbours.isEmpty() && neighbours.get(0).getInfo().getLabel().equals(nearest[q]))
+							found++;
+					}
+					report(probes+" probes", (double) found/queries, latencies);
+				}
+			}
+		} finally {
+			Files.deleteIfExists(file);
+			Files.deleteIfExists(LandmarkIndex.metaFile(file));
+		}
+	}
+
+	private static void report(String search, double recall, long[] latencies) {
+		long[] sorted = latencies.clone();
+		Arrays.sort(sorted);
+		double mean = Arrays.stream(sorted).average().orElse(0);
+		System.out.printf("%-10s recall@1 %.3f  mean %.3f ms  p50 %.3f ms  p99 %.3f ms%n", search, recall,
+				mean/1e6, sorted[sorted.length/2]/1e6, sorted[Math.min(sorted.length-1, (int) (sorted.length*0.99))]/1e6);
+	}
+}
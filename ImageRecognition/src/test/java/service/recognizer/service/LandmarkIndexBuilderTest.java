@@ -0,0 +1,110 @@
+package service.recognizer.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that building the landmark index again keeps the photos added to it from other catalogs.
+ */
+public class LandmarkIndexBuilderTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void keepsTheAppendedPhotosWhenBuiltAgain() throws IOException {
+		Path root = folder.getRoot().toPath();
+		Files.write(root.resolve("tower.png"), photo(Color.RED, 1));
+		Files.write(root.resolve("bridge.png"), photo(Color.BLUE, 3));
+		Path catalog = catalog(root.resolve("landmarks.csv"), "tower.png,Tower,48.85,2.29");
+		Path extra = catalog(root.resolve("extra.csv"), "bridge.png,Bridge,37.81,-122.47");
+		Path index = root.resolve("landmarks.idx");
+		LandmarkIndexBuilder.build(catalog, index).close();
+		LandmarkIndexBuilder.append(extra, index);
+		assertEquals(Arrays.asList(extra.toAbsolutePath()), LandmarkIndexBuilder.appended(index));
+
+		Files.setLastModifiedTime(catalog, FileTime.fromMillis(System.currentTimeMillis()+1000));
+		try (LandmarkIndex built = LandmarkIndexBuilder.build(catalog, index)) {
+			assertEquals(2, built.size());
+			float[] bridge = ImageEmbedding.compute(Files.readAllBytes(root.resolve("bridge.png")));
+			assertEquals("Bridge", built.search(bridge, 1, built.getLists()).get(0).getInfo().getLabel());
+		}
+	}
+
+	@Test
+	public void refusesToDropTheAppendedPhotosOfAMissingCatalog() throws IOException {
+		Path root = folder.getRoot().toPath();
+		Files.write(root.resolve("tower.png"), photo(Color.RED, 1));
+		Files.write(root.resolve("bridge.png"), photo(Color.BLUE, 3));
+		Path catalog = catalog(root.resolve("landmarks.csv"), "tower.png,Tower,48.85,2.29");
+		Path extra = catalog(root.resolve("extra.csv"), "bridge.png,Bridge,37.81,-122.47");
+		Path index = root.resolve("landmarks.idx");
+		LandmarkIndexBuilder.build(catalog, index).close();
+		LandmarkIndexBuilder.append(extra, index);
+		Files.delete(extra);
+		try {
+			LandmarkIndexBuilder.build(catalog, index).close();
+			fail("The index was built without the appended photos.");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("extra.csv"));
+		}
+		try (LandmarkIndex existing = LandmarkIndex.open(index, false)) {
+			assertEquals(2, existing.size());
+		}
+	}
+
+	static Path catalog(Path file, String... rows) throws IOException {
+		StringBuilder csv = new StringBuilder("image,label,latitude,longitude\n");
+		for (String row : rows)
+			csv.append(row).append('\n');
+		Files.write(file, csv.toString().getBytes(StandardCharsets.UTF_8));
+		return file;
+	}
+
+	/**
+	 * Draws a small photo of stripes on a background of a colour, so photos with different colours or stripes
+	 * have different descriptors.
+	 * @param colour Colour of the background.
+	 * @param stripes Number of vertical stripes.
+	 * @return The photo, encoded as PNG.
+	 */
+	static byte[] photo(Color colour, int stripes) throws IOException {
+		return encode(drawing(colour, stripes, 96, 64), "png");
+	}
+
+	static BufferedImage drawing(Color colour, int stripes, int width, int height) {
+		BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = img.createGraphics();
+		g.setColor(colour);
+		g.fillRect(0, 0, width, height);
+		g.setColor(Color.WHITE);
+		for (int i = 0; i < stripes; i++)
+			g.fillRect((2*i+1)*width/(2*stripes+1), height/4, width/(2*stripes+1), height/2);
+		g.dispose();
+		return img;
+	}
+
+	static byte[] encode(BufferedImage img, String format) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(img, format, out);
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,167 @@
+package service.recognizer.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import service.recognizer.model.Information;
+
+/**
+ * Checks the lookups of the landmark index against an exact search, on random descriptors grouped around a few landmarks.
+ * Each landmark is labelled with its position in the list of descriptors.
+ */
+public class LandmarkIndexTest {
+
+	private static final int DIMENSION = 32;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final Random random = new Random(42);
+
+	@Test
+	public void findsMostNearestLandmarksScanningFewLists() throws IOException {
+		List<float[]> descriptors = clustered(random, 2000, DIMENSION, 50);
+		try (LandmarkIndex index = build(descriptors, 45)) {
+			int queries = 200;
+			int found = 0;
+			for (int q = 0; q < queries; q++) {
+				float[] query = noisy(random, descriptors.get(random.nextInt(descriptors.size())), 0.05f);
+				if (index.search(query, 1, 8).get(0).getInfo().getLabel().equals(exact(descriptors, query)))
+					found++;
+			}
+			assertTrue("Found "+found+" of "+queries+" nearest landmarks.", found >= 0.9*queries);
+		}
+	}
+
+	@Test
+	public void findsTheNearestLandmarksScanningEveryList() throws IOException {
+		List<float[]> descriptors = clustered(random, 500, DIMENSION, 20);
+		try (LandmarkIndex index = build(descriptors, 20)) {
+			for (int q = 0; q < 50; q++) {
+				float[] query = noisy(random, descriptors.get(random.nextInt(descriptors.size())), 0.2f);
+				List<LandmarkIndex.Neighbour> neighbours = index.search(query, 5, index.getLists());
+				assertEquals(5, neighbours.size());
+				assertEquals(exact(descriptors, query), neighbours.get(0).getInfo().getLabel());
+				for (int i = 1; i < neighbours.size(); i++)
+					assertTrue(neighbours.get(i-1).getSimilarity() >= neighbours.get(i).getSimilarity());
+			}
+		}
+	}
+
+	@Test
+	public void trainsOneCentroidPerGroup() {
+		float[][] centres = new float[4][];
+		// Listed group by group, as the photos of a catalog landmark by landmark
+		List<float[]> descriptors = new ArrayList<>();
+		for (int group = 0; group < centres.length; group++) {
+			centres[group] = unit(random, DIMENSION);
+			for (int i = 0; i < 100; i++)
+				descriptors.add(noisy(random, centres[group], 0.1f));
+		}
+		float[][] centroids = LandmarkIndex.train(descriptors, centres.length, 10);
+		assertEquals(centres.length, centroids.length);
+		for (float[] centroid : centroids)
+			assertEquals(1, ImageEmbedding.similarity(centroid, centroid), 1e-4);
+		for (float[] centre : centres) {
+			int close = 0;
+			for (float[] centroid : centroids)
+				if (ImageEmbedding.similarity(centre, centroid) > 0.95f)
+					close++;
+			assertEquals(1, close);
+		}
+	}
+
+	@Test
+	public void trainsNoMoreCentroidsThanDescriptors() {
+		List<float[]> descriptors = clustered(random, 3, DIMENSION, 3);
+		assertEquals(3, LandmarkIndex.train(descriptors, 10, 5).length);
+	}
+
+	@Test
+	public void findsLandmarksAddedByAnotherProcess() throws IOException {
+		List<float[]> descriptors = clustered(random, 1000, DIMENSION, 20);
+		Path file = folder.getRoot().toPath().resolve("landmarks.idx");
+		try (LandmarkIndex writer = LandmarkIndex.create(file, LandmarkIndex.train(descriptors, 8, 5))) {
+			for (int i = 0; i < 10; i++)
+				writer.add(descriptors.get(i), new Information(String.valueOf(i), 0, 0, null, null));
+			writer.flush();
+			// The reader maps the first landmarks only, the others are added beyond its mapping
+			try (LandmarkIndex reader = LandmarkIndex.open(file, false)) {
+				assertEquals(10, reader.size());
+				for (int i = 10; i < descriptors.size(); i++)
+					writer.add(descriptors.get(i), new Information(String.valueOf(i), 0, 0, null, null));
+				writer.flush();
+				assertEquals("900", reader.search(descriptors.get(900), 1, reader.getLists()).get(0).getInfo().getLabel());
+				assertEquals(descriptors.size(), reader.size());
+				assertEquals("5", reader.search(descriptors.get(5), 1, reader.getLists()).get(0).getInfo().getLabel());
+			}
+		}
+	}
+
+	private LandmarkIndex build(List<float[]> descriptors, int lists) throws IOException {
+		LandmarkIndex index = LandmarkIndex.create(folder.getRoot().toPath().resolve("landmarks.idx"), LandmarkIndex.train(descriptors, lists, 10));
+		for (int i = 0; i < descriptors.size(); i++)
+			index.add(descriptors.get(i), new Information(String.valueOf(i), 0, 0, null, null));
+		return index;
+	}
+
+	/**
+	 * Returns the label of the landmark the most similar to a query, comparing it with every landmark.
+	 */
+	static String exact(List<float[]> descriptors, float[] query) {
+		int best = 0;
+		for (int i = 1; i < descriptors.size(); i++)
+			if (ImageEmbedding.similarity(query, descriptors.get(i)) > ImageEmbedding.similarity(query, descriptors.get(best)))
+				best = i;
+		return String.valueOf(best);
+	}
+
+	static List<float[]> clustered(Random random, int size, int dimension, int groups) {
+		return clustered(random, size, dimension, groups, 0.3f);
+	}
+
+	/**
+	 * Returns descriptors of unit length spread around a number of random centres, as photos of a few landmarks.
+	 * The spread is the length of the noise added to the centres, of unit length.
+	 */
+	static List<float[]> clustered(Random random, int size, int dimension, int groups, float spread) {
+		float[][] centres = new float[groups][];
+		for (int group = 0; group < groups; group++)
+			centres[group] = unit(random, dimension);
+		List<float[]> descriptors = new ArrayList<>(size);
+		for (int i = 0; i < size; i++)
+			descriptors.add(noisy(random, centres[random.nextInt(groups)], spread));
+		return descriptors;
+	}
+
+	static float[] noisy(Random random, float[] descriptor, float noise) {
+		float[] copy = descriptor.clone();
+		for (int i = 0; i < copy.length; i++)
+			copy[i] += (float) random.nextGaussian()*noise/(float) Math.sqrt(copy.length);
+		return normalize(copy);
+	}
+
+	static float[] unit(Random random, int dimension) {
+		float[] v = new float[dimension];
+		for (int i = 0; i < dimension; i++)
+			v[i] = (float) random.nextGaussian();
+		return normalize(v);
+	}
+
+	private static float[] normalize(float[] v) {
+		float norm = (float) Math.sqrt(ImageEmbedding.similarity(v, v));
+		for (int i = 0; i < v.length; i++)
+			v[i] /= norm;
+		return v;
+	}
+}
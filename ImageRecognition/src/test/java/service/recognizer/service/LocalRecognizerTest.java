@@ -0,0 +1,84 @@
+package service.recognizer.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static service.recognizer.service.LandmarkIndexBuilderTest.catalog;
+import static service.recognizer.service.LandmarkIndexBuilderTest.drawing;
+import static service.recognizer.service.LandmarkIndexBuilderTest.encode;
+import static service.recognizer.service.LandmarkIndexBuilderTest.photo;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import service.recognizer.model.Information;
+
+/**
+ * Recognizes drawn photos against a tiny catalog of two landmarks, whose index is built on startup, entirely offline.
+ */
+public class LocalRecognizerTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private LandmarkCatalog catalog;
+	private LocalRecognizer recognizer;
+
+	@Before
+	public void start() throws IOException {
+		Path root = folder.getRoot().toPath();
+		Files.write(root.resolve("tower.png"), photo(Color.RED, 1));
+		Files.write(root.resolve("bridge.png"), photo(Color.BLUE, 3));
+		catalog(root.resolve("landmarks.csv"),
+				"tower.png,Eiffel Tower,48.8584,2.2945,Paris,Wrought-iron lattice tower",
+				"bridge.png,Golden Gate Bridge,37.8199,-122.4783");
+		catalog = new LandmarkCatalog(root.resolve("landmarks.csv").toString(), root.resolve("landmarks.idx").toString(), 8);
+		catalog.init();
+		recognizer = new LocalRecognizer(catalog, 0.7f, new SimpleMeterRegistry());
+	}
+
+	@After
+	public void close() throws IOException {
+		catalog.close();
+	}
+
+	@Test
+	public void recognizesAnotherPhotoOfALandmark() throws IOException {
+		assertEquals(2, catalog.size());
+		Information info = recognizer.recognizeThis(encode(drawing(Color.RED, 1, 300, 200), "jpg"));
+		assertEquals("Eiffel Tower", info.getLabel());
+		assertEquals(48.8584, info.getLatitude(), 1e-9);
+		assertEquals("Paris", info.getDescription());
+		assertEquals("Wrought-iron lattice tower", info.getExtract());
+		assertEquals("Golden Gate Bridge", recognizer.recognizeThis(photo(Color.BLUE, 3)).getLabel());
+	}
+
+	@Test
+	public void recognizesNothingOnAnUnknownPhoto() throws IOException {
+		assertNull(recognizer.recognizeThis(photo(Color.YELLOW, 6)).getLabel());
+	}
+
+	@Test
+	public void recognizesNothingOnAnUnsupportedFormat() {
+		assertNull(recognizer.recognizeThis("not an image".getBytes(StandardCharsets.UTF_8)).getLabel());
+	}
+
+	@Test
+	public void opensTheIndexBuiltOnTheFirstStartup() throws IOException {
+		catalog.close();
+		Path root = folder.getRoot().toPath();
+		catalog = new LandmarkCatalog(root.resolve("landmarks.csv").toString(), root.resolve("landmarks.idx").toString(), 8);
+		catalog.init();
+		recognizer = new LocalRecognizer(catalog, 0.7f, new SimpleMeterRegistry());
+		assertEquals("Golden Gate Bridge", recognizer.recognizeThis(photo(Color.BLUE, 3)).getLabel());
+	}
+}
@@ -0,0 +1,76 @@
+package service.recognizer.service;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import service.recognizer.model.Information;
+
+/**
+ * Measures the build time and the lookup latency of the near-duplicate index filled with random hashes,
+ * and checks that lookups find an Image as close as a scan of every hash does.
+ * Each query is an indexed hash with up to the maximum distance of its bits flipped, as a recompressed or resized Image.
+ * Usage: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=service.recognizer.service.NearDuplicateIndexBenchmark -Dexec.args="[entries] [queries]"
+ */
+public final class NearDuplicateIndexBenchmark {
+
+	private static final int MAX_DISTANCE = 6;
+	// Queries checked against a scan of every hash
+	private static final int CHECKED = 200;
+
+	private NearDuplicateIndexBenchmark() {
+	}
+
+	public static void main(String[] args) {
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int queries = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+		Random random = new Random(42);
+		long[] hashes = new long[size];
+		for (int i = 0; i < size; i++)
+			hashes[i] = random.nextLong();
+
+		NearDuplicateIndex index = new NearDuplicateIndex(MAX_DISTANCE, size, new SimpleMeterRegistry());
+		long start = System.nanoTime();
+		for (int i = 0; i < size; i++)
+			index.put(hashes[i], new Information(String.valueOf(i), 0, 0, null, null));
+		System.out.printf("Indexed %d hashes in %d ms%n", size, (System.nanoTime()-start)/1000000);
+
+		long[] query = new long[queries];
+		for (int q = 0; q < queries; q++) {
+			query[q] = hashes[random.nextInt(size)];
+			for (int flips = random.nextInt(MAX_DISTANCE+1); flips > 0; flips--)
+				query[q] ^= 1L << random.nextInt(64);
+		}
+		// Warms up the lookups, so the JIT compiler does not count
+		for (int q = 0; q < Math.min(queries, 20000); q++)
+			index.find(query[q]);
+		long[] latencies = new long[queries];
+		int found = 0;
+		for (int q = 0; q < queries; q++) {
+			long before = System.nanoTime();
+			Information info = index.find(query[q]);
+			latencies[q] = System.nanoTime()-before;
+			if (info != null)
+				found++;
+		}
+		Arrays.sort(latencies);
+		System.out.printf("%d lookups, %d found: mean %.1f us  p50 %.1f us  p99 %.1f us%n", queries, found,
+				Arrays.stream(latencies).average().orElse(0)/1e3, latencies[queries/2]/1e3, latencies[(int) (queries*0.99)]/1e3);
+
+		int matching = 0;
+		long scans = 0;
+		for (int q = 0; q < Math.min(queries, CHECKED); q++) {
+			long before = System.nanoTime();
+			int best = MAX_DISTANCE+1;
+			for (long hash : hashes)
+				best = Math.min(best, PerceptualHash.distance(query[q], hash));
+			scans += System.nanoTime()-before;
+			Information info = index.find(query[q]);
+			int distance = info == null ? MAX_DISTANCE+1 : PerceptualHash.distance(query[q], hashes[Integer.parseInt(info.getLabel())]);
+			if (distance == best)
+				matching++;
+		}
+		System.out.printf("%d of %d lookups as close as a scan of every hash, which takes %.1f us%n", matching,
+				Math.min(queries, CHECKED), scans/1e3/Math.min(queries, CHECKED));
+	}
+}
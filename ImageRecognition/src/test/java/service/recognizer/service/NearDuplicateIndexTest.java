@@ -0,0 +1,79 @@
+package service.recognizer.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import service.recognizer.model.Information;
+
+/**
+ * Checks the lookups of the near-duplicate index against a scan of every hash, within and beyond the maximum distance.
+ */
+public class NearDuplicateIndexTest {
+
+	private final Random random = new Random(42);
+	private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+	@Test
+	public void findsTheClosestHashWithinTheMaximumDistance() {
+		long[] hashes = new long[10000];
+		NearDuplicateIndex index = new NearDuplicateIndex(6, hashes.length, registry);
+		for (int i = 0; i < hashes.length; i++) {
+			hashes[i] = random.nextLong();
+			index.put(hashes[i], info(i));
+		}
+		for (int q = 0; q < 500; q++) {
+			long query = flip(hashes[random.nextInt(hashes.length)], random.nextInt(10));
+			int best = 7;
+			for (long hash : hashes)
+				best = Math.min(best, PerceptualHash.distance(query, hash));
+			Information info = index.find(query);
+			if (best > 6)
+				assertNull(info);
+			else
+				assertEquals(best, PerceptualHash.distance(query, hashes[Integer.parseInt(info.getLabel())]));
+		}
+	}
+
+	@Test
+	public void replacesTheResultOfTheSameHash() {
+		NearDuplicateIndex index = new NearDuplicateIndex(6, 10, registry);
+		index.put(42, info(1));
+		index.put(42, info(2));
+		assertEquals(1, index.size());
+		assertEquals("2", index.find(42).getLabel());
+	}
+
+	@Test
+	public void dropsTheOldestResultsWhenFull() {
+		NearDuplicateIndex index = new NearDuplicateIndex(0, 10, registry);
+		for (int i = 0; i < 11; i++)
+			index.put(i << 20, info(i));
+		assertEquals(10, index.size());
+		assertNull(index.find(0));
+		assertEquals("1", index.find(1 << 20).getLabel());
+		assertEquals("10", index.find(10 << 20).getLabel());
+	}
+
+	@Test
+	public void findsNothingWhenDisabled() {
+		NearDuplicateIndex index = new NearDuplicateIndex(-1, 10, registry);
+		index.put(42, info(1));
+		assertEquals(0, index.size());
+		assertNull(index.find(42));
+	}
+
+	private long flip(long hash, int bits) {
+		for (int i = 0; i < bits; i++)
+			hash ^= 1L << random.nextInt(64);
+		return hash;
+	}
+
+	private static Information info(int i) {
+		return new Information(String.valueOf(i), 0, 0, null, null);
+	}
+}
@@ -0,0 +1,91 @@
+package service.recognizer.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import service.recognizer.model.Information;
+
+/**
+ * Checks that the persisted results match the cached ones, including when results are evicted while they are written.
+ */
+public class ResultCacheTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void loadsThePersistedResultsBack() throws IOException {
+		File location = folder.newFolder("results");
+		ResultCache cache = cache(10, location);
+		cache.put("a", info("Eiffel Tower"));
+		cache.put("b", info("Colosseum"));
+
+		ResultCache restarted = cache(10, location);
+		assertEquals(2, restarted.size());
+		assertEquals("Eiffel Tower", restarted.get("a").getLabel());
+		assertEquals("Colosseum", restarted.get("b").getLabel());
+	}
+
+	@Test
+	public void deletesTheFilesOfEvictedResults() throws IOException {
+		File location = folder.newFolder("results");
+		ResultCache cache = cache(2, location);
+		cache.put("a", info("Eiffel Tower"));
+		cache.put("b", info("Colosseum"));
+		cache.put("c", info("Big Ben"));
+		assertEquals(2, files(location));
+		assertNull(cache(2, location).get("a"));
+	}
+
+	@Test
+	public void leavesNoFileBehindWhenResultsAreEvictedWhileWritten() throws Exception {
+		File location = folder.newFolder("results");
+		ResultCache cache = cache(16, location);
+		ExecutorService threads = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<?>> puts = new ArrayList<>();
+			for (int t = 0; t < 8; t++) {
+				int thread = t;
+				// Threads share part of the hashes, so results are replaced as well as evicted
+				puts.add(threads.submit(() -> {
+					for (int i = 0; i < 1500; i++)
+						cache.put("h"+(thread*750+i), info("Landmark "+i));
+				}));
+			}
+			for (Future<?> put : puts)
+				put.get();
+		} finally {
+			threads.shutdown();
+		}
+		assertEquals(16, cache.size());
+		assertEquals(16, files(location));
+		assertEquals(16, cache(1000, location).size());
+	}
+
+	private static ResultCache cache(int maxEntries, File location) {
+		ResultCache cache = new ResultCache(maxEntries, 3600, location.getPath(), new SimpleMeterRegistry());
+		cache.init();
+		return cache;
+	}
+
+	private static Information info(String label) {
+		return new Information(label, 48.8584, 2.2945, label, "About "+label+".");
+	}
+
+	private static int files(File location) {
+		return location.list((dir, name) -> name.endsWith(".json")).length;
+	}
+}
@@ -0,0 +1,127 @@
+package service.recognizer.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.cloud.vision.v1.AnnotateImageRequest;
+import com.google.cloud.vision.v1.AnnotateImageResponse;
+import com.google.cloud.vision.v1.Image;
+import com.google.protobuf.ByteString;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Checks that batched requests get their own responses, against a fake annotator.
+ */
+public class VisionBatcherTest {
+
+	private final FakeAnnotator annotator = new FakeAnnotator();
+	private VisionBatcher batcher;
+
+	@After
+	public void close() {
+		annotator.release.countDown();
+		if (batcher != null)
+			batcher.close();
+	}
+
+	@Test
+	public void routesEachResponseToItsCaller() throws Exception {
+		batcher = batcher(20, 16, 2);
+		ExecutorService callers = Executors.newFixedThreadPool(20);
+		try {
+			List<Future<String>> labels = new ArrayList<>();
+			for (int i = 0; i < 100; i++) {
+				String name = "img-"+i;
+				labels.add(callers.submit(() -> label(batcher.annotate(request(name)).get(5, TimeUnit.SECONDS))));
+			}
+			for (int i = 0; i < labels.size(); i++)
+				assertEquals("img-"+i, labels.get(i).get(10, TimeUnit.SECONDS));
+		} finally {
+			callers.shutdownNow();
+		}
+		int largest = Collections.max(annotator.batchSizes);
+		assertTrue("Batch of "+largest+" requests", largest <= VisionBatcher.MAX_BATCH_SIZE);
+		assertTrue("No request was batched with another", largest > 1);
+	}
+
+	@Test
+	public void failsTheBatchWhenResponsesAreMissing() throws Exception {
+		annotator.missing = 1;
+		batcher = batcher(50, 16, 2);
+		List<CompletableFuture<AnnotateImageResponse>> responses = new ArrayList<>();
+		for (int i = 0; i < 3; i++)
+			responses.add(batcher.annotate(request("img-"+i)));
+		for (CompletableFuture<AnnotateImageResponse> response : responses)
+			assertFailed(response, IllegalStateException.class);
+	}
+
+	@Test
+	public void sendsEachRequestAloneWithoutWindow() throws Exception {
+		batcher = batcher(0, 16, 4);
+		assertFalse(batcher.isEnabled());
+		List<CompletableFuture<AnnotateImageResponse>> responses = new ArrayList<>();
+		for (int i = 0; i < 20; i++)
+			responses.add(batcher.annotate(request("img-"+i)));
+		for (int i = 0; i < responses.size(); i++)
+			assertEquals("img-"+i, label(responses.get(i).get(5, TimeUnit.SECONDS)));
+		assertEquals(Collections.nCopies(20, 1), annotator.batchSizes);
+	}
+
+	@Test
+	public void failsEveryWaitingRequestOnClose() throws Exception {
+		annotator.release = new CountDownLatch(1);
+		batcher = batcher(1, 2, 1);
+		List<CompletableFuture<AnnotateImageResponse>> responses = new ArrayList<>();
+		// One batch being sent, one held by the dispatcher waiting for the guard and the rest waiting for it
+		for (int i = 0; i < 12; i++) {
+			responses.add(batcher.annotate(request("img-"+i)));
+			Thread.sleep(5);
+		}
+		batcher.close();
+		for (CompletableFuture<AnnotateImageResponse> response : responses)
+			assertFailed(response, RuntimeException.class);
+		assertFailed(batcher.annotate(request("late")), IllegalStateException.class);
+	}
+
+	private VisionBatcher batcher(long windowMillis, int maxBatchSize, int maxInFlight) {
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		VisionGuard guard = new VisionGuard(10000, 3000, maxInFlight, maxInFlight, maxInFlight, 5, 30000, registry);
+		return new VisionBatcher(annotator, guard, windowMillis, maxBatchSize, 256, registry);
+	}
+
+	static AnnotateImageRequest request(String name) {
+		return AnnotateImageRequest.newBuilder()
+				.setImage(Image.newBuilder().setContent(ByteString.copyFromUtf8(name)).build())
+				.build();
+	}
+
+	static String label(AnnotateImageResponse response) {
+		return response.getWebDetection().getBestGuessLabels(0).getLabel();
+	}
+
+	static void assertFailed(CompletableFuture<AnnotateImageResponse> response, Class<? extends Throwable> cause) throws Exception {
+		try {
+			response.get(5, TimeUnit.SECONDS);
+			fail("The request did not fail.");
+		} catch (ExecutionException e) {
+			assertTrue("Failed with "+e.getCause(), cause.isInstance(e.getCause()));
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package service.recognizer.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static service.recognizer.service.VisionBatcherTest.assertFailed;
+import static service.recognizer.service.VisionBatcherTest.request;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.cloud.vision.v1.AnnotateImageResponse;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Checks that the guard accounts for the calls to Cloud Vision, not for the requests batched in them,
+ * against a fake slow or failing annotator.
+ */
+public class VisionGuardTest {
+
+	private final FakeAnnotator annotator = new FakeAnnotator();
+	private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+	private VisionBatcher batcher;
+
+	@After
+	public void close() {
+		annotator.release.countDown();
+		if (batcher != null)
+			batcher.close();
+	}
+
+	@Test
+	public void countsAFailedBatchOnce() throws Exception {
+		annotator.failing = true;
+		VisionGuard guard = new VisionGuard(5000, 3000, 16, 4, 64, 2, 30000, registry);
+		batcher = new VisionBatcher(annotator, guard, 50, 16, 256, registry);
+		List<CompletableFuture<AnnotateImageResponse>> responses = new ArrayList<>();
+		for (int i = 0; i < 16; i++)
+			responses.add(batcher.annotate(request("img-"+i)));
+		for (CompletableFuture<AnnotateImageResponse> response : responses)
+			assertFailed(response, IllegalStateException.class);
+		assertEquals(1, annotator.calls());
+		assertEquals(VisionGuard.State.CLOSED, guard.getState());
+		assertEquals(8, guard.getLimit(), 0);
+	}
+
+	@Test
+	public void keepsTheSlotOfACallUntilItAnswers() throws Exception {
+		annotator.delayMillis = 500;
+		VisionGuard guard = new VisionGuard(100, 50, 16, 4, 64, 5, 30000, registry);
+		batcher = new VisionBatcher(annotator, guard, 0, 16, 256, registry);
+		CompletableFuture<AnnotateImageResponse> response = batcher.annotate(request("img"));
+		long start = System.currentTimeMillis();
+		try {
+			guard.await(response);
+			fail("The request did not time out.");
+		} catch (VisionUnavailableException e) {
+			assertTrue(System.currentTimeMillis()-start < 400);
+		}
+		// The caller stopped waiting, Cloud Vision is still answering
+		assertEquals(1, guard.getInFlight());
+		response.get();
+		for (int i = 0; i < 100 && guard.getInFlight() > 0; i++)
+			Thread.sleep(10);
+		assertEquals(0, guard.getInFlight());
+		// Answering after the deadline counts as a failure
+		assertEquals(8, guard.getLimit(), 0);
+	}
+
+	@Test
+	public void rejectsRequestsBeyondTheQueueCapacity() throws Exception {
+		annotator.release = new CountDownLatch(1);
+		VisionGuard guard = new VisionGuard(5000, 3000, 1, 1, 1, 5, 30000, registry);
+		batcher = new VisionBatcher(annotator, guard, 1, 2, 4, registry);
+		List<CompletableFuture<AnnotateImageResponse>> responses = new ArrayList<>();
+		for (int i = 0; i < 40; i++) {
+			responses.add(batcher.annotate(request("img-"+i)));
+			Thread.sleep(2);
+		}
+		int rejected = 0;
+		for (CompletableFuture<AnnotateImageResponse> response : responses)
+			if (response.isCompletedExceptionally()) {
+				assertFailed(response, VisionUnavailableException.class);
+				rejected++;
+			}
+		// At most the queue, the batch being sent and the one held by the dispatcher
+		assertTrue("Only "+rejected+" requests rejected", rejected >= 40-4-2*2);
+		annotator.release.countDown();
+		for (CompletableFuture<AnnotateImageResponse> response : responses)
+			if (!response.isCompletedExceptionally())
+				response.get();
+	}
+
+	@Test
+	public void capsTheCallsInFlightAtTheLimit() throws Exception {
+		annotator.delayMillis = 20;
+		VisionGuard guard = new VisionGuard(5000, 3000, 2, 2, 2, 5, 30000, registry);
+		batcher = new VisionBatcher(annotator, guard, 1, 4, 256, registry);
+		List<CompletableFuture<AnnotateImageResponse>> responses = new ArrayList<>();
+		for (int i = 0; i < 60; i++) {
+			responses.add(batcher.annotate(request("img-"+i)));
+			Thread.sleep(1);
+		}
+		// Batches beyond the limit wait for a place instead of failing
+		for (int i = 0; i < responses.size(); i++)
+			assertEquals("img-"+i, VisionBatcherTest.label(responses.get(i).get(5, TimeUnit.SECONDS)));
+		assertTrue("Up to "+annotator.maxConcurrent()+" calls at once", annotator.maxConcurrent() <= 2);
+	}
+
+	@Test
+	public void rejectsCallsWhileTheCircuitIsOpen() throws Exception {
+		annotator.failing = true;
+		VisionGuard guard = new VisionGuard(5000, 3000, 16, 4, 64, 2, 30000, registry);
+		batcher = new VisionBatcher(annotator, guard, 0, 16, 256, registry);
+		for (int i = 0; i < 2; i++)
+			assertFailed(batcher.annotate(request("img-"+i)), IllegalStateException.class);
+		assertEquals(VisionGuard.State.OPEN, guard.getState());
+		try {
+			batcher.annotate(request("img-2")).get();
+			fail("The request was not rejected.");
+		} catch (ExecutionException e) {
+			assertTrue("Failed with "+e.getCause(), e.getCause() instanceof VisionUnavailableException);
+		}
+		assertEquals(2, annotator.calls());
+	}
+}
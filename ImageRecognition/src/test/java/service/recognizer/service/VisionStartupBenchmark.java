@@ -0,0 +1,51 @@
+package service.recognizer.service;
+
+import java.io.IOException;
+
+import com.google.cloud.vision.v1.ImageAnnotatorClient;
+
+/**
+ * Measures how long the creation of the Cloud Vision client delays the startup of the service, with a stubbed client
+ * whose creation takes a fixed time, as reading the credentials and opening the channel do.
+ * The client created in background is compared with the creation the service used to wait for while starting.
+ * Usage: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=service.recognizer.service.VisionStartupBenchmark -Dexec.args="[creation millis] [runs]"
+ */
+public final class VisionStartupBenchmark {
+
+	private VisionStartupBenchmark() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		long creationMillis = args.length > 0 ? Long.parseLong(args[0]) : 3000;
+		int runs = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+		for (int run = 1; run <= runs; run++) {
+			long start = System.nanoTime();
+			CloudVisionAnnotator annotator = new CloudVisionAnnotator("credentials.json", 30000, 10000) {
+				@Override
+				ImageAnnotatorClient create() throws IOException {
+					return slowClient(creationMillis);
+				}
+			};
+			long started = System.nanoTime()-start;
+			while (!annotator.isReady())
+				Thread.sleep(1);
+			long ready = System.nanoTime()-start;
+			annotator.close();
+
+			start = System.nanoTime();
+			slowClient(creationMillis).close();
+			long blocking = System.nanoTime()-start;
+			System.out.printf("Run %d: startup delayed %.1f ms in background, ready after %.1f ms; delayed %.1f ms when waiting for the client%n",
+					run, started/1e6, ready/1e6, blocking/1e6);
+		}
+	}
+
+	private static ImageAnnotatorClient slowClient(long creationMillis) throws IOException {
+		try {
+			Thread.sleep(creationMillis);
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while creating the client.", e);
+		}
+		return CloudVisionAnnotatorTest.stubbedClient();
+	}
+}
@@ -0,0 +1,152 @@
+package service.recognizer.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Checks the caching, the sharing of concurrent requests and the failures of the Wikipedia client,
+ * against a stub Wikipedia server that answers an extract for every title but "Nowhere", which has no page.
+ */
+public class WikipediaClientTest {
+
+	private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+	private final AtomicInteger requests = new AtomicInteger();
+	// Held by the server before it answers, released by default
+	private volatile CountDownLatch answer = new CountDownLatch(0);
+	private volatile int status = 200;
+	private HttpServer wikipedia;
+	private WikipediaClient client;
+
+	@Before
+	public void start() throws IOException {
+		wikipedia = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		wikipedia.createContext("/w/api.php", exchange -> {
+			requests.incrementAndGet();
+			try {
+				answer.await(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			String query = URLDecoder.decode(exchange.getRequestURI().getRawQuery(), "UTF-8");
+			String title = query.substring(query.indexOf("titles=")+"titles=".length());
+			String json = title.equals("Nowhere")
+					? "{\"query\":{\"pages\":{\"-1\":{\"title\":\"Nowhere\",\"missing\":\"\"}}}}"
+					: "{\"query\":{\"pages\":{\"1\":{\"title\":\""+title+"\",\"extract\":\"About "+title+".\"}}}}";
+			byte[] body = json.getBytes(StandardCharsets.UTF_8);
+			exchange.sendResponseHeaders(status, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		wikipedia.start();
+		client = client("http://localhost:"+wikipedia.getAddress().getPort()+"/w/api.php", 3600);
+	}
+
+	@After
+	public void close() throws IOException {
+		client.close();
+		wikipedia.stop(0);
+	}
+
+	@Test
+	public void cachesExtractsByTitle() throws Exception {
+		assertEquals("About Eiffel Tower.", client.extract("Eiffel Tower").get(5, TimeUnit.SECONDS));
+		assertEquals("About Eiffel Tower.", client.extract("Eiffel Tower").get(5, TimeUnit.SECONDS));
+		assertEquals(1, requests.get());
+		// A title without page is cached too
+		assertNull(client.extract("Nowhere").get(5, TimeUnit.SECONDS));
+		assertNull(client.extract("Nowhere").get(5, TimeUnit.SECONDS));
+		assertEquals(2, requests.get());
+		assertEquals(2, registry.counter("recognition.wikipedia.cache.hits").count(), 0);
+		assertEquals(2, registry.counter("recognition.wikipedia.cache.misses").count(), 0);
+	}
+
+	@Test
+	public void requestsAnExpiredExtractAgain() throws Exception {
+		WikipediaClient expiring = client("http://localhost:"+wikipedia.getAddress().getPort()+"/w/api.php", 0);
+		try {
+			assertEquals("About Eiffel Tower.", expiring.extract("Eiffel Tower").get(5, TimeUnit.SECONDS));
+			assertEquals("About Eiffel Tower.", expiring.extract("Eiffel Tower").get(5, TimeUnit.SECONDS));
+			assertEquals(2, requests.get());
+		} finally {
+			expiring.close();
+		}
+	}
+
+	@Test
+	public void sharesTheRequestOfConcurrentLookups() throws Exception {
+		answer = new CountDownLatch(1);
+		List<CompletableFuture<String>> lookups = new ArrayList<>();
+		for (int i = 0; i < 8; i++)
+			lookups.add(client.extract("Colosseum"));
+		// Another title is requested on its own
+		CompletableFuture<String> other = client.extract("Big Ben");
+		answer.countDown();
+		for (CompletableFuture<String> lookup : lookups)
+			assertEquals("About Colosseum.", lookup.get(5, TimeUnit.SECONDS));
+		assertEquals("About Big Ben.", other.get(5, TimeUnit.SECONDS));
+		assertEquals(2, requests.get());
+	}
+
+	@Test
+	public void failsOnAnErrorWithoutCachingIt() throws Exception {
+		status = 500;
+		assertFails(client.extract("Eiffel Tower"));
+		status = 200;
+		assertEquals("About Eiffel Tower.", client.extract("Eiffel Tower").get(5, TimeUnit.SECONDS));
+		assertEquals(2, requests.get());
+		assertEquals(1, registry.counter("recognition.wikipedia.failures").count(), 0);
+	}
+
+	@Test
+	public void failsWhenWikipediaIsUnreachable() throws Exception {
+		int port;
+		try (ServerSocket socket = new ServerSocket(0)) {
+			port = socket.getLocalPort();
+		}
+		WikipediaClient unreachable = client("http://localhost:"+port+"/w/api.php", 3600);
+		try {
+			assertFails(unreachable.extract("Eiffel Tower"));
+			assertEquals(1, registry.counter("recognition.wikipedia.failures").count(), 0);
+		} finally {
+			unreachable.close();
+		}
+	}
+
+	private WikipediaClient client(String url, long ttlSeconds) {
+		return new WikipediaClient(url, 1000, 1000, 4, 100, ttlSeconds, registry);
+	}
+
+	private static void assertFails(CompletableFuture<String> lookup) throws Exception {
+		try {
+			lookup.get(5, TimeUnit.SECONDS);
+			fail("The lookup did not fail.");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+	}
+}